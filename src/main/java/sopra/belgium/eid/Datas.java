@@ -1,8 +1,11 @@
 package sopra.belgium.eid;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
+// The fields that haven't been asked for are left out
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class Datas {
 
     private final String municipality;
@@ -21,12 +24,14 @@ public class Datas {
     private final String municipalityadr;
     private final String convertedImage;
     private final String path;
+    private final long apduCount;
     
     public Datas (
     		String municipality,String nationalnumber, String name,String firstname1,
     		String firstname3, String nationality, String birthplace, String birthdate,
     		String sex, String hashpicture,String street,
-    		String zipcode,String municipalityadr,String convertedImage, String path)
+    		String zipcode,String municipalityadr,String convertedImage, String path,
+    		long apduCount)
     {
     	
     	this.municipality = municipality;
@@ -45,6 +50,7 @@ public class Datas {
     	this.municipalityadr = municipalityadr;
     	this.convertedImage = convertedImage;
     	this.path = path;
+    	this.apduCount = apduCount;
     }
     
     
@@ -108,5 +114,9 @@ public class Datas {
 	public String getPath() {
 		return path;
 	}
+
+	public long getApduCount() {
+		return apduCount;
+	}
     		
 }
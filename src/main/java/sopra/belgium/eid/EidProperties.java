@@ -0,0 +1,216 @@
+package sopra.belgium.eid;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import sopra.belgium.eid.metier.SmartCard;
+import sopra.belgium.eid.security.RevocationCache;
+import sopra.belgium.eid.security.RevocationConfig;
+import sopra.belgium.eid.security.TrustedRoots;
+import sopra.belgium.eid.simulation.SimulatedProvider;
+import sopra.belgium.eid.simulation.SimulationConfig;
+import sopra.belgium.eid.trace.APDUTraceRecorder;
+
+/**
+ * Contains the settings of the application starting with "eid." in
+ * application.properties and applies them to the smart card layer.
+ */
+@Component
+@ConfigurationProperties(prefix = "eid")
+public class EidProperties {
+
+	/** Contains the type of terminal factory, "PC/SC" or "PC/SC-SIM" */
+	private String terminalType = SmartCard.fgPCSC;
+
+	/** Contains the settings of the simulated readers of "PC/SC-SIM" */
+	private final SimulationConfig simulation = new SimulationConfig();
+
+	/** Contains the file to record the exchanged APDUs to, null not to record */
+	private String traceFile;
+
+	/** Indicates whether test cards with an invalid root are accepted */
+	private boolean enableTestCard = false;
+
+	/**
+	 * Contains the keystore, certificate file or directory of certificate
+	 * files with the roots trusted besides the bundled ones, null if none
+	 */
+	private String trustedRoots;
+
+	/** Contains the password of the keystore of the trusted roots */
+	private String trustedRootsPassword;
+
+	/** Contains the time between two checks for changed roots, 0 not to check */
+	private Duration trustedRootsRefresh = Duration.ofMinutes(1);
+
+	/** Contains the settings of the revocation checks */
+	private final RevocationConfig revocation = new RevocationConfig();
+
+	/** Contains the time a read may wait for its reader, 0 to wait forever */
+	private Duration requestTimeout = Duration.ofSeconds(30);
+
+	/** Contains the time a card may stay locked by a task, 0 for no limit */
+	private Duration lockTimeout = Duration.ofSeconds(10);
+
+	/** Contains the time a verified snapshot is kept, 0 to disable the cache */
+	private Duration cacheTtl = Duration.ofMinutes(5);
+
+	/** Contains the maximum number of verified snapshots kept */
+	private int cacheSize = 32;
+
+	/** Indicates whether the snapshot of a card is dropped on its removal */
+	private boolean cacheEvictOnRemoval = false;
+
+	/**
+	 * Makes the smart card layer use the configured readers, trusted roots and
+	 * revocation lists and starts recording the exchanged APDUs when asked
+	 * for.
+	 * 
+	 * @throws IOException
+	 *             when the trace file couldn't be created or the trusted roots
+	 *             couldn't be read
+	 * @throws GeneralSecurityException
+	 *             when the trusted roots couldn't be parsed
+	 */
+	@PostConstruct
+	public void apply() throws IOException, GeneralSecurityException {
+		SmartCard.configureTerminals(terminalType,
+				SimulatedProvider.fgTYPE.equals(terminalType) ? simulation : null);
+		if ((traceFile != null) && !traceFile.isEmpty()) {
+			SmartCard.setTraceRecorder(new APDUTraceRecorder(new File(traceFile)));
+		}
+		if ((trustedRoots != null) && !trustedRoots.isEmpty()) {
+			final TrustedRoots roots = new TrustedRoots(new File(trustedRoots),
+					(trustedRootsPassword == null) ? null : trustedRootsPassword
+							.toCharArray());
+			roots.reload();
+			roots.watch(trustedRootsRefresh.toMillis());
+			TrustedRoots.setDefault(roots);
+		}
+		final RevocationCache revocations = new RevocationCache(revocation);
+		revocations.start();
+		RevocationCache.setDefault(revocations);
+	}
+
+	/**
+	 * Stops recording the exchanged APDUs and watching the trusted roots and
+	 * the revocation lists.
+	 * 
+	 * @throws IOException
+	 *             when the end of the trace couldn't be written
+	 */
+	@PreDestroy
+	public void release() throws IOException {
+		TrustedRoots.getDefault().stopWatching();
+		RevocationCache.getDefault().stop();
+		final APDUTraceRecorder recorder = SmartCard.getTraceRecorder();
+		if (recorder != null) {
+			SmartCard.setTraceRecorder(null);
+			recorder.close();
+		}
+	}
+
+	public String getTerminalType() {
+		return terminalType;
+	}
+
+	public void setTerminalType(String terminalType) {
+		this.terminalType = terminalType;
+	}
+
+	public SimulationConfig getSimulation() {
+		return simulation;
+	}
+
+	public String getTraceFile() {
+		return traceFile;
+	}
+
+	public void setTraceFile(String traceFile) {
+		this.traceFile = traceFile;
+	}
+
+	public boolean isEnableTestCard() {
+		return enableTestCard;
+	}
+
+	public void setEnableTestCard(boolean enableTestCard) {
+		this.enableTestCard = enableTestCard;
+	}
+
+	public String getTrustedRoots() {
+		return trustedRoots;
+	}
+
+	public void setTrustedRoots(String trustedRoots) {
+		this.trustedRoots = trustedRoots;
+	}
+
+	public String getTrustedRootsPassword() {
+		return trustedRootsPassword;
+	}
+
+	public void setTrustedRootsPassword(String trustedRootsPassword) {
+		this.trustedRootsPassword = trustedRootsPassword;
+	}
+
+	public Duration getTrustedRootsRefresh() {
+		return trustedRootsRefresh;
+	}
+
+	public void setTrustedRootsRefresh(Duration trustedRootsRefresh) {
+		this.trustedRootsRefresh = trustedRootsRefresh;
+	}
+
+	public RevocationConfig getRevocation() {
+		return revocation;
+	}
+
+	public Duration getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	public void setRequestTimeout(Duration requestTimeout) {
+		this.requestTimeout = requestTimeout;
+	}
+
+	public Duration getLockTimeout() {
+		return lockTimeout;
+	}
+
+	public void setLockTimeout(Duration lockTimeout) {
+		this.lockTimeout = lockTimeout;
+	}
+
+	public Duration getCacheTtl() {
+		return cacheTtl;
+	}
+
+	public void setCacheTtl(Duration cacheTtl) {
+		this.cacheTtl = cacheTtl;
+	}
+
+	public int getCacheSize() {
+		return cacheSize;
+	}
+
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+
+	public boolean isCacheEvictOnRemoval() {
+		return cacheEvictOnRemoval;
+	}
+
+	public void setCacheEvictOnRemoval(boolean cacheEvictOnRemoval) {
+		this.cacheEvictOnRemoval = cacheEvictOnRemoval;
+	}
+}
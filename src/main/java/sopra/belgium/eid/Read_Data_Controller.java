@@ -4,62 +4,208 @@ package sopra.belgium.eid;
 
 
 import java.io.IOException;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
-import sopra.belgium.eid.metier.BeID;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.server.ResponseStatusException;
+import sopra.belgium.eid.exceptions.NoReadersFoundException;
+import sopra.belgium.eid.metier.CardPresenceMonitor;
+import sopra.belgium.eid.metier.CardSnapshot;
+import sopra.belgium.eid.metier.ReadPacing;
+import sopra.belgium.eid.metier.ReadPlan;
+import sopra.belgium.eid.metier.ReaderState;
+import sopra.belgium.eid.metier.SnapshotPart;
+import sopra.belgium.eid.metier.SnapshotService;
 
 
 @RestController
 public class Read_Data_Controller {
+
+	/** Contains the part of the card every field of Datas comes from */
+	private static final Map<String, SnapshotPart> FIELD_PARTS = new LinkedHashMap<String, SnapshotPart>();
+	static {
+		for (String field : new String[] { "municipality", "nationalnumber",
+				"name", "firstname1", "firstname3", "nationality", "birthplace",
+				"birthdate", "sex", "hashpicture" }) {
+			FIELD_PARTS.put(field, SnapshotPart.IDENTITY);
+		}
+		for (String field : new String[] { "street", "zipcode",
+				"municipalityadr" }) {
+			FIELD_PARTS.put(field, SnapshotPart.ADDRESS);
+		}
+		for (String field : new String[] { "convertedImage", "path" }) {
+			FIELD_PARTS.put(field, SnapshotPart.PHOTO);
+		}
+	}
+
+	/** Reads the cards, starting as soon as a card is inserted */
+	private final SnapshotService snapshotService;
+
+	/** Contains the live state of the smart card readers */
+	private final CardPresenceMonitor presenceMonitor;
+
+	public Read_Data_Controller(SnapshotService snapshotService,
+			CardPresenceMonitor presenceMonitor) {
+		this.snapshotService = snapshotService;
+		this.presenceMonitor = presenceMonitor;
+	}
+
 	@CrossOrigin(origins = "*")
 	@GetMapping(value="/")
-	public Datas getData() throws IOException, Exception {
+	public DeferredResult<Datas> getData(@RequestParam(value="reader", required=false) String reader,
+			@RequestParam(value="fields", required=false) Set<String> fields) {
 		
-			BeID eID = new BeID(true); // We allow information to be fetched
-										// from test cards
-			String[] data = eID.getIDData().tabString();
-			String[] dataAddr = eID.getIDAddress().tabString();
-			String convertedImage ;
-			String path ;
-			if (eID.readPhotoData())
-			{
-				eID.getIDPhoto().writeToFile("photoeID");
-				path = eID.getIDPhoto().pathImage();
-				convertedImage = eID.convertToBase64();
+			// Only the fields asked for are returned, e.g.
+			// fields=identity,address or fields=nationalnumber,photo, and only
+			// the files needed to verify them are read
+			final Set<String> selected = selectFields(fields);
+			final Set<SnapshotPart> parts = EnumSet.noneOf(SnapshotPart.class);
+			for (String field : selected) {
+				parts.add(FIELD_PARTS.get(field));
+			}
+
+			// Read and verify the files of the card in a single pass, on the
+			// given reader or on any reader that contains a card. The read
+			// may already have started when the card was inserted. The
+			// request thread is released while the card is read.
+			final DeferredResult<Datas> result = new DeferredResult<Datas>();
+			final CompletableFuture<CardSnapshot> read = snapshotService.readAsync(reader, ReadPlan.of(parts));
+			read.whenComplete(new BiConsumer<CardSnapshot, Throwable>() {
+				public void accept(CardSnapshot snapshot, Throwable e) {
+					if ((e instanceof CompletionException) && (e.getCause() != null)) {
+						e = e.getCause();
+					}
+					if (e != null) {
+						result.setErrorResult(e);
+						return;
+					}
+					try {
+						result.setResult(toDatas(snapshot, selected));
+					} catch (IOException ex) {
+						result.setErrorResult(ex);
+					}
+				}
+			});
+
+			// When the client goes away or the request times out, the read
+			// stops at its next APDU and releases the reader, unless other
+			// requests still share it
+			final Runnable cancel = new Runnable() {
+				public void run() {
+					read.cancel(true);
+				}
+			};
+			result.onTimeout(cancel);
+			result.onCompletion(cancel);
+			return result;
+}
+
+	private Set<String> selectFields(Set<String> fields) {
+		if ((fields == null) || fields.isEmpty()) {
+			return FIELD_PARTS.keySet();
+		}
+		Set<String> selected = new HashSet<String>();
+		for (String field : fields) {
+			String name = field.trim();
+			boolean found = false;
+			for (Map.Entry<String, SnapshotPart> entry : FIELD_PARTS.entrySet()) {
+				if (entry.getKey().equalsIgnoreCase(name)
+						|| entry.getValue().name().equalsIgnoreCase(name)) {
+					selected.add(entry.getKey());
+					found = true;
+				}
+			}
+			if (!found) {
+				throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+						"Unknown field: " + name);
 			}
-			else 
-			{
-				convertedImage="";
-				path="";
+		}
+		return selected;
+	}
+
+	private Datas toDatas(CardSnapshot snapshot, Set<String> selected) throws IOException {
+			String[] data = new String[14];
+			String[] dataAddr = new String[3];
+			String path = null;
+			String convertedImage = null;
+			if (snapshot.getIDData() != null) {
+				data = snapshot.getIDData().tabString();
+			}
+			if (snapshot.getIDAddress() != null) {
+				dataAddr = snapshot.getIDAddress().tabString();
+			}
+			if (selected.contains("path")) {
+				snapshot.getIDPhoto().writeToFile("photoeID");
+				path = snapshot.getIDPhoto().pathImage();
+			}
+			if (selected.contains("convertedImage")) {
+				convertedImage = Base64.getEncoder().encodeToString(
+						snapshot.getIDPhoto().getPhoto());
 			}
 			
-			Datas dataa = new Datas(data[4],
-					data[5],data[6],data[7],
-					data[8],data[9],data[10],
-					data[11],data[12],data[13],
-					dataAddr[0],dataAddr[1],dataAddr[2],convertedImage, path);
-			eID.disconnect();
+			Datas dataa = new Datas(pick(selected, "municipality", data[4]),
+					pick(selected, "nationalnumber", data[5]),pick(selected, "name", data[6]),
+					pick(selected, "firstname1", data[7]),
+					pick(selected, "firstname3", data[8]),pick(selected, "nationality", data[9]),
+					pick(selected, "birthplace", data[10]),
+					pick(selected, "birthdate", data[11]),pick(selected, "sex", data[12]),
+					pick(selected, "hashpicture", data[13]),
+					pick(selected, "street", dataAddr[0]),pick(selected, "zipcode", dataAddr[1]),
+					pick(selected, "municipalityadr", dataAddr[2]),convertedImage, path,
+					snapshot.getAPDUCount());
 			return dataa;
 			
 }
+
+	private static String pick(Set<String> selected, String field, String value) {
+		return selected.contains(field) ? value : null;
+	}
 	
 	@CrossOrigin(origins = "*")
 	@GetMapping(value="/check")
 	public Connexion checkConnexion() throws Exception{
 		
-			Connexion connexion ;
-			BeID eID = new BeID(true); 
-			connexion = new Connexion(eID.verifyCardConnected()) ;
-			return connexion;
+			// Answered from the state kept by the monitor
+			if (!presenceMonitor.hasReaders()) {
+				throw new NoReadersFoundException();
+			}
+			return new Connexion(true);
 }
 	@CrossOrigin(origins = "*")
 	@GetMapping(value="/checkval")
 	public CardValidity checkValidity() throws Exception{
-		CardValidity crdval;
-		BeID eID = new BeID(true);
-		crdval = new CardValidity(eID.verifycard());
-		return crdval;
+		if (!presenceMonitor.hasReaders()) {
+			throw new NoReadersFoundException();
+		}
+		return new CardValidity(presenceMonitor.isSmartCardPresent()
+				? "it's a smart card" : "not a smart card");
+	}
+
+	@CrossOrigin(origins = "*")
+	@GetMapping(value="/readers")
+	public Collection<ReaderState> readerStates() {
+		return presenceMonitor.getStates();
+	}
+
+	@CrossOrigin(origins = "*")
+	@GetMapping(value="/pacing")
+	public Map<String, Long> readPacing() {
+		// Delay in milliseconds learned for every reader used so far
+		return ReadPacing.learnedDelays();
 	}
 	
 }
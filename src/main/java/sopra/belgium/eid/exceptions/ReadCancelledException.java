@@ -0,0 +1,21 @@
+package sopra.belgium.eid.exceptions;
+
+import javax.smartcardio.CardException;
+
+/**
+ * The "read cancelled" exception indicates that an operation on the card has
+ * been stopped between two APDUs because nobody waits for its result anymore,
+ * e.g. because the client of the request went away. It isn't a failure of the
+ * card or of the reader: the connection stays usable. It extends the card
+ * exception so that it passes through every operation on the card.
+ */
+@SuppressWarnings("serial")
+public class ReadCancelledException extends CardException {
+
+	/**
+	 * Initializes the exception.
+	 */
+	public ReadCancelledException() {
+		super("The operation on the card has been cancelled");
+	}
+}
@@ -23,15 +23,33 @@ package sopra.belgium.eid.metier;
 
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
 
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
 
+import sopra.belgium.eid.exceptions.CardNotFoundException;
 import sopra.belgium.eid.exceptions.EIDException;
 import sopra.belgium.eid.exceptions.HashVerificationException;
 import sopra.belgium.eid.exceptions.RootVerificationException;
@@ -42,9 +60,13 @@ import sopra.belgium.eid.objects.IDPhoto;
 import sopra.belgium.eid.security.Certificate;
 import sopra.belgium.eid.security.CertificateChain;
 import sopra.belgium.eid.security.CertificateStatus;
-import sopra.belgium.eid.security.HardCodedRootCertificate;
-import sopra.belgium.eid.security.HardCodedRootCertificateV2;
+import sopra.belgium.eid.security.CertificateValidator;
+import sopra.belgium.eid.security.CryptoEngines;
 import sopra.belgium.eid.security.RNCertificate;
+import sopra.belgium.eid.security.RootCertificate;
+import sopra.belgium.eid.security.TrustedRoots;
+import sopra.belgium.eid.util.FormattedTLV;
+import sopra.belgium.eid.util.TLVDecoder;
 
 /**
  * The beID class is the main interface to perform operations on the Belgian eID
@@ -52,10 +74,21 @@ import sopra.belgium.eid.security.RNCertificate;
  * should be used when trying to perform high-level operations in your own
  * system. Every operation connects to the smart card if not yet connected
  * before performing the operation itself.
-
+ * <br />
+ * The <i>...Async()</i> variants of the operations return immediately and
+ * perform the operation on the thread of the worker of the reader, so that the
+ * calling thread isn't blocked while the card is read. They are only available
+ * on the sessions of a {@link sopra.belgium.eid.metier.ReaderPool}, see
+ * {@link sopra.belgium.eid.metier.ReaderPool#session(String)}.
  */
 public class BeID extends SmartCard {
 
+	/**
+	 * Contains the number of bytes at the start of the ID file that hold the
+	 * card number and the chip number
+	 */
+	public static final int fgCARD_KEY_LENGTH = 0x40;
+
 	/** Indicates whether test cards with an invalid root are enabled */
 	private boolean enableTestCard;
 
@@ -65,6 +98,19 @@ public class BeID extends SmartCard {
 	 */
 	private String name;
 	private byte[] readdata;
+
+	/**
+	 * Contains the buffer the files of a snapshot are read into, large enough
+	 * for the largest file and reused for every file
+	 */
+	private ByteBuffer snapshotBuffer;
+
+	/**
+	 * Contains the pool whose worker performs the asynchronous operations,
+	 * null if the session doesn't belong to a pool
+	 */
+	private volatile ReaderPool pool;
+
 	
 	/**
 	 * Sets up the requirements needed for a valid functioning. The system
@@ -80,6 +126,21 @@ public class BeID extends SmartCard {
 		this.name = "";
 	}
 
+	/**
+	 * Sets up the requirements needed for a valid functioning. The system
+	 * connects to the given smart card reader only.
+	 * 
+	 * @param enableTestCard
+	 *            indicates whether test cards with invalid roots are enabled
+	 * @param terminal
+	 *            is the smart card reader to connect with
+	 */
+	public BeID(final boolean enableTestCard, final CardTerminal terminal) {
+		super(terminal);
+		this.enableTestCard = enableTestCard;
+		this.name = terminal.getName();
+	}
+
 
 	/**
 	 * Returns the ID information from the card currently inserted in the smart
@@ -91,43 +152,46 @@ public class BeID extends SmartCard {
 	 *             when the operation couldn't be performed successfully, the
 	 *             cause of the problem contains a more detailed description
 	 */
+	@SuppressWarnings("try")
 	public IDData getIDData() throws EIDException {
 		try {
 			
 			// Connect if not yet connected
 			this.connectCard();
 
-			// Read data and signature of ID
-			
-			byte[] readData;
-			byte[] readSignatureData;
-			final byte[] fileToRead = { IDData.fgDFID[0], IDData.fgDFID[1],
-					IDData.fgDataTag, IDData.fgDataTagID };
+			// Read data and signature of ID and the certificates to verify
+			// them without releasing the card in between
+			try (Transaction transaction = transaction()) {
+				byte[] readData;
+				byte[] readSignatureData;
+				final byte[] fileToRead = { IDData.fgDFID[0], IDData.fgDFID[1],
+						IDData.fgDataTag, IDData.fgDataTagID };
 			
-			final byte[] signatureFileToRead = { IDData.fgDFID[0],
-					IDData.fgDFID[1], IDData.fgDataTag, IDData.fgDataTagIDSIG };
+				final byte[] signatureFileToRead = { IDData.fgDFID[0],
+						IDData.fgDFID[1], IDData.fgDataTag, IDData.fgDataTagIDSIG };
 			
-			readData = super.readFile(fileToRead, IDData.MAX_LEN);
+				readData = super.readFile(fileToRead, IDData.MAX_LEN);
 			
-			readSignatureData = super.readFile(signatureFileToRead,
-					IDData.fgMAX_SIGNATURE_LEN);
+				readSignatureData = super.readFile(signatureFileToRead,
+						IDData.fgMAX_SIGNATURE_LEN);
 
-			if (verifyRoot()) {
+				if (verifyRoot()) {
 				
-				if (verifyRNSignature(readData, readSignatureData)) {
+					if (verifyRNSignature(readData, readSignatureData)) {
 					
-					// Return read identity data
-					exception="noexception";
-					return IDData.parse(readData);
-				} else {
-					exception = "The data of the ID couldn't be verified correctly against it's signature";
+						// Return read identity data
+						exception="noexception";
+						return IDData.parse(readData);
+					} else {
+						exception = "The data of the ID couldn't be verified correctly against it's signature";
 					
-					throw new SignatureVerificationException("ID");
-				}
+						throw new SignatureVerificationException("ID");
+					}
 				
-			} else {
-				exception = "The root not verified";
-				throw new RootVerificationException();
+				} else {
+					exception = "The root not verified";
+					throw new RootVerificationException();
+				}
 			}
 		} catch (EIDException e) {
 			// We don't need another wrap around
@@ -149,61 +213,50 @@ public class BeID extends SmartCard {
 	 *             when the operation couldn't be performed successfully, the
 	 *             cause of the problem contains a more detailed description
 	 */
+	@SuppressWarnings("try")
 	public IDAddress getIDAddress() throws EIDException {
 		try {
 			// Connect if not yet connected
 			this.connectCard();
 
 			// Read the address data, the ID signature and the address signature
-			byte[] readDataRaw;
-			byte[] readIDSignature;
-			byte[] readAddrSignature;
-			final byte[] fileToRead = { IDAddress.fgDFID[0],
-					IDAddress.fgDFID[1], IDAddress.fgDataTag,
-					IDAddress.fgDataTagADDR };
-			final byte[] idSigFileToRead = { IDData.fgDFID[0],
-					IDData.fgDFID[1], IDData.fgDataTag, IDData.fgDataTagIDSIG };
-			final byte[] addrSigFileToRead = { IDAddress.fgDFID[0],
-					IDAddress.fgDFID[1], IDAddress.fgDataTag,
-					IDAddress.fgDataTagADDRSIG };
-
-			readIDSignature = super.readFile(idSigFileToRead,
-					IDAddress.fgMAX_SIGNATURE_LEN);
-			readAddrSignature = super.readFile(addrSigFileToRead,
-					IDAddress.fgMAX_SIGNATURE_LEN);
-			readDataRaw = super.readFile(fileToRead, IDAddress.MAX_LEN);
-
-			// Trim trailing zeroes of read data
-			int indexLastNonZero = -1;
-			for (int i = readDataRaw.length - 1; i >= 0; i--) {
-				
-				if (readDataRaw[i] != 0) {
-					indexLastNonZero = i;
-					
-					break;
-				}
-			}
-			final byte[] readData = new byte[indexLastNonZero + 1];
-			System.arraycopy(readDataRaw, 0, readData, 0, indexLastNonZero + 1);
-			
-			// Append the ID signature
-			byte[] fullData = new byte[readData.length + readIDSignature.length];
-			System.arraycopy(readData, 0, fullData, 0, readData.length);
-			System.arraycopy(readIDSignature, 0, fullData, readData.length,
-					readIDSignature.length);
-
-			// Verify the root and the signature
-			if (verifyRoot()) {
-				if (verifyRNSignature(fullData, readAddrSignature)) {
-					// Return read address data
-					return IDAddress.parse(readData);
+			// together with the certificates in a single transaction
+			try (Transaction transaction = transaction()) {
+				byte[] readDataRaw;
+				byte[] readIDSignature;
+				byte[] readAddrSignature;
+				final byte[] fileToRead = { IDAddress.fgDFID[0],
+						IDAddress.fgDFID[1], IDAddress.fgDataTag,
+						IDAddress.fgDataTagADDR };
+				final byte[] idSigFileToRead = { IDData.fgDFID[0],
+						IDData.fgDFID[1], IDData.fgDataTag, IDData.fgDataTagIDSIG };
+				final byte[] addrSigFileToRead = { IDAddress.fgDFID[0],
+						IDAddress.fgDFID[1], IDAddress.fgDataTag,
+						IDAddress.fgDataTagADDRSIG };
+
+				readIDSignature = super.readFile(idSigFileToRead,
+						IDAddress.fgMAX_SIGNATURE_LEN);
+				readAddrSignature = super.readFile(addrSigFileToRead,
+						IDAddress.fgMAX_SIGNATURE_LEN);
+				readDataRaw = super.readFile(fileToRead, IDAddress.MAX_LEN);
+
+				// Trim trailing zeroes of read data and append the ID signature
+				final byte[] readData = trimTrailingZeroes(readDataRaw);
+				final byte[] fullData = concat(readData, readIDSignature);
+
+				// Verify the root and the signature
+				if (verifyRoot()) {
+					if (verifyRNSignature(fullData, readAddrSignature)) {
+						// Return read address data
+						return IDAddress.parse(readData);
+					} else {
+						exception = "The data of the Address couldn't be verified correctly against it's signature";
+						throw new SignatureVerificationException("Address");
+					}
 				} else {
-					exception = "The data of the Address couldn't be verified correctly against it's signature";
-					throw new SignatureVerificationException("Address");
+					exception = "The root not verified";
+					throw new RootVerificationException();
 				}
-			} else {
-				exception = "The root not verified";
-				throw new RootVerificationException();
 			}
 		} catch (EIDException e) {
 			// We don't need another wrap around
@@ -214,27 +267,31 @@ public class BeID extends SmartCard {
 	}
 
 	
+	@SuppressWarnings("try")
 	public boolean readPhotoData() throws Exception{
 		
 			// Connect if not yet connected
 			this.connectCard();
 
-			// Read file
-			byte[] readData = new byte[] {};
-			final byte[] fileToRead = { IDPhoto.fgDFID[0], IDPhoto.fgDFID[1],
-					IDPhoto.fgDataTag, IDPhoto.fgDataTagPHOTO };
-
-			readData = super.readFile(fileToRead, IDPhoto.MAX_LEN);
-			readdata =  readData;
-			final IDPhoto photo = IDPhoto.parse(readdata);
-			if (verifyRoot()) {
-				if (photo.verifyHash(this.getIDData().getHashPhoto())) {
-					return true;
+			// Read file, the ID holding its hash is read in the same
+			// transaction
+			try (Transaction transaction = transaction()) {
+				byte[] readData = new byte[] {};
+				final byte[] fileToRead = { IDPhoto.fgDFID[0], IDPhoto.fgDFID[1],
+						IDPhoto.fgDataTag, IDPhoto.fgDataTagPHOTO };
+
+				readData = super.readFile(fileToRead, IDPhoto.MAX_LEN);
+				readdata =  readData;
+				final IDPhoto photo = IDPhoto.parse(readdata);
+				if (verifyRoot()) {
+					if (photo.verifyHash(this.getIDData().getHashPhoto())) {
+						return true;
+					} else {
+						throw new HashVerificationException("Photo");
+					}
 				} else {
-					throw new HashVerificationException("Photo");
+					throw new RootVerificationException();
 				}
-			} else {
-				throw new RootVerificationException();
 			}
 		
 	}
@@ -276,24 +333,334 @@ public class BeID extends SmartCard {
 	
 
 	/**
-	 * Returns the certificates in a certificate validation chain.
+	 * Reads every file needed to show and verify the data of the card
+	 * currently inserted in the smart card reader: the ID, the ID signature,
+	 * the address, the address signature, the photo, the RN certificate and the
+	 * root certificate. Every file is read exactly once inside a single
+	 * exclusive transaction, the verifications are then performed on the data
+	 * in memory.
+	 * <br />
+	 * Only the path from the RN certificate to the root is validated, with the
+	 * revocation of the RN certificate: the files are signed with its key. The
+	 * CA, authentication and signature certificates aren't read, they are
+	 * validated by {@link #getCertificateChain()}.
+	 * 
+	 * @return the verified snapshot of the card
+	 * @throws EIDException
+	 *             when the operation couldn't be performed successfully, the
+	 *             cause of the problem contains a more detailed description
+	 */
+	public CardSnapshot readSnapshot() throws EIDException {
+		return readSnapshot(ReadPlan.full());
+	}
+
+	/**
+	 * Reads and verifies the parts of the data of the card asked for by the
+	 * given plan, see {@link #readSnapshot()}. Only the files of the plan are
+	 * read, so the parts that aren't asked for are missing from the snapshot.
+	 * 
+	 * @param plan
+	 *            contains the parts asked for and the files to read
+	 * @return the verified snapshot of the parts of the card
+	 * @throws EIDException
+	 *             when the operation couldn't be performed successfully, the
+	 *             cause of the problem contains a more detailed description
+	 */
+	public CardSnapshot readSnapshot(final ReadPlan plan) throws EIDException {
+		try {
+			// Connect if not yet connected
+			this.connectCard();
+			final long apduCountStart = super.getAPDUCount();
+
+			final Map<CardFile, byte[]> read = readFiles(plan.getFiles());
+			final long apduCount = super.getAPDUCount() - apduCountStart;
+
+			// Verify everything from memory
+			final long verificationStart = System.nanoTime();
+			boolean verified = false;
+			try {
+				final RootCertificate root = new RootCertificate(
+						read.get(CardFile.ROOT_CERTIFICATE));
+				final RNCertificate rn = new RNCertificate(
+						read.get(CardFile.RN_CERTIFICATE));
+
+				// Parsed first, the ID file holds the hash of the photo, but
+				// only returned once verified
+				IDData idData = null;
+				if (plan.needs(CardFile.ID)) {
+					idData = IDData.parse(read.get(CardFile.ID));
+				}
+
+				IDAddress idAddress = null;
+				if (plan.needs(CardFile.ADDRESS)) {
+					idAddress = IDAddress.parse(trimTrailingZeroes(read
+							.get(CardFile.ADDRESS)));
+				}
+
+				IDPhoto photo = null;
+				if (plan.needs(CardFile.PHOTO)) {
+					readdata = read.get(CardFile.PHOTO);
+					photo = IDPhoto.parse(readdata);
+				}
+				verifySignatures(read, root, rn, photo,
+						(idData == null) ? null : idData.getHashPhoto());
+				verified = true;
+
+				exception = "noexception";
+				return new CardSnapshot(idData, idAddress, photo, rn, root,
+						apduCount, plan.getParts());
+			} finally {
+				CardMetrics.verification(super.getTerminal().getName(), verified,
+						System.nanoTime() - verificationStart);
+			}
+		} catch (EIDException e) {
+			// We don't need another wrap around
+			throw e;
+		} catch (Exception e) {
+			throw new EIDException(e);
+		}
+	}
+
+	/**
+	 * Returns the given tags of the ID file or of the address file. The tags
+	 * are decoded while the file is read, see
+	 * {@link sopra.belgium.eid.util.TLVDecoder}. The signature of a file
+	 * covers the whole file, so verifying the tags means reading the whole
+	 * file together with the files needed to verify it, as for
+	 * {@link #readSnapshot(ReadPlan)}. Only when the verification is skipped
+	 * explicitly, the read stops as soon as the tags asked for are complete.
+	 * 
+	 * @param file
+	 *            is the ID file or the address file
+	 * @param skipVerification
+	 *            indicates whether the tags are returned without being
+	 *            verified, to read only the start of the file
+	 * @param tags
+	 *            are the tags asked for, none for every tag of the file
+	 * @return the data of the tags found mapped by tag
+	 * @throws EIDException
+	 *             when the operation couldn't be performed successfully, the
+	 *             cause of the problem contains a more detailed description
+	 */
+	public Map<Byte, byte[]> readTags(final CardFile file,
+			final boolean skipVerification, final byte... tags)
+			throws EIDException {
+		final SnapshotPart part;
+		if (file == CardFile.ID) {
+			part = SnapshotPart.IDENTITY;
+		} else if (file == CardFile.ADDRESS) {
+			part = SnapshotPart.ADDRESS;
+		} else {
+			throw new IllegalArgumentException("Only the ID file and the address file contain tags");
+		}
+
+		try {
+			// Connect if not yet connected
+			this.connectCard();
+
+			final TLVDecoder decoder = new TLVDecoder(tags);
+			if (skipVerification) {
+				readSnapshotFile(file.getPath(), file.getMaxLength(),
+						listener(decoder));
+			} else {
+				final Map<CardFile, byte[]> read = readFiles(ReadPlan.of(
+						EnumSet.of(part)).getFiles());
+				final long verificationStart = System.nanoTime();
+				boolean verified = false;
+				try {
+					verifySignatures(read, new RootCertificate(read
+							.get(CardFile.ROOT_CERTIFICATE)), new RNCertificate(
+							read.get(CardFile.RN_CERTIFICATE)), null, null);
+					verified = true;
+				} finally {
+					CardMetrics.verification(super.getTerminal().getName(),
+							verified, System.nanoTime() - verificationStart);
+				}
+				decoder.feed(read.get(file));
+			}
+
+			final Map<Byte, byte[]> found = new HashMap<Byte, byte[]>();
+			if (tags.length == 0) {
+				found.putAll(decoder.getTLVElements());
+			}
+			for (byte tag : tags) {
+				if (decoder.tagData(tag) != null) {
+					found.put(tag, decoder.tagData(tag));
+				}
+			}
+			return found;
+		} catch (EIDException e) {
+			// We don't need another wrap around
+			throw e;
+		} catch (Exception e) {
+			throw new EIDException(e);
+		}
+	}
+
+	/**
+	 * Returns the card number and the chip number of the card, which identify
+	 * it, as a key (see {@link SnapshotCache#key(String, String)}). Only the
+	 * first block of the ID file is read, the numbers aren't verified.
+	 * 
+	 * @return the key of the card, null when the numbers aren't found at the
+	 *         start of the ID file
+	 * @throws EIDException
+	 *             when the operation couldn't be performed successfully, the
+	 *             cause of the problem contains a more detailed description
+	 */
+	public String readCardKey() throws EIDException {
+		try {
+			// Connect if not yet connected
+			this.connectCard();
+
+			// The numbers are the first tags, a single short block holds them
+			final TLVDecoder decoder = new TLVDecoder((byte) 0x01, (byte) 0x02);
+			readSnapshotFile(CardFile.ID.getPath(), fgCARD_KEY_LENGTH,
+					listener(decoder));
+			if (!decoder.isComplete()) {
+				return null;
+			}
+			return SnapshotCache.key(new String(decoder.tagData((byte) 0x01)),
+					FormattedTLV.hexify(decoder.tagData((byte) 0x02)));
+		} catch (EIDException e) {
+			// We don't need another wrap around
+			throw e;
+		} catch (Exception e) {
+			throw new EIDException(e);
+		}
+	}
+
+	/**
+	 * Returns the certificates in a certificate validation chain. Every path
+	 * of the chain is validated, the status of every certificate tells the
+	 * outcome. The root of a test card doesn't have to be trusted.
 	 * 
 	 * @return the certificate chain
 	 * @throws EIDException
 	 *             when the operation couldn't be performed successfully, the
 	 *             cause of the problem contains a more detailed description
 	 */
+	@SuppressWarnings("try")
 	public CertificateChain getCertificateChain() throws EIDException {
 		try {
 			// Connect if not yet connected
 			this.connectCard();
 
-			return new CertificateChain(this);
+			// All the certificates come from the same card
+			final CertificateChain chain;
+			try (Transaction transaction = transaction()) {
+				chain = new CertificateChain(this);
+			}
+			chain.validate(!enableTestCard);
+			return chain;
 		} catch (Exception e) {
 			throw new EIDException(e);
 		}
 	}
 
+	/**
+	 * Sets the pool whose worker performs the asynchronous operations, the
+	 * pool that created the session.
+	 * 
+	 * @param pool
+	 *            is the pool of the session
+	 */
+	void setPool(final ReaderPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Returns the ID information without blocking the calling thread, see
+	 * {@link #getIDData()}.
+	 * 
+	 * @return the pending ID information, cancelling it stops the read at its
+	 *         next APDU
+	 */
+	public CompletableFuture<IDData> getIDDataAsync() {
+		return async(TaskPriority.IDENTITY, new ReaderTask<IDData>() {
+			public IDData execute(final BeID eID) throws Exception {
+				return eID.getIDData();
+			}
+		});
+	}
+
+	/**
+	 * Returns the address information without blocking the calling thread, see
+	 * {@link #getIDAddress()}.
+	 * 
+	 * @return the pending address information, cancelling it stops the read
+	 *         at its next APDU
+	 */
+	public CompletableFuture<IDAddress> getIDAddressAsync() {
+		return async(TaskPriority.IDENTITY, new ReaderTask<IDAddress>() {
+			public IDAddress execute(final BeID eID) throws Exception {
+				return eID.getIDAddress();
+			}
+		});
+	}
+
+	/**
+	 * Reads and verifies the photo without blocking the calling thread, see
+	 * {@link #readPhotoData()}.
+	 * 
+	 * @return the pending result of the verification of the photo, cancelling
+	 *         it stops the read at its next APDU
+	 */
+	public CompletableFuture<Boolean> readPhotoDataAsync() {
+		return async(TaskPriority.BULK, new ReaderTask<Boolean>() {
+			public Boolean execute(final BeID eID) throws Exception {
+				return eID.readPhotoData();
+			}
+		});
+	}
+
+	/**
+	 * Returns the certificate chain without blocking the calling thread, see
+	 * {@link #getCertificateChain()}.
+	 * 
+	 * @return the pending certificate chain, cancelling it stops the read at
+	 *         its next APDU
+	 */
+	public CompletableFuture<CertificateChain> getCertificateChainAsync() {
+		return async(TaskPriority.BULK, new ReaderTask<CertificateChain>() {
+			public CertificateChain execute(final BeID eID) throws Exception {
+				return eID.getCertificateChain();
+			}
+		});
+	}
+
+	/**
+	 * Submits the given operation to the worker of the reader in the pool of
+	 * the session, see
+	 * {@link sopra.belgium.eid.metier.ReaderPool#submit(String, ReaderTask, TaskPriority, long)}.
+	 * The worker connects again and retries when the card has been reset,
+	 * stops the operation when its result is cancelled and releases the card
+	 * if the operation left it locked.
+	 * 
+	 * @param priority
+	 *            is the priority class of the operation
+	 * @param task
+	 *            is the operation to perform on the card
+	 * @return the pending result of the operation, failed with an
+	 *         IllegalStateException when the session doesn't belong to a pool
+	 */
+	<T> CompletableFuture<T> async(final TaskPriority priority,
+			final ReaderTask<T> task) {
+		final ReaderPool current = pool;
+		try {
+			if (current == null) {
+				throw new IllegalStateException(
+						"The session doesn't belong to a reader pool");
+			}
+			return current.submit(getTerminal().getName(), task, priority, 0);
+		} catch (Exception e) {
+			// The reader has been removed in the meantime
+			final CompletableFuture<T> failed = new CompletableFuture<T>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
 	/**
 	 * Returns the national register certificate.
 	 * 
@@ -338,20 +705,50 @@ public class BeID extends SmartCard {
 			
 			return true;
 		} else {
-			
-			// Verify the root certificate
-		    final Certificate root = getCertificateChain().getRootCert();
-			final Certificate cert = new HardCodedRootCertificate();
-			final Certificate certV2 = new HardCodedRootCertificateV2();
-
-			if (root.getX509Certificate().equals(cert.getX509Certificate()) ||
-			        root.getX509Certificate().equals(certV2.getX509Certificate())) {
-				return true;
-			} else {
-				this.getCertificateChain().getRootCert().setStatus(
-						CertificateStatus.BEID_CERTSTATUS_INVALID_ROOT);
-				return false;
+			// Only the root is needed, not the whole chain
+			final RootCertificate root;
+			try {
+				root = new RootCertificate(this);
+			} catch (CardNotFoundException e) {
+				throw new EIDException(e);
+			} catch (CardException e) {
+				throw new EIDException(e);
 			}
+			root.verify();
+			return verifyRoot(root);
+		}
+	}
+
+	/**
+	 * Verifies the given root certificate that has been read from the smart
+	 * card against the trusted root certificates, see
+	 * {@link sopra.belgium.eid.security.TrustedRoots}. A trusted root is
+	 * marked as validated.
+	 * 
+	 * @param root
+	 *            is the root certificate read from the card
+	 * @return whether the verification succeeded or not
+	 * @throws IOException
+	 *             when the certificate couldn't be parsed because the file
+	 *             system is read only
+	 * @throws CertificateException
+	 *             when the instance couldn't be parsed
+	 */
+	private boolean verifyRoot(final RootCertificate root)
+			throws CertificateException, IOException {
+		if (enableTestCard) {
+			// Test card can't verify signatures correctly so always reply with
+			// true
+			return true;
+		}
+
+		// The root of the card is looked up by its fingerprint
+		if (TrustedRoots.getDefault().isTrusted(root)) {
+			root.setStatus(CertificateStatus.BEID_CERTSTATUS_CERT_VALIDATED_OK);
+			return true;
+		} else {
+			root.setStatus(CertificateStatus.BEID_CERTSTATUS_INVALID_ROOT);
+			return false;
 		}
 	}
 
@@ -382,31 +779,350 @@ public class BeID extends SmartCard {
 	private boolean verifyRNSignature(final byte[] data, final byte[] signature)
 			throws EIDException, CertificateException, IOException,
 			InvalidKeyException, NoSuchAlgorithmException, SignatureException {
+		final RNCertificate rn = this.getNationalRegisterCertificate();
+		return verifyRNPath(rn, null) && verifyRNSignature(rn, data, signature);
+	}
+
+	/**
+	 * Validates the path from the given national register certificate to the
+	 * root that has issued it, see
+	 * {@link sopra.belgium.eid.security.CertificateValidator}. The
+	 * certificates of a test card aren't validated, like its root.
+	 * 
+	 * @param rn
+	 *            is the national register certificate read from the card
+	 * @param root
+	 *            is the root certificate read from the card, null to use the
+	 *            trusted root that issued the RN certificate
+	 * @return whether the RN certificate is valid
+	 * @throws CertificateException
+	 *             when a certificate couldn't be parsed
+	 * @throws IOException
+	 *             when a certificate couldn't be parsed because the file system
+	 *             is read only
+	 */
+	private boolean verifyRNPath(final RNCertificate rn,
+			final Certificate root) throws CertificateException, IOException {
+		if (enableTestCard) {
+			// Test card can't verify signatures correctly so always reply with
+			// true
+			return true;
+		}
+		final Certificate issuer = (root != null) ? root : TrustedRoots
+				.getDefault().getIssuer(rn);
+		if (issuer == null) {
+			rn.setStatus(CertificateStatus.BEID_CERTSTATUS_UNABLE_TO_GET_ISSUER_CERT_LOCALLY);
+			return false;
+		}
+		return CertificateValidator.validatePath(true, rn, issuer);
+	}
+
+	/**
+	 * Verifies the data against the signature using the public key of the
+	 * given national register certificate and the algorithm SHA1withRSA.
+	 * 
+	 * @param rn
+	 *            is the national register certificate read from the card
+	 * @param data
+	 *            is the data to verify
+	 * @param signature
+	 *            is the signature to verify against the data
+	 * @return whether the verification succeeded or not
+	 * @throws CertificateException
+	 *             when the instance couldn't be parsed
+	 * @throws IOException
+	 *             is the verification failed because of IO fault
+	 * @throws InvalidKeyException
+	 *             when the public key is invalid
+	 * @throws NoSuchAlgorithmException
+	 *             when the SHA1withRSA algorithm isn't supported
+	 * @throws SignatureException
+	 *             when the signature is invalid
+	 */
+	private boolean verifyRNSignature(final RNCertificate rn,
+			final byte[] data, final byte[] signature)
+			throws CertificateException, IOException, InvalidKeyException,
+			NoSuchAlgorithmException, SignatureException {
 		// Verify the RRNDN of the national register certificate if card is no
 		// testcard, then verify the data against the signature using the public
 		// key
-		if (enableTestCard || this.getNationalRegisterCertificate().verify()) {
-			// Initialize signature with correct algorithm
-			Signature sig = null;
+		if (enableTestCard || rn.verify()) {
+			// Fetch public key of correct certificate, parsed once
+			return verifySignature(rn.getX509Certificate().getPublicKey(),
+					data, signature);
+		}
+
+		// Failed
+		return false;
+	}
+
+	/**
+	 * Verifies the data against the signature using the given public key and
+	 * the algorithm SHA1withRSA, with the signature engine of the thread.
+	 * 
+	 * @param key
+	 *            is the public key of the national register certificate
+	 * @param data
+	 *            is the data to verify
+	 * @param signature
+	 *            is the signature to verify against the data
+	 * @return whether the verification succeeded or not
+	 * @throws InvalidKeyException
+	 *             when the public key is invalid
+	 * @throws NoSuchAlgorithmException
+	 *             when the SHA1withRSA algorithm isn't supported
+	 * @throws SignatureException
+	 *             when the signature is invalid
+	 */
+	private static boolean verifySignature(final PublicKey key,
+			final byte[] data, final byte[] signature)
+			throws InvalidKeyException, NoSuchAlgorithmException,
+			SignatureException {
+		final Signature sig = CryptoEngines.signature("SHA1withRSA");
+		sig.initVerify(key);
+		sig.update(data, 0, data.length);
+		return sig.verify(signature);
+	}
+
+	/**
+	 * Reads a file of a snapshot through the reused snapshot buffer, so that
+	 * only the contents of the file itself is allocated.
+	 * 
+	 * @param fileID
+	 *            is the identifier for the file to read
+	 * @param maxOutputLength
+	 *            is the maximum length of the file
+	 * @return the contents of the file
+	 * @throws CardNotFoundException
+	 *             indicates that the card wasn't present in the system or was
+	 *             reset
+	 * @throws CardException
+	 *             if the card operation failed
+	 */
+	private byte[] readSnapshotFile(final byte[] fileID,
+			final int maxOutputLength) throws CardNotFoundException,
+			CardException {
+		return readSnapshotFile(fileID, maxOutputLength, null);
+	}
+
+	/**
+	 * Reads a file of a snapshot into the snapshot buffer, see
+	 * {@link #readSnapshotFile(byte[], int)}, stopping as soon as the given
+	 * listener has seen enough of the file.
+	 * 
+	 * @param fileID
+	 *            is the identifier for the file to read
+	 * @param maxOutputLength
+	 *            is the maximum length of the file
+	 * @param listener
+	 *            is notified of every block read, null to read the whole file
+	 * @return the bytes read from the file
+	 * @throws CardNotFoundException
+	 *             when no connection with the card has been made yet
+	 * @throws CardException
+	 *             if the card operation failed
+	 */
+	private byte[] readSnapshotFile(final byte[] fileID,
+			final int maxOutputLength, final BlockListener listener)
+			throws CardNotFoundException, CardException {
+		if (snapshotBuffer == null) {
+			snapshotBuffer = ByteBuffer.allocate(IDPhoto.MAX_LEN);
+		}
+		snapshotBuffer.clear();
+		snapshotBuffer.limit(Math.min(maxOutputLength, snapshotBuffer
+				.capacity()));
+		final int length = super.readFile(fileID, snapshotBuffer, listener);
+		return Arrays.copyOf(snapshotBuffer.array(), length);
+	}
+
+	/**
+	 * Reads the given files inside a single exclusive transaction, so that the
+	 * card can't change in between.
+	 * 
+	 * @param files
+	 *            are the files to read, in the order of reading
+	 * @return the contents of the files mapped by file
+	 * @throws CardNotFoundException
+	 *             when no connection with the card has been made yet
+	 * @throws CardException
+	 *             if the card operation failed
+	 */
+	@SuppressWarnings("try")
+	private Map<CardFile, byte[]> readFiles(final Set<CardFile> files)
+			throws CardNotFoundException, CardException {
+		final Map<CardFile, byte[]> read = new EnumMap<CardFile, byte[]>(
+				CardFile.class);
+		try (Transaction transaction = transaction()) {
+			for (CardFile file : files) {
+				read.put(file, readSnapshotFile(file.getPath(),
+						file.getMaxLength()));
+			}
+		}
+		return read;
+	}
+
+	/**
+	 * Verifies the root certificate and the signatures of the ID file and of
+	 * the address file among the given files, as far as they have been read,
+	 * and the hash of the photo. The certification path of the national
+	 * register certificate is validated first; the signatures and the hash
+	 * don't depend on each other and are verified at the same time, one on the
+	 * calling thread and the others on the common pool.
+	 * 
+	 * @param read
+	 *            contains the contents of the files read mapped by file
+	 * @param root
+	 *            is the root certificate read from the card
+	 * @param rn
+	 *            is the national register certificate read from the card
+	 * @param photo
+	 *            is the photo read from the card, null if not read
+	 * @param photoHash
+	 *            is the hash of the photo found in the ID file, null if not
+	 *            read
+	 * @throws Exception
+	 *             when the root, a signature or the hash couldn't be verified
+	 */
+	private void verifySignatures(final Map<CardFile, byte[]> read,
+			final RootCertificate root, final RNCertificate rn,
+			final IDPhoto photo, final byte[] photoHash) throws Exception {
+		if (!verifyRoot(root)) {
+			exception = "The root not verified";
+			throw new RootVerificationException();
+		}
+		if (!verifyRNPath(rn, root)) {
+			exception = "The RN certificate couldn't be validated against the root";
+			throw new SignatureVerificationException("RN");
+		}
+
+		// Checked once for every signature of the card
+		final boolean rnValid = enableTestCard || rn.verify();
+		final PublicKey key = rn.getX509Certificate().getPublicKey();
+		final byte[] readIDSignature = read.get(CardFile.ID_SIGNATURE);
+
+		final Map<String, Callable<Boolean>> checks = new LinkedHashMap<String, Callable<Boolean>>();
+		if (read.containsKey(CardFile.ID)) {
+			checks.put("ID", new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					return rnValid
+							&& verifySignature(key, read.get(CardFile.ID),
+									readIDSignature);
+				}
+			});
+		}
+		if (read.containsKey(CardFile.ADDRESS)) {
+			checks.put("Address", new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					return rnValid
+							&& verifySignature(key, concat(
+									trimTrailingZeroes(read
+											.get(CardFile.ADDRESS)),
+									readIDSignature), read
+									.get(CardFile.ADDRESS_SIGNATURE));
+				}
+			});
+		}
+		if (photo != null) {
+			checks.put("Photo", new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					return photo.verifyHash(photoHash);
+				}
+			});
+		}
+
+		// Fork every check but the first, which runs on this thread
+		final List<String> names = new ArrayList<String>(checks.keySet());
+		final List<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>();
+		for (int i = 1; i < names.size(); i++) {
+			final Callable<Boolean> check = checks.get(names.get(i));
+			results.add(CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+				public Boolean get() {
+					try {
+						return check.call();
+					} catch (Exception e) {
+						throw new CompletionException(e);
+					}
+				}
+			}, ForkJoinPool.commonPool()));
+		}
+		if (!names.isEmpty()) {
+			results.add(0, CompletableFuture.completedFuture(checks.get(
+					names.get(0)).call()));
+		}
+
+		// Report the first failure in the order of the checks
+		for (int i = 0; i < names.size(); i++) {
+			final boolean verified;
 			try {
-				
-				sig = Signature.getInstance("SHA1withRSA");
-				
-			} catch (NoSuchAlgorithmException e) {
-				// Shouldn't occur
+				verified = results.get(i).join().booleanValue();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				}
 				throw e;
 			}
+			if (!verified) {
+				final String name = names.get(i);
+				if ("Photo".equals(name)) {
+					throw new HashVerificationException(name);
+				}
+				exception = "The data of the " + name
+						+ " couldn't be verified correctly against it's signature";
+				throw new SignatureVerificationException(name);
+			}
+		}
+	}
+
+	/**
+	 * Returns a listener feeding every block read to the given decoder, which
+	 * stops the read once the tags asked for are complete.
+	 * 
+	 * @param decoder
+	 *            is the decoder of the file
+	 * @return the listener of the read
+	 */
+	private static BlockListener listener(final TLVDecoder decoder) {
+		return new BlockListener() {
+			public boolean blockRead(final ByteBuffer block) {
+				return decoder.feed(block);
+			}
+		};
+	}
 
-			// Fetch public key of correct certificate
-			PublicKey pk = this.getNationalRegisterCertificate()
-					.getX509Certificate().getPublicKey();
-			// Verify signature and return results
-			sig.initVerify(pk);
-			sig.update(data, 0, data.length);
-			return sig.verify(signature);
+	/**
+	 * Returns a copy of the given data without its trailing zeroes. Files on
+	 * the card are padded with zeroes that aren't covered by the signature.
+	 * 
+	 * @param data
+	 *            is the data to trim
+	 * @return the trimmed data
+	 */
+	private static byte[] trimTrailingZeroes(final byte[] data) {
+		int indexLastNonZero = -1;
+		for (int i = data.length - 1; i >= 0; i--) {
+			if (data[i] != 0) {
+				indexLastNonZero = i;
+				break;
+			}
 		}
+		final byte[] trimmed = new byte[indexLastNonZero + 1];
+		System.arraycopy(data, 0, trimmed, 0, indexLastNonZero + 1);
+		return trimmed;
+	}
 
-		// Failed
-		return false;
+	/**
+	 * Returns the concatenation of the two given arrays.
+	 * 
+	 * @param first
+	 *            is the data to put first
+	 * @param second
+	 *            is the data to append
+	 * @return the concatenated data
+	 */
+	private static byte[] concat(final byte[] first, final byte[] second) {
+		final byte[] result = new byte[first.length + second.length];
+		System.arraycopy(first, 0, result, 0, first.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
 	}
-}
\ No newline at end of file
+}
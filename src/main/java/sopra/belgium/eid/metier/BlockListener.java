@@ -0,0 +1,22 @@
+package sopra.belgium.eid.metier;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The block listener interface is notified of every block of a file read by
+ * {@link sopra.belgium.eid.metier.SmartCard#readFile(byte[], ByteBuffer, BlockListener)}
+ * and decides whether the rest of the file has to be read.
+ */
+public interface BlockListener {
+
+	/**
+	 * Indicates that a block of the file has been read.
+	 * 
+	 * @param block
+	 *            contains the bytes of the block between its position and its
+	 *            limit, it may not be changed
+	 * @return whether enough of the file has been read, to stop reading
+	 */
+	boolean blockRead(ByteBuffer block);
+
+}
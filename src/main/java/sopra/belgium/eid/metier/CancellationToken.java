@@ -0,0 +1,30 @@
+package sopra.belgium.eid.metier;
+
+/**
+ * The CancellationToken class tells an operation on the card that its result
+ * isn't needed anymore. The {@link sopra.belgium.eid.metier.SmartCard} checks
+ * the token of the operation in progress before every APDU, so that a
+ * cancelled operation stops at the next APDU instead of reading the rest of
+ * its files.
+ */
+public class CancellationToken {
+
+	/** Indicates whether the operation has been cancelled */
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Cancels the operation.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Indicates whether the operation has been cancelled.
+	 *
+	 * @return whether the operation has been cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
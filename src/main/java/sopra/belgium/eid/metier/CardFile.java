@@ -0,0 +1,78 @@
+package sopra.belgium.eid.metier;
+
+import sopra.belgium.eid.objects.IDAddress;
+import sopra.belgium.eid.objects.IDData;
+import sopra.belgium.eid.objects.IDPhoto;
+import sopra.belgium.eid.security.Certificate;
+import sopra.belgium.eid.security.RNCertificate;
+import sopra.belgium.eid.security.RootCertificate;
+
+/**
+ * Contains the files of the card that are read to take a snapshot, in the
+ * order they are read: the files of the ID directory first, then the
+ * certificates.
+ */
+public enum CardFile {
+
+	ID(IDData.fgDFID, IDData.fgDataTag, IDData.fgDataTagID, IDData.MAX_LEN),
+
+	ID_SIGNATURE(IDData.fgDFID, IDData.fgDataTag, IDData.fgDataTagIDSIG,
+			IDData.fgMAX_SIGNATURE_LEN),
+
+	ADDRESS(IDAddress.fgDFID, IDAddress.fgDataTag, IDAddress.fgDataTagADDR,
+			IDAddress.MAX_LEN),
+
+	ADDRESS_SIGNATURE(IDAddress.fgDFID, IDAddress.fgDataTag,
+			IDAddress.fgDataTagADDRSIG, IDAddress.fgMAX_SIGNATURE_LEN),
+
+	PHOTO(IDPhoto.fgDFID, IDPhoto.fgDataTag, IDPhoto.fgDataTagPHOTO,
+			IDPhoto.MAX_LEN),
+
+	RN_CERTIFICATE(Certificate.fgDFCert, RNCertificate.fgRN[0],
+			RNCertificate.fgRN[1], Certificate.fgMAX_CERT_LEN),
+
+	ROOT_CERTIFICATE(Certificate.fgDFCert, RootCertificate.fgRoot[0],
+			RootCertificate.fgRoot[1], Certificate.fgMAX_CERT_LEN);
+
+	/** Contains the full path of the file, directory included */
+	private final byte[] path;
+
+	/** Contains the maximum length of the file */
+	private final int maxLength;
+
+	/**
+	 * Initializes the file.
+	 *
+	 * @param df
+	 *            is the identifier of the directory of the file
+	 * @param ef1
+	 *            is the first byte of the identifier of the file
+	 * @param ef2
+	 *            is the second byte of the identifier of the file
+	 * @param maxLength
+	 *            is the maximum length of the file
+	 */
+	private CardFile(final byte[] df, final byte ef1, final byte ef2,
+			final int maxLength) {
+		this.path = new byte[] { df[0], df[1], ef1, ef2 };
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Returns the full path of the file.
+	 *
+	 * @return the path, directory included
+	 */
+	public byte[] getPath() {
+		return path.clone();
+	}
+
+	/**
+	 * Returns the maximum length of the file.
+	 *
+	 * @return the maximum number of bytes to read
+	 */
+	public int getMaxLength() {
+		return maxLength;
+	}
+}
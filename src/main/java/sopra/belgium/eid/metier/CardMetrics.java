@@ -0,0 +1,304 @@
+package sopra.belgium.eid.metier;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * The CardMetrics class contains the meters of the smart card layer. They are
+ * registered in the global Micrometer registry, to which Spring Boot adds the
+ * registry exposed by the actuator, so that the layer doesn't depend on Spring.
+ * <br />
+ * The meters tell where the time of a read goes: every APDU is timed per
+ * instruction, selected file, status word and reader, every file read is
+ * measured per file and reader, and the verification of the read data is
+ * timed separately.
+ */
+public class CardMetrics {
+
+	/** Contains the name of the timer of the exchanged APDUs */
+	public static final String fgAPDU = "eid.apdu";
+
+	/** Contains the name of the counter of APDUs that failed to transmit */
+	public static final String fgAPDU_FAILURES = "eid.apdu.failures";
+
+	/** Contains the name of the timer of the file reads */
+	public static final String fgFILE_READ = "eid.file.read";
+
+	/** Contains the name of the summary of the bytes read per file */
+	public static final String fgFILE_BYTES = "eid.file.bytes";
+
+	/** Contains the name of the summary of the blocks read per file */
+	public static final String fgFILE_BLOCKS = "eid.file.blocks";
+
+	/** Contains the name of the timer of the verification of the read data */
+	public static final String fgVERIFICATION = "eid.verification";
+
+	/** Contains the name of the gauge of the delay learned between two reads */
+	public static final String fgPACING = "eid.reader.pacing";
+
+	/** Contains the name of the timer of the exclusive locks held on a card */
+	public static final String fgLOCK = "eid.reader.lock";
+
+	/** Contains the name of the counter of the locks left held by a task */
+	public static final String fgLOCK_LEAKED = "eid.reader.lock.leaked";
+
+	/** Contains the name of the counter of the operations cancelled on a card */
+	public static final String fgCANCELLED = "eid.reader.cancelled";
+
+	/** Contains the name of the counter of the tasks dropped at their deadline */
+	public static final String fgEXPIRED = "eid.reader.expired";
+
+	/** Contains the name of the counter of the reads asked for by requests */
+	public static final String fgREADS = "eid.snapshot.reads";
+
+	/** Contains the name of the counter of the lookups in the snapshot cache */
+	public static final String fgCACHE = "eid.snapshot.cache";
+
+	/** Contains the name of the counter of the revocation checks */
+	public static final String fgREVOCATION = "eid.revocation";
+
+	/** Contains the file tag of an APDU sent before any file is selected */
+	public static final String fgNO_FILE = "none";
+
+	/**
+	 * Not to be instantiated.
+	 */
+	private CardMetrics() {
+	}
+
+	/**
+	 * Registers an APDU exchanged with the card.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @param ins
+	 *            is the instruction of the command
+	 * @param file
+	 *            is the selected file, see {@link #fileTag(byte[])}
+	 * @param sw
+	 *            is the status word of the response
+	 * @param nanos
+	 *            is the time (in nanoseconds) the card took to respond
+	 */
+	public static void apdu(final String readerName, final int ins,
+			final String file, final int sw, final long nanos) {
+		Timer.builder(fgAPDU)
+				.description("Time the card takes to respond to an APDU")
+				.tag("ins", String.format("%02X", ins)).tag("file", file)
+				.tag("sw", swTag(sw)).tag("reader", readerName)
+				.register(Metrics.globalRegistry)
+				.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Registers an APDU that the reader failed to transmit.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @param ins
+	 *            is the instruction of the command
+	 * @param file
+	 *            is the selected file, see {@link #fileTag(byte[])}
+	 */
+	public static void apduFailure(final String readerName, final int ins,
+			final String file) {
+		Metrics.globalRegistry.counter(fgAPDU_FAILURES, "ins",
+				String.format("%02X", ins), "file", file, "reader", readerName)
+				.increment();
+	}
+
+	/**
+	 * Registers a file that has been read completely.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @param file
+	 *            is the file that has been read, see {@link #fileTag(byte[])}
+	 * @param bytes
+	 *            is the number of bytes read
+	 * @param blocks
+	 *            is the number of READ BINARY commands sent
+	 * @param nanos
+	 *            is the time (in nanoseconds) reading the file took
+	 */
+	public static void fileRead(final String readerName, final String file,
+			final int bytes, final int blocks, final long nanos) {
+		Timer.builder(fgFILE_READ)
+				.description("Time it takes to read a file from the card")
+				.tag("file", file).tag("reader", readerName)
+				.register(Metrics.globalRegistry)
+				.record(nanos, TimeUnit.NANOSECONDS);
+		DistributionSummary.builder(fgFILE_BYTES)
+				.description("Number of bytes read from a file").baseUnit("bytes")
+				.tag("file", file).tag("reader", readerName)
+				.register(Metrics.globalRegistry).record(bytes);
+		DistributionSummary.builder(fgFILE_BLOCKS)
+				.description("Number of blocks read from a file")
+				.tag("file", file).tag("reader", readerName)
+				.register(Metrics.globalRegistry).record(blocks);
+	}
+
+	/**
+	 * Registers the verification of the data read from a card.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @param verified
+	 *            indicates whether the data has been verified successfully
+	 * @param nanos
+	 *            is the time (in nanoseconds) the verification took
+	 */
+	public static void verification(final String readerName,
+			final boolean verified, final long nanos) {
+		Timer.builder(fgVERIFICATION)
+				.description("Time it takes to verify the data read from a card")
+				.tag("result", verified ? "success" : "failure")
+				.tag("reader", readerName).register(Metrics.globalRegistry)
+				.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Registers the gauge of the delay learned by the pacing of a reader, see
+	 * {@link ReadPacing}.
+	 *
+	 * @param pacing
+	 *            is the pacing of the reader
+	 */
+	public static void pacing(final ReadPacing pacing) {
+		Gauge.builder(fgPACING, pacing, new ToDoubleFunction<ReadPacing>() {
+			public double applyAsDouble(final ReadPacing value) {
+				return value.getDelay();
+			}
+		}).description("Delay respected between two reads on a reader")
+				.baseUnit("milliseconds").tag("reader", pacing.getReaderName())
+				.register(Metrics.globalRegistry);
+	}
+
+	/**
+	 * Registers an exclusive lock on a card that has been released.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @param nanos
+	 *            is the time (in nanoseconds) the lock has been held
+	 */
+	public static void lockHeld(final String readerName, final long nanos) {
+		Timer.builder(fgLOCK)
+				.description("Time a card stays locked by a transaction")
+				.tag("reader", readerName).register(Metrics.globalRegistry)
+				.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Registers a lock found held after the task that took it, or held for
+	 * longer than allowed.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @param reason
+	 *            is "unreleased" when the task ended with the lock held,
+	 *            "stalled" when the lock has been held for too long
+	 */
+	public static void lockLeaked(final String readerName, final String reason) {
+		Metrics.globalRegistry.counter(fgLOCK_LEAKED, "reason", reason,
+				"reader", readerName).increment();
+	}
+
+	/**
+	 * Registers an operation on a card that has been stopped because it was
+	 * cancelled. Cancellations aren't failures, they aren't counted with them.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 */
+	public static void cancelled(final String readerName) {
+		Metrics.globalRegistry.counter(fgCANCELLED, "reader", readerName)
+				.increment();
+	}
+
+	/**
+	 * Registers a task that has been dropped because its deadline passed
+	 * before it could start.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @param priority
+	 *            is the priority class of the task
+	 */
+	public static void expired(final String readerName, final String priority) {
+		Metrics.globalRegistry.counter(fgEXPIRED, "priority", priority,
+				"reader", readerName).increment();
+	}
+
+	/**
+	 * Registers a read asked for by a request.
+	 *
+	 * @param coalesced
+	 *            indicates whether the read shares the result of the same
+	 *            read in progress instead of being performed
+	 */
+	public static void read(final boolean coalesced) {
+		Metrics.globalRegistry.counter(fgREADS, "outcome",
+				coalesced ? "coalesced" : "executed").increment();
+	}
+
+	/**
+	 * Registers a lookup of a card in the snapshot cache.
+	 *
+	 * @param hit
+	 *            indicates whether the snapshot of the card was cached
+	 */
+	public static void cache(final boolean hit) {
+		Metrics.globalRegistry.counter(fgCACHE, "result",
+				hit ? "hit" : "miss").increment();
+	}
+
+	/**
+	 * Registers the check of a certificate against the revocation list of its
+	 * issuer.
+	 *
+	 * @param result
+	 *            is "good", "revoked", "stale" when the list is stale or
+	 *            "unavailable" when there is no valid list
+	 */
+	public static void revocation(final String result) {
+		Metrics.globalRegistry.counter(fgREVOCATION, "result", result)
+				.increment();
+	}
+
+	/**
+	 * Returns the tag of the given file, its identifier in hexadecimal format.
+	 *
+	 * @param fileID
+	 *            is the identifier of the file
+	 * @return the tag of the file
+	 */
+	public static String fileTag(final byte[] fileID) {
+		final StringBuilder tag = new StringBuilder(fileID.length * 2);
+		for (byte b : fileID) {
+			tag.append(String.format("%02X", b & 0xFF));
+		}
+		return tag.toString();
+	}
+
+	/**
+	 * Returns the tag of the given status word. The status words carrying a
+	 * length in SW2 are grouped so that the number of tags stays small.
+	 *
+	 * @param sw
+	 *            is the status word
+	 * @return the tag of the status word
+	 */
+	private static String swTag(final int sw) {
+		final int sw1 = sw >> 8;
+		if ((sw1 == 0x61) || (sw1 == 0x6C)) {
+			return String.format("%02XXX", sw1);
+		}
+		return String.format("%04X", sw);
+	}
+}
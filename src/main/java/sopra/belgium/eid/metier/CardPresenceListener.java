@@ -0,0 +1,27 @@
+package sopra.belgium.eid.metier;
+
+/**
+ * The CardPresenceListener interface is notified by the
+ * {@link sopra.belgium.eid.metier.CardPresenceMonitor} when a card is inserted
+ * in or removed from a smart card reader. The notifications come from the
+ * thread of the monitor, so they have to return quickly.
+ */
+public interface CardPresenceListener {
+
+	/**
+	 * Indicates that a smart card has been inserted in a reader.
+	 *
+	 * @param state
+	 *            is the state of the reader with the inserted card
+	 */
+	void cardInserted(ReaderState state);
+
+	/**
+	 * Indicates that the card has been removed from a reader, or that the
+	 * reader itself has been removed.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 */
+	void cardRemoved(String readerName);
+}
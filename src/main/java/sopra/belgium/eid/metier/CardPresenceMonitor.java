@@ -0,0 +1,315 @@
+package sopra.belgium.eid.metier;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import sopra.belgium.eid.util.FormattedTLV;
+
+/**
+ * The CardPresenceMonitor class keeps track of the state of every smart card
+ * reader attached to the system. A background thread waits for changes in the
+ * readers and updates the state of a reader as soon as a card is inserted or
+ * removed, so that the presence of a card can be asked for without talking to
+ * PC/SC at all. When a card is inserted, its ATR is fetched without disturbing
+ * the connection a reader worker may already have, see
+ * {@link SmartCard#readATR(CardTerminal)}. The registered
+ * {@link sopra.belgium.eid.metier.CardPresenceListener}s are notified of every
+ * insertion and removal.
+ */
+@Component
+@DependsOn("eidProperties")
+public class CardPresenceMonitor implements Runnable {
+
+	/** Contains the time (in milliseconds) to wait for a change at once */
+	public static final long fgWAIT_TIMEOUT = 1000;
+
+	/** Contains the time (in milliseconds) to wait when PC/SC isn't available */
+	public static final long fgRETRY_DELAY = 5000;
+
+	/** Contains the last known state of every reader mapped by name */
+	private final Map<String, ReaderState> states = new ConcurrentHashMap<String, ReaderState>();
+
+	/** Contains the listeners notified of insertions and removals */
+	private final List<CardPresenceListener> listeners = new CopyOnWriteArrayList<CardPresenceListener>();
+
+	/** Contains the thread that waits for changes in the readers */
+	private Thread thread;
+
+	/** Indicates whether the monitor has to keep on running */
+	private volatile boolean running;
+
+	/**
+	 * Reads the state of the readers once and starts waiting for changes in
+	 * the background.
+	 */
+	@PostConstruct
+	public void start() {
+		running = true;
+		try {
+			update(terminals());
+		} catch (Exception e) {
+			// The background thread keeps on trying
+			System.err.println(e);
+		}
+		thread = new Thread(this, "eid-card-presence-monitor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops waiting for changes in the readers.
+	 */
+	@PreDestroy
+	public void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		while (running) {
+			try {
+				final CardTerminals terminals = terminals();
+				while (running) {
+					terminals.waitForChange(fgWAIT_TIMEOUT);
+					update(terminals);
+				}
+			} catch (Exception e) {
+				// No readers or PC/SC isn't available, try again later
+				for (String name : new ArrayList<String>(states.keySet())) {
+					final ReaderState previous = states.remove(name);
+					if ((previous != null) && previous.isCardPresent()) {
+						fireRemoved(name);
+					}
+				}
+				try {
+					Thread.sleep(fgRETRY_DELAY);
+				} catch (InterruptedException e1) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Registers a listener to notify of insertions and removals. The listener
+	 * is told about the cards that are inserted already right away.
+	 *
+	 * @param listener
+	 *            is the listener to register
+	 */
+	public void addListener(final CardPresenceListener listener) {
+		listeners.add(listener);
+		for (ReaderState state : states.values()) {
+			if (state.isCardPresent() && state.isSmartCard()) {
+				listener.cardInserted(state);
+			}
+		}
+	}
+
+	/**
+	 * Unregisters a listener.
+	 *
+	 * @param listener
+	 *            is the listener to unregister
+	 */
+	public void removeListener(final CardPresenceListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Indicates whether at least one reader is attached to the system.
+	 *
+	 * @return whether there are readers
+	 */
+	public boolean hasReaders() {
+		return !states.isEmpty();
+	}
+
+	/**
+	 * Indicates whether one of the readers contains a card with which a
+	 * connection could be made.
+	 *
+	 * @return whether a smart card is present
+	 */
+	public boolean isSmartCardPresent() {
+		for (ReaderState state : states.values()) {
+			if (state.isCardPresent() && state.isSmartCard()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the last known state of the reader with the given name.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @return the state of the reader, null if the reader isn't known
+	 */
+	public ReaderState getState(final String readerName) {
+		return states.get(readerName);
+	}
+
+	/**
+	 * Returns the last known state of every reader.
+	 *
+	 * @return the states of the readers
+	 */
+	public Collection<ReaderState> getStates() {
+		return new ArrayList<ReaderState>(states.values());
+	}
+
+	/**
+	 * Returns the readers of the system.
+	 *
+	 * @return the readers
+	 * @throws Exception
+	 *             when PC/SC isn't available
+	 */
+	private CardTerminals terminals() throws Exception {
+		return SmartCard.terminalFactory().terminals();
+	}
+
+	/**
+	 * Updates the state of every reader that changed since the last update.
+	 *
+	 * @param terminals
+	 *            are the readers of the system
+	 * @throws CardException
+	 *             when the readers couldn't be listed
+	 */
+	private void update(final CardTerminals terminals) throws CardException {
+		// A card can be removed and inserted again between two updates
+		final Set<String> insertions = new HashSet<String>();
+		for (CardTerminal terminal : terminals
+				.list(CardTerminals.State.CARD_INSERTION)) {
+			insertions.add(terminal.getName());
+		}
+
+		final List<CardTerminal> list = terminals.list();
+		final Set<String> names = new HashSet<String>();
+		for (CardTerminal terminal : list) {
+			final String name = terminal.getName();
+			names.add(name);
+
+			final boolean present = terminal.isCardPresent();
+			final ReaderState previous = states.get(name);
+			if ((previous != null) && (previous.isCardPresent() == present)
+					&& !(present && insertions.contains(name))) {
+				// Nothing changed in this reader
+				continue;
+			}
+
+			if (present) {
+				final ReaderState state = inserted(terminal);
+				states.put(name, state);
+				if ((previous != null) && previous.isCardPresent()) {
+					// The card has been replaced since the last update
+					fireRemoved(name);
+				}
+				if (state.isSmartCard()) {
+					fireInserted(state);
+				}
+			} else {
+				states.put(name, new ReaderState(name, false, false, null, null));
+				if (previous != null) {
+					fireRemoved(name);
+				}
+			}
+		}
+		for (String name : new ArrayList<String>(states.keySet())) {
+			if (!names.contains(name)) {
+				// The reader itself has been removed
+				final ReaderState previous = states.remove(name);
+				if (previous.isCardPresent()) {
+					fireRemoved(name);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Notifies the listeners of the insertion of a card.
+	 *
+	 * @param state
+	 *            is the state of the reader with the inserted card
+	 */
+	private void fireInserted(final ReaderState state) {
+		for (CardPresenceListener listener : listeners) {
+			try {
+				listener.cardInserted(state);
+			} catch (RuntimeException e) {
+				// A failing listener mustn't stop the monitor
+				System.err.println(e);
+			}
+		}
+	}
+
+	/**
+	 * Notifies the listeners of the removal of a card.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 */
+	private void fireRemoved(final String readerName) {
+		for (CardPresenceListener listener : listeners) {
+			try {
+				listener.cardRemoved(readerName);
+			} catch (RuntimeException e) {
+				// A failing listener mustn't stop the monitor
+				System.err.println(e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the state of the given reader in which a card has just been
+	 * inserted. Its ATR is fetched through the connection in use, or through a
+	 * connection released without resetting the card.
+	 *
+	 * @param terminal
+	 *            is the reader in which the card has been inserted
+	 * @return the state of the reader
+	 */
+	private ReaderState inserted(final CardTerminal terminal) {
+		final Date now = new Date();
+		try {
+			return new ReaderState(terminal.getName(), true, true, FormattedTLV
+					.hexify(SmartCard.readATR(terminal).getBytes()), now);
+		} catch (CardException e) {
+			// Not a smart card or removed already
+			return new ReaderState(terminal.getName(), true, false, null, now);
+		} catch (RuntimeException e) {
+			// The connection is held by another thread, e.g. locked by a
+			// worker: it is a smart card, its ATR will be known next time
+			System.err.println("ATR of " + terminal.getName()
+					+ " not read: " + e);
+			return new ReaderState(terminal.getName(), true, true, null, now);
+		}
+	}
+}
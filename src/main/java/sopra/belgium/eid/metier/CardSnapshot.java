@@ -0,0 +1,189 @@
+package sopra.belgium.eid.metier;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import sopra.belgium.eid.objects.IDAddress;
+import sopra.belgium.eid.objects.IDData;
+import sopra.belgium.eid.objects.IDPhoto;
+import sopra.belgium.eid.security.RNCertificate;
+import sopra.belgium.eid.security.RootCertificate;
+
+/**
+ * The CardSnapshot class contains everything that has been read from a beID
+ * card in a single pass: the identity, the address, the photo and the
+ * certificates needed to verify them. Every file is read exactly once inside
+ * one exclusive transaction and all verifications are performed on the data in
+ * memory afterwards. A snapshot is only created when all verifications
+ * succeeded. When only some parts of the data have been asked for, see
+ * {@link sopra.belgium.eid.metier.ReadPlan}, the other parts are missing.
+ */
+public class CardSnapshot {
+
+	/** Contains the verified ID information */
+	private final IDData idData;
+
+	/** Contains the verified address of the holder of the card */
+	private final IDAddress idAddress;
+
+	/** Contains the verified photo of the holder of the card */
+	private final IDPhoto idPhoto;
+
+	/** Contains the national register certificate used for the verification */
+	private final RNCertificate rnCertificate;
+
+	/** Contains the root certificate of the card */
+	private final RootCertificate rootCertificate;
+
+	/** Contains the number of APDUs that were needed to take the snapshot */
+	private final long apduCount;
+
+	/** Contains the parts of the data of the card that have been asked for */
+	private final Set<SnapshotPart> parts;
+
+	/**
+	 * Initializes the snapshot with the given verified data.
+	 *
+	 * @param idData
+	 *            is the verified ID information
+	 * @param idAddress
+	 *            is the verified address of the holder
+	 * @param idPhoto
+	 *            is the verified photo of the holder
+	 * @param rnCertificate
+	 *            is the national register certificate
+	 * @param rootCertificate
+	 *            is the root certificate
+	 * @param apduCount
+	 *            is the number of APDUs sent to the card to take the snapshot
+	 */
+	public CardSnapshot(final IDData idData, final IDAddress idAddress,
+			final IDPhoto idPhoto, final RNCertificate rnCertificate,
+			final RootCertificate rootCertificate, final long apduCount) {
+		this(idData, idAddress, idPhoto, rnCertificate, rootCertificate,
+				apduCount, EnumSet.allOf(SnapshotPart.class));
+	}
+
+	/**
+	 * Initializes the snapshot with the given verified parts of the data, the
+	 * data of the other parts may be null.
+	 *
+	 * @param idData
+	 *            is the verified ID information
+	 * @param idAddress
+	 *            is the verified address of the holder
+	 * @param idPhoto
+	 *            is the verified photo of the holder
+	 * @param rnCertificate
+	 *            is the national register certificate
+	 * @param rootCertificate
+	 *            is the root certificate
+	 * @param apduCount
+	 *            is the number of APDUs sent to the card to take the snapshot
+	 * @param parts
+	 *            are the parts of the data that have been asked for
+	 */
+	public CardSnapshot(final IDData idData, final IDAddress idAddress,
+			final IDPhoto idPhoto, final RNCertificate rnCertificate,
+			final RootCertificate rootCertificate, final long apduCount,
+			final Set<SnapshotPart> parts) {
+		this.idData = idData;
+		this.idAddress = idAddress;
+		this.idPhoto = idPhoto;
+		this.rnCertificate = rnCertificate;
+		this.rootCertificate = rootCertificate;
+		this.apduCount = apduCount;
+		this.parts = Collections.unmodifiableSet(EnumSet.copyOf(parts));
+	}
+
+	/**
+	 * Returns the ID information of the card.
+	 *
+	 * @return the ID information, null if neither the identity nor the photo
+	 *         has been asked for
+	 */
+	public IDData getIDData() {
+		return idData;
+	}
+
+	/**
+	 * Returns the address of the holder of the card.
+	 *
+	 * @return the address, null if it hasn't been asked for
+	 */
+	public IDAddress getIDAddress() {
+		return idAddress;
+	}
+
+	/**
+	 * Returns the photo of the holder of the card.
+	 *
+	 * @return the photo, null if it hasn't been asked for
+	 */
+	public IDPhoto getIDPhoto() {
+		return idPhoto;
+	}
+
+	/**
+	 * Returns the national register certificate of the card.
+	 *
+	 * @return the RN certificate
+	 */
+	public RNCertificate getRNCertificate() {
+		return rnCertificate;
+	}
+
+	/**
+	 * Returns the root certificate of the card.
+	 *
+	 * @return the root certificate
+	 */
+	public RootCertificate getRootCertificate() {
+		return rootCertificate;
+	}
+
+	/**
+	 * Returns the number of APDUs that were exchanged with the card to take
+	 * this snapshot.
+	 *
+	 * @return the number of APDUs
+	 */
+	public long getAPDUCount() {
+		return apduCount;
+	}
+
+	/**
+	 * Returns the parts of the data of the card that have been asked for.
+	 *
+	 * @return the parts of the snapshot
+	 */
+	public Set<SnapshotPart> getParts() {
+		return parts;
+	}
+
+	/**
+	 * Indicates whether the snapshot contains every part asked for by the
+	 * given plan.
+	 *
+	 * @param plan
+	 *            contains the parts asked for
+	 * @return whether the snapshot satisfies the plan
+	 */
+	public boolean covers(final ReadPlan plan) {
+		return parts.containsAll(plan.getParts());
+	}
+
+	/**
+	 * Returns a snapshot with the same data, taken with the given number of
+	 * APDUs, e.g. when the data comes from a cache.
+	 *
+	 * @param apduCount
+	 *            is the number of APDUs sent to the card
+	 * @return the snapshot with the given number of APDUs
+	 */
+	public CardSnapshot withAPDUCount(final long apduCount) {
+		return new CardSnapshot(idData, idAddress, idPhoto, rnCertificate,
+				rootCertificate, apduCount, parts);
+	}
+}
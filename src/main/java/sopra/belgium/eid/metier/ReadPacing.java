@@ -0,0 +1,189 @@
+package sopra.belgium.eid.metier;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The ReadPacing class contains the delay that is respected between two reads
+ * on a certain smart card reader. Most readers don't need any delay so the
+ * pacing starts without one. Only when the reader reports transient errors
+ * (wrong length, remaining response bytes or a failing transmission) does the
+ * delay back off. After a number of successful reads the delay is lowered step
+ * by step again, but not below the highest delay that caused an error, so
+ * that the pacing settles on the smallest stable delay for that reader. That
+ * bound is itself lowered after a longer run of successful reads: the errors
+ * may have come from a card rather than from the reader, and a reader must
+ * not stay slow for good because of them.
+ * <br />
+ * One pacing exists per reader name and is shared by every connection to that
+ * reader so that the learned delay survives reconnections.
+ */
+public class ReadPacing {
+
+	/** Contains the step (in milliseconds) by which the delay changes */
+	public static final long fgSTEP = 10;
+
+	/** Contains the maximum delay (in milliseconds) between two reads */
+	public static final long fgMAX_DELAY = 200;
+
+	/** Contains the number of successful reads before the delay is lowered */
+	public static final int fgSTABLE_AFTER = 20;
+
+	/**
+	 * Contains the number of successful reads at the lowest delay before that
+	 * delay is lowered as well
+	 */
+	public static final int fgRELAX_AFTER = 50;
+
+	/** Contains the pacing of every reader that has been used */
+	private static final ConcurrentMap<String, ReadPacing> fgPacings = new ConcurrentHashMap<String, ReadPacing>();
+
+	/** Contains the name of the reader the pacing is for */
+	private final String readerName;
+
+	/** Contains the current delay (in milliseconds) between two reads */
+	private long delay = 0;
+
+	/** Contains the smallest delay that didn't cause any error so far */
+	private long lowerBound = 0;
+
+	/** Contains the number of successful reads since the last change */
+	private int successes = 0;
+
+	/** Contains the number of transient errors reported by the reader */
+	private long errors = 0;
+
+	/**
+	 * Returns the pacing for the smart card reader with the given name. The
+	 * pacing is created when the reader is used for the first time.
+	 *
+	 * @param readerName
+	 *            is the name of the smart card reader
+	 * @return the pacing of the reader
+	 */
+	public static ReadPacing forReader(final String readerName) {
+		ReadPacing pacing = fgPacings.get(readerName);
+		if (pacing == null) {
+			final ReadPacing created = new ReadPacing(readerName);
+			pacing = fgPacings.putIfAbsent(readerName, created);
+			if (pacing == null) {
+				pacing = created;
+				CardMetrics.pacing(created);
+			}
+		}
+		return pacing;
+	}
+
+	/**
+	 * Returns the delay that has been learned for every smart card reader
+	 * used so far.
+	 *
+	 * @return the delay in milliseconds mapped by reader name
+	 */
+	public static Map<String, Long> learnedDelays() {
+		final Map<String, Long> delays = new TreeMap<String, Long>();
+		for (ReadPacing pacing : fgPacings.values()) {
+			delays.put(pacing.getReaderName(), pacing.getDelay());
+		}
+		return delays;
+	}
+
+	/**
+	 * Initializes the pacing of the given reader without any delay.
+	 *
+	 * @param readerName
+	 *            is the name of the smart card reader
+	 */
+	private ReadPacing(final String readerName) {
+		this.readerName = readerName;
+	}
+
+	/**
+	 * Waits for the current delay of the reader. Returns immediately when the
+	 * reader doesn't need any delay.
+	 */
+	public void pause() {
+		final long millis = getDelay();
+		if (millis > 0) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Registers a read that went through without any transient error. After
+	 * enough successful reads the delay is lowered by one step, down to the
+	 * lowest delay that didn't cause any error. After more successful reads
+	 * at that delay, it is lowered as well.
+	 */
+	public synchronized void success() {
+		successes++;
+		if (delay > lowerBound) {
+			if (successes >= fgSTABLE_AFTER) {
+				delay = Math.max(lowerBound, delay - fgSTEP);
+				successes = 0;
+			}
+		} else if ((lowerBound > 0) && (successes >= fgRELAX_AFTER)) {
+			// The errors that raised the bound are long gone
+			lowerBound = Math.max(0, lowerBound - fgSTEP);
+			delay = lowerBound;
+			successes = 0;
+		}
+	}
+
+	/**
+	 * Registers a transient error reported by the reader. The current delay
+	 * is too small for the reader so it is doubled and the delay won't be
+	 * lowered to this value again until a long run of successful reads.
+	 */
+	public synchronized void transientError() {
+		errors++;
+		successes = 0;
+		lowerBound = Math.min(fgMAX_DELAY, delay + fgSTEP);
+		delay = Math.min(fgMAX_DELAY, Math.max(lowerBound, delay * 2));
+	}
+
+	/**
+	 * Returns the name of the reader the pacing is for.
+	 *
+	 * @return the reader name
+	 */
+	public String getReaderName() {
+		return readerName;
+	}
+
+	/**
+	 * Returns the delay (in milliseconds) currently respected between two
+	 * reads.
+	 *
+	 * @return the delay
+	 */
+	public synchronized long getDelay() {
+		return delay;
+	}
+
+	/**
+	 * Indicates whether the delay has settled, meaning that it can't be
+	 * lowered anymore without going below a delay that recently caused
+	 * errors.
+	 *
+	 * @return whether the delay is stable
+	 */
+	public synchronized boolean isStable() {
+		return delay == lowerBound;
+	}
+
+	/**
+	 * Returns the number of transient errors the reader reported so far.
+	 *
+	 * @return the number of errors
+	 */
+	public synchronized long getErrors() {
+		return errors;
+	}
+}
@@ -0,0 +1,139 @@
+package sopra.belgium.eid.metier;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The ReadPlan class contains the parts of the data of a card that are asked
+ * for, together with the smallest set of files that has to be read to return
+ * them verified. Every part is verified through the signature of the national
+ * register, so the RN certificate, the root certificate and the ID signature
+ * file are always needed:
+ * <ul>
+ * <li>the identity needs the ID file, signed by the ID signature;</li>
+ * <li>the address needs the address file and the address signature, which
+ * signs the address together with the ID signature, but not the ID file;</li>
+ * <li>the photo needs the photo file and the ID file, which contains the hash
+ * of the photo.</li>
+ * </ul>
+ */
+public class ReadPlan {
+
+	/** Contains the plan that reads and verifies every part of the card */
+	private static final ReadPlan fgFULL = new ReadPlan(
+			EnumSet.allOf(SnapshotPart.class));
+
+	/** Contains the parts asked for */
+	private final Set<SnapshotPart> parts;
+
+	/** Contains the files to read, in the order of reading */
+	private final Set<CardFile> files;
+
+	/**
+	 * Returns the plan that reads and verifies every part of the card.
+	 *
+	 * @return the complete plan
+	 */
+	public static ReadPlan full() {
+		return fgFULL;
+	}
+
+	/**
+	 * Returns the plan that reads and verifies the given parts only.
+	 *
+	 * @param parts
+	 *            are the parts asked for, all parts when empty
+	 * @return the plan of the parts
+	 */
+	public static ReadPlan of(final Collection<SnapshotPart> parts) {
+		if (parts.isEmpty() || parts.containsAll(fgFULL.parts)) {
+			return fgFULL;
+		}
+		return new ReadPlan(EnumSet.copyOf(parts));
+	}
+
+	/**
+	 * Initializes the plan of the given parts.
+	 *
+	 * @param parts
+	 *            are the parts asked for
+	 */
+	private ReadPlan(final EnumSet<SnapshotPart> parts) {
+		final EnumSet<CardFile> needed = EnumSet.of(CardFile.ID_SIGNATURE,
+				CardFile.RN_CERTIFICATE, CardFile.ROOT_CERTIFICATE);
+		if (parts.contains(SnapshotPart.IDENTITY)) {
+			needed.add(CardFile.ID);
+		}
+		if (parts.contains(SnapshotPart.ADDRESS)) {
+			needed.add(CardFile.ADDRESS);
+			needed.add(CardFile.ADDRESS_SIGNATURE);
+		}
+		if (parts.contains(SnapshotPart.PHOTO)) {
+			needed.add(CardFile.PHOTO);
+			needed.add(CardFile.ID);
+		}
+		this.parts = Collections.unmodifiableSet(parts);
+		this.files = Collections.unmodifiableSet(needed);
+	}
+
+	/**
+	 * Returns the parts asked for.
+	 *
+	 * @return the parts
+	 */
+	public Set<SnapshotPart> getParts() {
+		return parts;
+	}
+
+	/**
+	 * Returns the files to read, in the order they have to be read.
+	 *
+	 * @return the files
+	 */
+	public Set<CardFile> getFiles() {
+		return files;
+	}
+
+	/**
+	 * Indicates whether the given part is asked for.
+	 *
+	 * @param part
+	 *            is the part of the data of the card
+	 * @return whether the part is asked for
+	 */
+	public boolean includes(final SnapshotPart part) {
+		return parts.contains(part);
+	}
+
+	/**
+	 * Indicates whether the given file has to be read.
+	 *
+	 * @param file
+	 *            is the file of the card
+	 * @return whether the file is read
+	 */
+	public boolean needs(final CardFile file) {
+		return files.contains(file);
+	}
+
+	/**
+	 * Indicates whether every part of the card is asked for.
+	 *
+	 * @return whether the plan is complete
+	 */
+	public boolean isComplete() {
+		return parts.size() == fgFULL.parts.size();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return parts + " " + files;
+	}
+}
@@ -0,0 +1,567 @@
+package sopra.belgium.eid.metier;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import javax.annotation.PreDestroy;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+
+import org.springframework.stereotype.Component;
+
+import sopra.belgium.eid.EidProperties;
+import sopra.belgium.eid.exceptions.CardNotFoundException;
+import sopra.belgium.eid.exceptions.NoReadersFoundException;
+import sopra.belgium.eid.exceptions.ReadCancelledException;
+
+/**
+ * The ReaderPool class gives access to every smart card reader attached to the
+ * system. It owns one {@link sopra.belgium.eid.metier.BeID} session per reader
+ * together with a worker thread that is the only one using that session, so
+ * that concurrent requests never share the state of a
+ * {@link sopra.belgium.eid.metier.SmartCard}. Requests are routed to a reader
+ * by its name, or to any reader that contains a card, preferring the readers
+ * that have nothing else to do.
+ * <br />
+ * The sessions live as long as their reader: the connection with the card is
+ * kept open across requests while the same card stays inserted, and is only
+ * made again when the card has been removed or reset. Connections are always
+ * closed without resetting the card.
+ * <br />
+ * Tasks are submitted asynchronously, see
+ * {@link #submit(String, ReaderTask)}, so that request threads don't have to
+ * wait for the card; {@link #execute(String, ReaderTask)} waits for the
+ * result. Every reader performs its tasks by priority through a
+ * {@link sopra.belgium.eid.metier.ReaderScheduler}, dropping the tasks whose
+ * deadline has passed before they could start.
+ * <br />
+ * A task that ends with the card still locked has its lock released by the
+ * worker, and a watchdog cancels the tasks that keep a card locked for longer
+ * than the lock timeout, so that a single task can't stall its reader.
+ */
+@Component
+public class ReaderPool {
+
+	/** Indicates whether test cards with an invalid root are enabled */
+	private final boolean enableTestCard;
+
+	/** Contains the worker of every reader mapped by the name of the reader */
+	private final Map<String, ReaderWorker> workers = new ConcurrentHashMap<String, ReaderWorker>();
+
+	/** Contains the time (in nanoseconds) a card may stay locked by a task */
+	private final long lockTimeout;
+
+	/** Contains the thread that looks for the locks held for too long */
+	private final Thread watchdog;
+
+	/**
+	 * Initializes the pool with the configured settings.
+	 *
+	 * @param properties
+	 *            are the settings of the application
+	 */
+	public ReaderPool(final EidProperties properties) {
+		this.enableTestCard = properties.isEnableTestCard();
+		this.lockTimeout = properties.getLockTimeout().toNanos();
+		if (lockTimeout > 0) {
+			watchdog = new Thread(new Runnable() {
+				public void run() {
+					watchLocks();
+				}
+			}, "eid-lock-watchdog");
+			watchdog.setDaemon(true);
+			watchdog.start();
+		} else {
+			watchdog = null;
+		}
+	}
+
+	/**
+	 * Executes the given task on the card in the reader with the given name
+	 * and waits for its result.
+	 *
+	 * @param readerName
+	 *            is the name of the reader to use, null or empty to use any
+	 *            reader that contains a card
+	 * @param task
+	 *            is the operation to perform on the card
+	 * @return the result of the task
+	 * @throws Exception
+	 *             when no suitable reader was found or when the task failed
+	 */
+	public <T> T execute(final String readerName, final ReaderTask<T> task)
+			throws Exception {
+		try {
+			return submit(readerName, task).get();
+		} catch (ExecutionException e) {
+			// Report the problem of the task itself
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Submits the given task to the worker of the reader with the given name,
+	 * with the lowest priority and without deadline.
+	 *
+	 * @param readerName
+	 *            is the name of the reader to use, null or empty to use any
+	 *            reader that contains a card
+	 * @param task
+	 *            is the operation to perform on the card
+	 * @return the pending result of the task, cancelling it stops the task at
+	 *         its next APDU
+	 * @throws NoReadersFoundException
+	 *             when there are no readers or none with the given name
+	 * @throws CardNotFoundException
+	 *             when no reader contains a card
+	 * @throws CardException
+	 *             when the readers couldn't be listed
+	 */
+	public <T> CompletableFuture<T> submit(final String readerName,
+			final ReaderTask<T> task) throws NoReadersFoundException,
+			CardNotFoundException, CardException {
+		return submit(readerName, task, TaskPriority.BULK, 0);
+	}
+
+	/**
+	 * Submits the given task to the worker of the reader with the given name.
+	 *
+	 * @param readerName
+	 *            is the name of the reader to use, null or empty to use any
+	 *            reader that contains a card
+	 * @param task
+	 *            is the operation to perform on the card
+	 * @param priority
+	 *            is the priority class of the task
+	 * @param timeout
+	 *            is the time (in milliseconds) after which the task is dropped
+	 *            if it hasn't started yet, 0 to wait as long as needed
+	 * @return the pending result of the task, cancelling it stops the task at
+	 *         its next APDU
+	 * @throws NoReadersFoundException
+	 *             when there are no readers or none with the given name
+	 * @throws CardNotFoundException
+	 *             when no reader contains a card
+	 * @throws CardException
+	 *             when the readers couldn't be listed
+	 */
+	public <T> CompletableFuture<T> submit(final String readerName,
+			final ReaderTask<T> task, final TaskPriority priority,
+			final long timeout) throws NoReadersFoundException,
+			CardNotFoundException, CardException {
+		final ReaderWorker worker = route(readerName);
+		return worker.submit(task, priority, timeout);
+	}
+
+	/**
+	 * Returns the session of the reader with the given name. Its
+	 * <i>...Async()</i> operations are performed by the worker of the reader,
+	 * its blocking operations are meant for the tasks of that worker.
+	 *
+	 * @param readerName
+	 *            is the name of the reader to use, null or empty to use any
+	 *            reader that contains a card
+	 * @return the session of the reader
+	 * @throws NoReadersFoundException
+	 *             when there are no readers or none with the given name
+	 * @throws CardNotFoundException
+	 *             when no reader contains a card
+	 * @throws CardException
+	 *             when the readers couldn't be listed
+	 */
+	public BeID session(final String readerName)
+			throws NoReadersFoundException, CardNotFoundException,
+			CardException {
+		return route(readerName).eID;
+	}
+
+	/**
+	 * Returns the names of the readers currently attached to the system.
+	 *
+	 * @return the names of the readers
+	 * @throws CardException
+	 *             when the readers couldn't be listed
+	 */
+	public List<String> readerNames() throws CardException {
+		refresh();
+		return new ArrayList<String>(workers.keySet());
+	}
+
+	/**
+	 * Closes the sessions and stops the workers of all readers.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		if (watchdog != null) {
+			watchdog.interrupt();
+		}
+		for (ReaderWorker worker : workers.values()) {
+			worker.shutdown();
+		}
+		workers.clear();
+	}
+
+	/**
+	 * Cancels the tasks that keep their card locked for longer than the lock
+	 * timeout, until the pool is shut down. A cancelled task stops at its next
+	 * APDU and its transaction releases the card.
+	 */
+	private void watchLocks() {
+		final long interval = Math.max(TimeUnit.NANOSECONDS
+				.toMillis(lockTimeout) / 4, 100);
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Thread.sleep(interval);
+				final long now = System.nanoTime();
+				for (ReaderWorker worker : workers.values()) {
+					worker.checkLock(now, lockTimeout);
+				}
+			}
+		} catch (InterruptedException e) {
+			// The pool has been shut down
+		}
+	}
+
+	/**
+	 * Returns the worker that has to execute the next task. The readers are
+	 * only listed again when none of the known readers is suitable.
+	 *
+	 * @param readerName
+	 *            is the name of the reader to use, null or empty to use any
+	 *            reader that contains a card
+	 * @return the worker of the chosen reader
+	 * @throws NoReadersFoundException
+	 *             when there are no readers or none with the given name
+	 * @throws CardNotFoundException
+	 *             when no reader contains a card
+	 * @throws CardException
+	 *             when the readers couldn't be listed
+	 */
+	private ReaderWorker route(final String readerName)
+			throws NoReadersFoundException, CardNotFoundException,
+			CardException {
+		ReaderWorker worker = find(readerName);
+		if (worker == null) {
+			// A reader may have been attached or removed
+			refresh();
+			worker = find(readerName);
+		}
+		if (worker != null) {
+			return worker;
+		}
+		if (workers.isEmpty() || ((readerName != null) && !readerName.isEmpty())) {
+			throw new NoReadersFoundException();
+		}
+		throw new CardNotFoundException(
+				CardNotFoundException.CardNotFoundType.NOT_PRESENT);
+	}
+
+	/**
+	 * Returns the worker of the known reader with the given name, or the least
+	 * busy one that contains a card.
+	 *
+	 * @param readerName
+	 *            is the name of the reader to use, null or empty to use any
+	 *            reader that contains a card
+	 * @return the worker of the chosen reader, null if none is suitable
+	 */
+	private ReaderWorker find(final String readerName) {
+		// A specific reader has been asked for
+		if ((readerName != null) && !readerName.isEmpty()) {
+			return workers.get(readerName);
+		}
+
+		// Otherwise take the least busy reader that contains a card
+		ReaderWorker best = null;
+		for (ReaderWorker worker : workers.values()) {
+			if (worker.isCardPresent()
+					&& ((best == null) || (worker.pending() < best.pending()))) {
+				best = worker;
+				if (best.pending() == 0) {
+					break;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Creates a worker for every new reader and stops the workers of the
+	 * readers that have been removed.
+	 *
+	 * @throws CardException
+	 *             when the readers couldn't be listed
+	 */
+	private synchronized void refresh() throws CardException {
+		List<CardTerminal> terminals;
+		try {
+			terminals = SmartCard.terminalFactory().terminals().list();
+		} catch (GeneralSecurityException e) {
+			throw new CardException(e);
+		} catch (CardException e) {
+			// The PC/SC context may have become invalid
+			terminals = new ArrayList<CardTerminal>();
+		}
+		if (terminals.isEmpty()) {
+			try {
+				// Make sure newly attached readers are seen
+				new SmartCard().cleanCache();
+				terminals = SmartCard.terminalFactory().terminals().list();
+			} catch (GeneralSecurityException e) {
+				throw new CardException(e);
+			} catch (CardException e) {
+				throw e;
+			} catch (Exception e) {
+				// The cached list of readers is used
+			}
+		}
+
+		final Set<String> names = new HashSet<String>();
+		for (CardTerminal terminal : terminals) {
+			names.add(terminal.getName());
+			if (!workers.containsKey(terminal.getName())) {
+				final BeID eID = new BeID(enableTestCard, terminal);
+				eID.setPool(this);
+				workers.put(terminal.getName(), new ReaderWorker(eID));
+			}
+		}
+		for (String name : new ArrayList<String>(workers.keySet())) {
+			if (!names.contains(name)) {
+				workers.remove(name).shutdown();
+			}
+		}
+	}
+
+	/**
+	 * The ReaderWorker class contains the session of a single reader together
+	 * with the thread that performs every operation on it.
+	 */
+	private static class ReaderWorker {
+
+		/** Contains the session of the reader */
+		private final BeID eID;
+
+		/** Contains the thread that performs the operations on the reader */
+		private final ReaderScheduler scheduler;
+
+		/** Contains the cancellation of the task running, null if none */
+		private volatile CancellationToken running;
+
+		/** Contains the moment the last lock reported as stalled was taken */
+		private long stalledLock = 0;
+
+		/**
+		 * Initializes the worker of the reader of the given session.
+		 *
+		 * @param eID
+		 *            is the session of the reader
+		 */
+		ReaderWorker(final BeID eID) {
+			this.eID = eID;
+			this.scheduler = new ReaderScheduler(eID.getTerminal().getName());
+		}
+
+		/**
+		 * Submits the given task to the thread of the reader.
+		 *
+		 * @param task
+		 *            is the operation to perform on the card
+		 * @param priority
+		 *            is the priority class of the task
+		 * @param timeout
+		 *            is the time (in milliseconds) after which the task is
+		 *            dropped if it hasn't started yet, 0 if never
+		 * @return the pending result of the task, cancelling it stops the task
+		 *         at its next APDU
+		 */
+		<T> CompletableFuture<T> submit(final ReaderTask<T> task,
+				final TaskPriority priority, final long timeout) {
+			final CancellationToken token = new CancellationToken();
+			final CompletableFuture<T> result = scheduler.submit(
+					new Callable<T>() {
+						public T call() throws Exception {
+							eID.setCancellation(token);
+							running = token;
+							try {
+								return execute(task);
+							} finally {
+								running = null;
+								eID.setCancellation(null);
+								releaseLeakedLock();
+							}
+						}
+					}, priority, timeout);
+			result.whenComplete(new BiConsumer<T, Throwable>() {
+				public void accept(final T value, final Throwable e) {
+					if (e instanceof CancellationException) {
+						token.cancel();
+					}
+				}
+			});
+			return result;
+		}
+
+		/**
+		 * Executes the given task on the session of the reader. When the task
+		 * fails because of the card while the connection has been kept open
+		 * since an earlier task, the card has been removed or reset in the
+		 * meantime: the task is executed once more on a new connection.
+		 *
+		 * @param task
+		 *            is the operation to perform on the card
+		 * @return the result of the task
+		 * @throws Exception
+		 *             when the task failed
+		 */
+		private <T> T execute(final ReaderTask<T> task) throws Exception {
+			final boolean reused = eID.isConnected();
+			try {
+				return task.execute(eID);
+			} catch (Exception e) {
+				if (!causedByCard(e)) {
+					throw e;
+				}
+				release();
+				if (!reused) {
+					throw e;
+				}
+			}
+			try {
+				return task.execute(eID);
+			} catch (Exception e) {
+				if (causedByCard(e)) {
+					release();
+				}
+				throw e;
+			}
+		}
+
+		/**
+		 * Releases the lock of the card when the task that just ended hasn't
+		 * ended all of its transactions.
+		 */
+		private void releaseLeakedLock() {
+			if (eID.getTransactionDepth() == 0) {
+				return;
+			}
+			final String name = eID.getTerminal().getName();
+			CardMetrics.lockLeaked(name, "unreleased");
+			System.err.println("Card left locked by a task on " + name);
+			try {
+				eID.abortTransaction();
+			} catch (CardException e) {
+				// The card will be connected again by the next task
+				release();
+			}
+		}
+
+		/**
+		 * Cancels the running task when it has kept the card locked for longer
+		 * than the given timeout. Every lock is only reported once.
+		 *
+		 * @param now
+		 *            is the current moment (in nanoseconds)
+		 * @param timeout
+		 *            is the time (in nanoseconds) a card may stay locked
+		 */
+		void checkLock(final long now, final long timeout) {
+			final long lockedSince = eID.getLockedSince();
+			if ((lockedSince == 0) || (lockedSince == stalledLock)
+					|| ((now - lockedSince) < timeout)) {
+				return;
+			}
+			stalledLock = lockedSince;
+			final String name = eID.getTerminal().getName();
+			CardMetrics.lockLeaked(name, "stalled");
+			System.err.println("Card locked for "
+					+ TimeUnit.NANOSECONDS.toMillis(now - lockedSince)
+					+ " ms on " + name + ", cancelling its task");
+			final CancellationToken token = running;
+			if (token != null) {
+				token.cancel();
+			}
+		}
+
+		/**
+		 * Closes the connection of the session without resetting the card.
+		 */
+		private void release() {
+			try {
+				eID.disconnect(false);
+			} catch (CardException e) {
+				// The connection is closed anyway
+			}
+		}
+
+		/**
+		 * Indicates whether the given problem has been caused by the card or
+		 * the reader rather than by the data read. A cancelled task hasn't
+		 * failed, the connection stays usable.
+		 *
+		 * @param e
+		 *            is the problem
+		 * @return whether the card or the reader failed
+		 */
+		private boolean causedByCard(final Throwable e) {
+			for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+				if (cause instanceof ReadCancelledException) {
+					return false;
+				}
+				if ((cause instanceof CardException)
+						|| (cause instanceof CardNotFoundException)
+						|| (cause instanceof IllegalStateException)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Indicates whether a card is present in the reader.
+		 *
+		 * @return whether a card is present
+		 */
+		boolean isCardPresent() {
+			try {
+				return eID.getTerminal().isCardPresent();
+			} catch (CardException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Returns the number of tasks submitted but not yet finished.
+		 *
+		 * @return the number of pending tasks
+		 */
+		int pending() {
+			return scheduler.pending();
+		}
+
+		/**
+		 * Closes the session once the pending tasks are done and stops the
+		 * thread of the reader.
+		 */
+		void shutdown() {
+			scheduler.shutdown(new Runnable() {
+				public void run() {
+					release();
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package sopra.belgium.eid.metier;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import javax.smartcardio.ATR;
+
+import sopra.belgium.eid.util.FormattedTLV;
+
+/**
+ * The ReaderProfile class contains the largest block that can be read from a
+ * card with a single READ BINARY command on a certain smart card reader. The
+ * block length depends on both the card (identified by its ATR) and the reader
+ * so a profile exists for every reader/ATR pair. <br />
+ * When the ATR announces extended length support, the profile starts with
+ * extended length blocks, otherwise it starts with blocks of 256 bytes (Le set
+ * to 0x00). Whenever the card or the reader refuses a block length, the profile
+ * falls back to the next smaller one. Once a block of the full length has been
+ * read successfully, the block length is confirmed and stored in a small
+ * properties file so that later startups don't have to find it out again.
+ */
+public class ReaderProfile {
+
+	/** Contains the block lengths to try, from the largest to the smallest */
+	public static final int[] fgBLOCK_LENGTHS = { 0x800, 0x100, 0xF8 };
+
+	/** Contains the system property to configure the location of the file */
+	public static final String fgFILE_PROPERTY = "eid.profile.file";
+
+	/** Contains the default location of the file with the stored profiles */
+	public static final String fgDEFAULT_FILE = System.getProperty("user.home")
+			+ File.separator + ".beid-reader-profiles.properties";
+
+	/** Contains the block lengths confirmed so far mapped by their key */
+	private static Properties fgStored;
+
+	/** Contains the key that identifies the reader/ATR pair */
+	private final String key;
+
+	/** Contains the index of the block length currently used */
+	private int index;
+
+	/** Indicates whether the block length has been confirmed by the card */
+	private boolean confirmed;
+
+	/**
+	 * Returns the profile for the given reader and card. The stored block
+	 * length is used when the pair has been seen before, otherwise the largest
+	 * block length supported by the ATR is tried first.
+	 *
+	 * @param readerName
+	 *            is the name of the smart card reader
+	 * @param atr
+	 *            is the ATR of the card in the reader
+	 * @return the profile of the pair
+	 */
+	public static ReaderProfile forCard(final String readerName, final ATR atr) {
+		final String key = readerName + "|"
+				+ FormattedTLV.hexify(atr.getBytes());
+		final String stored = stored().getProperty(key);
+		if (stored != null) {
+			for (int i = 0; i < fgBLOCK_LENGTHS.length; i++) {
+				if (Integer.toString(fgBLOCK_LENGTHS[i]).equals(stored)) {
+					return new ReaderProfile(key, i, true);
+				}
+			}
+		}
+		return new ReaderProfile(key, supportsExtendedLength(atr) ? 0 : 1,
+				false);
+	}
+
+	/**
+	 * Indicates whether the card announces support for extended Lc and Le
+	 * fields in the card capabilities of the historical bytes of its ATR.
+	 *
+	 * @param atr
+	 *            is the ATR of the card
+	 * @return whether extended length APDUs are supported
+	 */
+	public static boolean supportsExtendedLength(final ATR atr) {
+		final byte[] historical = atr.getHistoricalBytes();
+		if ((historical.length == 0)
+				|| ((historical[0] != (byte) 0x00) && (historical[0] != (byte) 0x80))) {
+			// No compact TLV objects in the historical bytes
+			return false;
+		}
+
+		// When the category indicator is 0x00 the last three bytes contain
+		// the status indicator instead of a compact TLV object
+		final int end = (historical[0] == (byte) 0x00) ? historical.length - 3
+				: historical.length;
+		int i = 1;
+		while (i < end) {
+			final int tag = (historical[i] >> 4) & 0x0F;
+			final int length = historical[i] & 0x0F;
+			if ((tag == 0x7) && (length >= 3) && (i + 3 < historical.length)) {
+				// Third software function byte, bit 7 indicates extended
+				// Lc and Le fields
+				return (historical[i + 3] & 0x40) != 0;
+			}
+			i += 1 + length;
+		}
+		return false;
+	}
+
+	/**
+	 * Initializes the profile.
+	 *
+	 * @param key
+	 *            is the key identifying the reader/ATR pair
+	 * @param index
+	 *            is the index of the block length to use
+	 * @param confirmed
+	 *            indicates whether the block length has been confirmed
+	 */
+	private ReaderProfile(final String key, final int index,
+			final boolean confirmed) {
+		this.key = key;
+		this.index = index;
+		this.confirmed = confirmed;
+	}
+
+	/**
+	 * Returns the number of bytes to read with a single READ BINARY command.
+	 *
+	 * @return the block length
+	 */
+	public int getBlockLength() {
+		return fgBLOCK_LENGTHS[index];
+	}
+
+	/**
+	 * Indicates whether a full block of the current length has been read
+	 * successfully on this reader/ATR pair.
+	 *
+	 * @return whether the block length is confirmed
+	 */
+	public boolean isConfirmed() {
+		return confirmed;
+	}
+
+	/**
+	 * Falls back to the next smaller block length because the current one was
+	 * refused by the card or the reader.
+	 *
+	 * @return whether a smaller block length is available
+	 */
+	public boolean downgrade() {
+		if (confirmed || (index == fgBLOCK_LENGTHS.length - 1)) {
+			return false;
+		}
+		index++;
+		return true;
+	}
+
+	/**
+	 * Confirms the current block length and stores it so that the next
+	 * connection with the same reader and card can use it right away.
+	 */
+	public void confirm() {
+		if (!confirmed) {
+			confirmed = true;
+			store(key, getBlockLength());
+		}
+	}
+
+	/**
+	 * Returns the location of the file with the stored profiles.
+	 *
+	 * @return the file
+	 */
+	private static File file() {
+		return new File(System.getProperty(fgFILE_PROPERTY, fgDEFAULT_FILE));
+	}
+
+	/**
+	 * Returns the stored block lengths, the file is only loaded once.
+	 *
+	 * @return the stored block lengths mapped by their key
+	 */
+	private static synchronized Properties stored() {
+		if (fgStored == null) {
+			fgStored = new Properties();
+			final File file = file();
+			if (file.isFile()) {
+				InputStream in = null;
+				try {
+					in = new FileInputStream(file);
+					fgStored.load(in);
+				} catch (IOException e) {
+					// Profiles will be found out again
+					System.err.println(e);
+				} finally {
+					close(in);
+				}
+			}
+		}
+		return fgStored;
+	}
+
+	/**
+	 * Stores the block length of the given reader/ATR pair in the file.
+	 *
+	 * @param key
+	 *            is the key identifying the reader/ATR pair
+	 * @param blockLength
+	 *            is the confirmed block length
+	 */
+	private static synchronized void store(final String key,
+			final int blockLength) {
+		stored().setProperty(key, Integer.toString(blockLength));
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(file());
+			fgStored.store(out, "Block lengths of the smart card readers");
+		} catch (IOException e) {
+			// The profile will be found out again at the next startup
+			System.err.println(e);
+		} finally {
+			close(out);
+		}
+	}
+
+	/**
+	 * Closes the given stream, ignoring the errors.
+	 *
+	 * @param stream
+	 *            is the stream to close, can be null
+	 */
+	private static void close(final Closeable stream) {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// Nothing more to do
+			}
+		}
+	}
+}
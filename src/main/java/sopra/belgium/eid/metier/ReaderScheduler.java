@@ -0,0 +1,341 @@
+package sopra.belgium.eid.metier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The ReaderScheduler class performs the tasks of a single smart card reader
+ * on a thread of its own, the only one using the PC/SC context of the reader.
+ * Tasks are submitted without locking to one queue per
+ * {@link sopra.belgium.eid.metier.TaskPriority}; the thread takes the next
+ * task of the highest priority, so that short reads don't wait behind complete
+ * reads. A task that has waited longer than the aging delay is taken first
+ * whatever its priority, so that a steady flow of short reads can't hold the
+ * complete reads back forever. A task submitted with a timeout that is still waiting when
+ * its deadline has passed is dropped without reaching the card, its result
+ * fails with a {@link TimeoutException}. A task cancelled while it runs is
+ * stopped at its next APDU by its
+ * {@link sopra.belgium.eid.metier.CancellationToken}, the thread isn't
+ * interrupted.
+ */
+public class ReaderScheduler implements Executor {
+
+	/**
+	 * Contains the time (in milliseconds) after which a waiting task is
+	 * performed before the tasks of a higher priority
+	 */
+	public static final long fgAGING = 2000;
+
+	/** Contains the name of the reader */
+	private final String readerName;
+
+	/** Contains the waiting tasks, one queue per priority in priority order */
+	private final List<Queue<ScheduledTask>> queues = new ArrayList<Queue<ScheduledTask>>();
+
+	/** Contains the number of tasks submitted but not yet finished */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/** Contains the time (in nanoseconds) after which a task goes first */
+	private final long aging;
+
+	/** Contains the thread that performs the tasks */
+	private final Thread thread;
+
+	/** Indicates whether no more tasks are accepted */
+	private volatile boolean stopped = false;
+
+	/**
+	 * Initializes the scheduler of the reader with the given name and starts
+	 * its thread. The thread is a daemon so that it doesn't keep the
+	 * application alive.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 */
+	public ReaderScheduler(final String readerName) {
+		this(readerName, fgAGING);
+	}
+
+	/**
+	 * Initializes the scheduler of the reader with the given name and the
+	 * given aging delay, and starts its thread.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @param aging
+	 *            is the time (in milliseconds) after which a waiting task is
+	 *            performed before the tasks of a higher priority
+	 */
+	ReaderScheduler(final String readerName, final long aging) {
+		this.readerName = readerName;
+		this.aging = TimeUnit.MILLISECONDS.toNanos(aging);
+		for (int i = 0; i < TaskPriority.values().length; i++) {
+			queues.add(new ConcurrentLinkedQueue<ScheduledTask>());
+		}
+		this.thread = new Thread(new Runnable() {
+			public void run() {
+				work();
+			}
+		}, "eid-reader-" + readerName);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Submits the given task with the given priority.
+	 *
+	 * @param task
+	 *            is the operation to perform on the thread of the reader
+	 * @param priority
+	 *            is the priority class of the task
+	 * @param timeout
+	 *            is the time (in milliseconds) after which the task is dropped
+	 *            if it hasn't started yet, 0 to wait as long as needed
+	 * @return the pending result of the task, cancelling it drops the task if
+	 *         it hasn't started yet
+	 * @throws RejectedExecutionException
+	 *             when the scheduler has been shut down
+	 */
+	public <T> CompletableFuture<T> submit(final Callable<T> task,
+			final TaskPriority priority, final long timeout) {
+		final TaskFuture<T> result = new TaskFuture<T>();
+		final ScheduledTask scheduled = new ScheduledTask(new Runnable() {
+			public void run() {
+				try {
+					result.complete(task.call());
+				} catch (Exception e) {
+					result.completeExceptionally(e);
+				}
+			}
+		}, priority, timeout, result);
+		result.running = scheduled;
+		enqueue(scheduled);
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	public void execute(final Runnable command) {
+		enqueue(new ScheduledTask(command, TaskPriority.BULK, 0, null));
+	}
+
+	/**
+	 * Returns the number of tasks submitted but not yet finished.
+	 *
+	 * @return the number of pending tasks
+	 */
+	public int pending() {
+		return pending.get();
+	}
+
+	/**
+	 * Performs the given task once the waiting tasks are done, then stops the
+	 * thread. No more tasks are accepted.
+	 *
+	 * @param last
+	 *            is the last task to perform, null if none
+	 */
+	public void shutdown(final Runnable last) {
+		if (last != null) {
+			execute(last);
+		}
+		stopped = true;
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Adds the given task to the queue of its priority and wakes the thread
+	 * up.
+	 *
+	 * @param task
+	 *            is the task to perform
+	 */
+	private void enqueue(final ScheduledTask task) {
+		if (stopped) {
+			throw new RejectedExecutionException("The reader " + readerName
+					+ " has been removed");
+		}
+		pending.incrementAndGet();
+		queues.get(task.priority.ordinal()).offer(task);
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Returns the task that has waited the longest if it has waited longer
+	 * than the aging delay, otherwise the next task of the highest priority.
+	 * Only the thread of the reader takes tasks, so the task at the head of a
+	 * queue stays there until it is taken.
+	 *
+	 * @return the next task, null if none is waiting
+	 */
+	private ScheduledTask next() {
+		final long now = System.nanoTime();
+		Queue<ScheduledTask> oldest = null;
+		long oldestWait = aging;
+		for (Queue<ScheduledTask> queue : queues) {
+			final ScheduledTask task = queue.peek();
+			if ((task != null) && (now - task.submitted >= oldestWait)) {
+				oldest = queue;
+				oldestWait = now - task.submitted;
+			}
+		}
+		if (oldest != null) {
+			return oldest.poll();
+		}
+
+		for (Queue<ScheduledTask> queue : queues) {
+			final ScheduledTask task = queue.poll();
+			if (task != null) {
+				return task;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Performs the tasks until the scheduler has been shut down and every
+	 * waiting task is done.
+	 */
+	private void work() {
+		while (true) {
+			final ScheduledTask task = next();
+			if (task == null) {
+				if (stopped) {
+					break;
+				}
+				LockSupport.park(this);
+				continue;
+			}
+
+			if (task.hasExpired()) {
+				// Nobody waits for the result anymore
+				CardMetrics.expired(readerName, task.priority.name());
+				if (task.result != null) {
+					task.result.completeExceptionally(new TimeoutException(
+							"The deadline passed before the card could be used"));
+				}
+				task.cancel(false);
+			} else {
+				task.run();
+			}
+
+			// A cancelled task mustn't leave the next one interrupted
+			Thread.interrupted();
+		}
+
+		// Tasks submitted while shutting down won't be performed
+		for (ScheduledTask task = next(); task != null; task = next()) {
+			if (task.result != null) {
+				task.result.completeExceptionally(new RejectedExecutionException(
+						"The reader " + readerName + " has been removed"));
+			}
+			task.cancel(false);
+		}
+	}
+
+	/**
+	 * The ScheduledTask class contains a task waiting in a queue together with
+	 * its priority and its deadline.
+	 */
+	private class ScheduledTask extends FutureTask<Void> {
+
+		/** Contains the priority class of the task */
+		private final TaskPriority priority;
+
+		/** Contains the moment the task was submitted (see System.nanoTime()) */
+		private final long submitted = System.nanoTime();
+
+		/** Contains the deadline (see System.nanoTime()), 0 if none */
+		private final long deadline;
+
+		/** Contains the result of the task, null if nobody waits for it */
+		private final CompletableFuture<?> result;
+
+		/**
+		 * Initializes the task.
+		 *
+		 * @param runnable
+		 *            is the operation to perform
+		 * @param priority
+		 *            is the priority class of the task
+		 * @param timeout
+		 *            is the time (in milliseconds) after which the task is
+		 *            dropped, 0 if never
+		 * @param result
+		 *            is the result of the task, null if none
+		 */
+		ScheduledTask(final Runnable runnable, final TaskPriority priority,
+				final long timeout, final CompletableFuture<?> result) {
+			super(runnable, null);
+			this.priority = priority;
+			this.deadline = (timeout > 0) ? Math.max(1, System.nanoTime()
+					+ TimeUnit.MILLISECONDS.toNanos(timeout)) : 0;
+			this.result = result;
+		}
+
+		/**
+		 * Indicates whether the deadline of the task has passed.
+		 *
+		 * @return whether the task has expired
+		 */
+		boolean hasExpired() {
+			return (deadline != 0) && (System.nanoTime() - deadline > 0);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.concurrent.FutureTask#done()
+		 */
+		@Override
+		protected void done() {
+			// Also called when cancelled or dropped before it has started
+			pending.decrementAndGet();
+		}
+	}
+
+	/**
+	 * The TaskFuture class contains the pending result of a submitted task.
+	 * Cancelling it also cancels the task on the thread of the reader. The
+	 * thread isn't interrupted, an interrupted transmission would look like a
+	 * failure of the reader.
+	 *
+	 * @param <T>
+	 *            is the type of the result of the task
+	 */
+	private static class TaskFuture<T> extends CompletableFuture<T> {
+
+		/** Contains the task on the thread of the reader */
+		private volatile Future<?> running;
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.concurrent.CompletableFuture#cancel(boolean)
+		 */
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			final boolean cancelled = super.cancel(mayInterruptIfRunning);
+			final Future<?> task = running;
+			if (cancelled && (task != null)) {
+				task.cancel(false);
+			}
+			return cancelled;
+		}
+	}
+}
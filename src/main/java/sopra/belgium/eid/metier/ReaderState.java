@@ -0,0 +1,99 @@
+package sopra.belgium.eid.metier;
+
+import java.util.Date;
+
+/**
+ * The ReaderState class contains the state of a smart card reader as last seen
+ * by the {@link sopra.belgium.eid.metier.CardPresenceMonitor}: whether a card
+ * is present, the ATR of that card and when it has been inserted. The state is
+ * immutable, every change in the reader results in a new state.
+ */
+public class ReaderState {
+
+	/** Contains the name of the reader */
+	private final String readerName;
+
+	/** Indicates whether a card is present in the reader */
+	private final boolean cardPresent;
+
+	/** Indicates whether a connection could be made with the present card */
+	private final boolean smartCard;
+
+	/** Contains the ATR of the present card in hexadecimal format */
+	private final String atr;
+
+	/** Contains the moment the present card has been inserted */
+	private final Date insertedAt;
+
+	/**
+	 * Initializes the state of the reader.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @param cardPresent
+	 *            indicates whether a card is present in the reader
+	 * @param smartCard
+	 *            indicates whether a connection could be made with the card
+	 * @param atr
+	 *            is the ATR of the card in hexadecimal format, null if there is
+	 *            no card
+	 * @param insertedAt
+	 *            is the moment the card has been inserted, null if there is no
+	 *            card
+	 */
+	public ReaderState(final String readerName, final boolean cardPresent,
+			final boolean smartCard, final String atr, final Date insertedAt) {
+		this.readerName = readerName;
+		this.cardPresent = cardPresent;
+		this.smartCard = smartCard;
+		this.atr = atr;
+		this.insertedAt = (insertedAt == null) ? null : (Date) insertedAt
+				.clone();
+	}
+
+	/**
+	 * Returns the name of the reader.
+	 *
+	 * @return the reader name
+	 */
+	public String getReaderName() {
+		return readerName;
+	}
+
+	/**
+	 * Indicates whether a card is present in the reader.
+	 *
+	 * @return whether a card is present
+	 */
+	public boolean isCardPresent() {
+		return cardPresent;
+	}
+
+	/**
+	 * Indicates whether a connection could be made with the card in the
+	 * reader.
+	 *
+	 * @return whether the card is a smart card
+	 */
+	public boolean isSmartCard() {
+		return smartCard;
+	}
+
+	/**
+	 * Returns the ATR of the card in the reader in hexadecimal format.
+	 *
+	 * @return the ATR, null if there is no card
+	 */
+	public String getAtr() {
+		return atr;
+	}
+
+	/**
+	 * Returns the moment the card in the reader has been inserted.
+	 *
+	 * @return the insertion time, null if there is no card
+	 */
+	public Date getInsertedAt() {
+		return (insertedAt == null) ? null : (Date) insertedAt.clone();
+	}
+}
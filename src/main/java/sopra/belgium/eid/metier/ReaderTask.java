@@ -0,0 +1,25 @@
+package sopra.belgium.eid.metier;
+
+/**
+ * The reader task interface can be implemented by any operation that has to
+ * be performed on the card of a single smart card reader of the
+ * {@link sopra.belgium.eid.metier.ReaderPool}. The task is executed by the
+ * worker of the reader, which is the only one using the given BeID object.
+ * 
+ * @param <T>
+ *            is the type of the result of the task
+ */
+public interface ReaderTask<T> {
+
+	/**
+	 * Performs the operation on the card in the reader of the worker.
+	 * 
+	 * @param eID
+	 *            is the beID session of the reader
+	 * @return the result of the operation
+	 * @throws Exception
+	 *             when the operation couldn't be performed successfully
+	 */
+	T execute(BeID eID) throws Exception;
+
+}
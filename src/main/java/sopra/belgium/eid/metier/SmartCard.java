@@ -24,14 +24,20 @@ package sopra.belgium.eid.metier;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.naming.CommunicationException;
 import javax.smartcardio.ATR;
 import javax.smartcardio.Card;
 import javax.smartcardio.CardChannel;
 import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
 import javax.smartcardio.CardTerminal;
 import javax.smartcardio.CardTerminals;
 import javax.smartcardio.CommandAPDU;
@@ -40,8 +46,12 @@ import javax.smartcardio.TerminalFactory;
 
 import sopra.belgium.eid.exceptions.CardNotFoundException;
 import sopra.belgium.eid.exceptions.EIDException;
+import sopra.belgium.eid.exceptions.InvalidSWException;
+import sopra.belgium.eid.exceptions.ReadCancelledException;
 import sopra.belgium.eid.exceptions.NoReadersFoundException;
 import sopra.belgium.eid.objects.SmartCardReadable;
+import sopra.belgium.eid.simulation.SimulatedProvider;
+import sopra.belgium.eid.trace.APDUTraceRecorder;
 
 /**
  * The SmartCard class contains the different operations that can be performed
@@ -61,6 +71,12 @@ public class SmartCard {
 	/** Contains the smart card reader with which a connection has been made */
 	private CardTerminal terminal;
 
+	/**
+	 * Contains the smart card reader to connect with, null to connect with the
+	 * first available smart card reader
+	 */
+	private final CardTerminal boundTerminal;
+
 	/** Contains the channel over which the communication occurs */
 	private CardChannel channel;
 
@@ -73,6 +89,87 @@ public class SmartCard {
 	/** Indicates if there is an exception */
 	String exception;
 
+	/** Contains the number of APDUs transmitted since the object was created */
+	private long apduCount = 0;
+
+	/** Contains the number of nested transactions currently opened */
+	private int transactionDepth = 0;
+
+	/**
+	 * Contains the moment (in nanoseconds) the card has been locked, 0 when it
+	 * isn't locked
+	 */
+	private volatile long lockedSince = 0;
+
+	/** Contains the token of the operation in progress, null if none */
+	private volatile CancellationToken cancellation;
+
+	/** Contains the pacing of reads on the connected smart card reader */
+	private ReadPacing pacing;
+
+	/** Contains the block length to use for the connected reader and card */
+	private ReaderProfile profile;
+
+	/** Contains the tag of the last selected file in the metrics */
+	private String selectedFileTag = CardMetrics.fgNO_FILE;
+
+	/** Contains the identifier of the selected dedicated file, -1 if unknown */
+	private int selectedDF = -1;
+
+	/** Contains the identifier of the selected elementary file, -1 if unknown */
+	private int selectedEF = -1;
+
+	/**
+	 * Indicates whether the card accepts selecting an elementary file in the
+	 * selected dedicated file by its identifier alone
+	 */
+	private boolean shortSelect = true;
+
+	/** Contains the READ BINARY command being sent, reused for every block */
+	private final ByteBuffer commandBuffer = ByteBuffer.allocate(7);
+
+	/**
+	 * Contains the response to a READ BINARY command that doesn't fit in the
+	 * destination of the read, reused for every block
+	 */
+	private final ByteBuffer responseBuffer = ByteBuffer
+			.allocate(ReaderProfile.fgBLOCK_LENGTHS[0] + 2);
+
+	/**
+	 * Contains the room the PC/SC channel requires in a response buffer,
+	 * whatever the length asked for: a short response and its status word
+	 */
+	public static final int fgMIN_RESPONSE_SPACE = 258;
+
+	/**
+	 * Contains the number of times a block is retried when the reader reports
+	 * transient errors
+	 */
+	public static final int fgMAX_RETRIES = 5;
+
+	/** Contains the type of terminal factory of the real smart card readers */
+	public static final String fgPCSC = "PC/SC";
+
+	/** Contains the type of terminal factory used to find the readers */
+	private static String fgTerminalType = System.getProperty(
+			"eid.terminal.type", fgPCSC);
+
+	/** Contains the parameters of the terminal factory, can be null */
+	private static Object fgTerminalParams;
+
+	/** Contains the terminal factory once it has been created */
+	private static TerminalFactory fgTerminalFactory;
+
+	/** Contains the recorder of the exchanged APDUs, null when not recording */
+	private static volatile APDUTraceRecorder fgTraceRecorder;
+
+	/**
+	 * Contains the number of connections the system has open with the card of
+	 * a reader mapped by reader name. PC/SC shares a single connection per
+	 * reader within the process, so closing one closes them all.
+	 */
+	private static final Map<String, Integer> fgConnections = new HashMap<String, Integer>();
+
 
 	/**
 	 * Sets up the system. Note that you have to call <i>connect()</i> or
@@ -82,9 +179,83 @@ public class SmartCard {
 	public SmartCard() {
 		super();
 		isConnected = false;
+		boundTerminal = null;
+	}
+
+	/**
+	 * Sets up the system to work with the given smart card reader only. Note
+	 * that you have to call <i>connectCard()</i> before being able to perform
+	 * any operation or retrieve any data from the smart card.
+	 * 
+	 * @param terminal
+	 *            is the smart card reader to connect with
+	 */
+	public SmartCard(final CardTerminal terminal) {
+		super();
+		isConnected = false;
+		boundTerminal = terminal;
 	}
 
 	
+	/**
+	 * Sets the type of terminal factory used to find the smart card readers,
+	 * e.g. "PC/SC" for the real readers or "PC/SC-SIM" for the simulated ones.
+	 * 
+	 * @param type
+	 *            is the type of terminal factory
+	 * @param params
+	 *            are the parameters of the terminal factory, can be null
+	 */
+	public static synchronized void configureTerminals(final String type,
+			final Object params) {
+		fgTerminalType = type;
+		fgTerminalParams = params;
+		fgTerminalFactory = null;
+	}
+
+	/**
+	 * Returns the terminal factory used to find the smart card readers. The
+	 * factory is only created once so that every part of the system sees the
+	 * same readers.
+	 * 
+	 * @return the terminal factory
+	 * @throws NoSuchAlgorithmException
+	 *             when the configured type of terminal factory isn't available
+	 * @throws InvalidAlgorithmParameterException
+	 *             when the parameters don't fit the terminal factory
+	 */
+	public static synchronized TerminalFactory terminalFactory()
+			throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+		if (fgTerminalFactory == null) {
+			if (SimulatedProvider.fgTYPE.equals(fgTerminalType)) {
+				SimulatedProvider.install();
+			}
+			fgTerminalFactory = TerminalFactory.getInstance(fgTerminalType,
+					fgTerminalParams);
+		}
+		return fgTerminalFactory;
+	}
+
+	/**
+	 * Sets the recorder to which every connection and every APDU exchanged by
+	 * any smart card is written.
+	 * 
+	 * @param recorder
+	 *            is the recorder of the trace, null to stop recording
+	 */
+	public static void setTraceRecorder(final APDUTraceRecorder recorder) {
+		fgTraceRecorder = recorder;
+	}
+
+	/**
+	 * Returns the recorder to which the exchanged APDUs are written.
+	 * 
+	 * @return the recorder of the trace, null when not recording
+	 */
+	public static APDUTraceRecorder getTraceRecorder() {
+		return fgTraceRecorder;
+	}
+
 	/**
 	 * Clear the terminal list
 	 * @throws ClassNotFoundException 
@@ -102,6 +273,10 @@ public class SmartCard {
 	//************************************************************//
 	public void cleanCache() throws  
 	ClassNotFoundException, NoSuchFieldException,   IllegalAccessException, NoSuchMethodException, InvocationTargetException {
+		if (!fgPCSC.equals(fgTerminalType)) {
+			// Only the PC/SC implementation caches its readers
+			return;
+		}
 		Class pcscterminal = Class.forName("sun.security.smartcardio.PCSCTerminals");
         Field contextId = pcscterminal.getDeclaredField("contextId");
         contextId.setAccessible(true);
@@ -153,10 +328,10 @@ public class SmartCard {
 	 * @throws NoReadersFoundException 
 	 * @throws Exception 
 	 */
-		public boolean verifyCardConnected() throws CardException, CommunicationException, ClassNotFoundException, NoSuchFieldException, IllegalAccessException, NoSuchMethodException, InvocationTargetException, NoSuchAlgorithmException, NoReadersFoundException{
+		public boolean verifyCardConnected() throws CardException, CommunicationException, ClassNotFoundException, NoSuchFieldException, IllegalAccessException, NoSuchMethodException, InvocationTargetException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, NoReadersFoundException{
 			if (!isConnected) {
 				cleanCache();
-				TerminalFactory factory = TerminalFactory.getInstance("PC/SC", null);
+				TerminalFactory factory = terminalFactory();
 				List<CardTerminal> terminals = factory.terminals().list();
 				if (terminals.size() > 0) {
 					// get the first terminal
@@ -188,12 +363,14 @@ public class SmartCard {
 		 * @throws ClassNotFoundException 
 		 * @throws Exception 
 		 */
-		public String verifycard() throws CommunicationException, ClassNotFoundException, NoSuchFieldException, IllegalAccessException, NoSuchMethodException, InvocationTargetException, NoSuchAlgorithmException, CardException, NoReadersFoundException{
+		public String verifycard() throws CommunicationException, ClassNotFoundException, NoSuchFieldException, IllegalAccessException, NoSuchMethodException, InvocationTargetException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, CardException, NoReadersFoundException{
 			if (this.verifyCardConnected()){
 				try {
-					card = terminal.connect("*");
+					card = connect(terminal);
 					atr = card.getATR();
 					channel = card.getBasicChannel();
+					pacing = ReadPacing.forReader(terminal.getName());
+					profile = ReaderProfile.forCard(terminal.getName(), atr);
 					isConnected = true;
 					exception = "it's a smart card";
 				}
@@ -209,54 +386,161 @@ public class SmartCard {
 	
 	/**
 	 * Connects the system to the first compatible smart card reader to allow
-	 * operations to be performed on the smart card. If the card was already
-	 * connected to the system nothing will be done.
+	 * operations to be performed on the smart card. When the object has been
+	 * set up for a given reader, that reader is used instead. If the card was
+	 * already connected to the system nothing will be done, unless the card
+	 * has been removed from the reader in the meantime.
 	 * @throws Exception 
 	 */
 	public void connectCard() throws  Exception {
+		if (isConnected && !terminal.isCardPresent()) {
+			// The card has been removed since the connection was made
+			disconnect(false);
+		}
 		if (!isConnected) {
-			// show the list of available terminals
-			// Connects with the first available smart card reader
-			//************************************************************************//
-			cleanCache();
-			//****************************************************************************************//
-			
-			
-			TerminalFactory factory = TerminalFactory.getInstance("PC/SC", null);
-			List<CardTerminal> terminals = factory.terminals().list();
-			if (terminals.size() > 0) {
-				// get the first terminal
-				terminal = terminals.get(0);
-				// establish a connection with the card
-				if (!terminal.isCardPresent() && !terminal.waitForCardPresent(10)) {
-			            throw new Exception("no card available");
-			        }
+			if (boundTerminal != null) {
+				// The reader has been chosen when setting up the system
+				terminal = boundTerminal;
+			} else {
+				// show the list of available terminals
+				// Connects with the first available smart card reader
+				//************************************************************************//
+				cleanCache();
+				//****************************************************************************************//
 				
-				try {
-					card = terminal.connect("*");
-					atr = card.getATR();
-					channel = card.getBasicChannel();
-					isConnected = true;
+				
+				TerminalFactory factory = terminalFactory();
+				List<CardTerminal> terminals = factory.terminals().list();
+				if (terminals.size() > 0) {
+					// get the first terminal
+					terminal = terminals.get(0);
+				} else {
+					throw new NoReadersFoundException();
 				}
-				catch (Exception e) {
-					exception = "not a smart card";
+			}
+
+			// establish a connection with the card
+			if (!terminal.isCardPresent() && !terminal.waitForCardPresent(10)) {
+		            throw new Exception("no card available");
+		        }
+			
+			try {
+				card = connect(terminal);
+				atr = card.getATR();
+				channel = card.getBasicChannel();
+				pacing = ReadPacing.forReader(terminal.getName());
+				profile = ReaderProfile.forCard(terminal.getName(), atr);
+				selectedFileTag = CardMetrics.fgNO_FILE;
+				invalidateSelection();
+				shortSelect = true;
+				isConnected = true;
+				final APDUTraceRecorder recorder = fgTraceRecorder;
+				if (recorder != null) {
+					recorder.recordConnection(terminal.getName(), atr.getBytes());
 				}
-			} else {
-				throw new NoReadersFoundException();
+			}
+			catch (Exception e) {
+				exception = "not a smart card";
 			}
 		}
 	}
 
 	/**
-	 * Disconnects the card from the connected slot.
+	 * Disconnects the card from the connected slot and resets the card.
 	 * 
 	 * @throws CardException
 	 *             if the card operation failed
 	 */
 	public void disconnect() throws CardException {
+		disconnect(true);
+	}
+
+	/**
+	 * Disconnects the card from the connected slot. Leaving the card as it is
+	 * avoids the cost of a reset for the next connection, e.g. when the card
+	 * has to be connected again after having been removed or reset.
+	 * 
+	 * @param reset
+	 *            indicates whether the card has to be reset
+	 * @throws CardException
+	 *             if the card operation failed, the card is disconnected
+	 *             anyway
+	 */
+	public void disconnect(final boolean reset) throws CardException {
 		if (isConnected) {
-			card.disconnect(true);
 			isConnected = false;
+			if (transactionDepth > 0) {
+				transactionDepth = 0;
+				lockReleased();
+			}
+			invalidateSelection();
+			try {
+				card.disconnect(reset);
+			} finally {
+				closed(terminal.getName());
+			}
+		}
+	}
+
+	/**
+	 * Returns the ATR of the card in the given reader. When the system has no
+	 * connection with the card, one is made and released without resetting
+	 * the card. Otherwise the connection in use is left alone: PC/SC hands out
+	 * that same connection, and releasing it would close it under its owner.
+	 * 
+	 * @param terminal
+	 *            is the reader holding the card
+	 * @return the ATR of the card
+	 * @throws CardException
+	 *             when no connection could be made with the card
+	 */
+	public static ATR readATR(final CardTerminal terminal)
+			throws CardException {
+		synchronized (fgConnections) {
+			final Card card = terminal.connect("*");
+			final ATR atr = card.getATR();
+			if (!fgConnections.containsKey(terminal.getName())) {
+				card.disconnect(false);
+			}
+			return atr;
+		}
+	}
+
+	/**
+	 * Connects with the card in the given reader and counts the connection,
+	 * see {@link #readATR(CardTerminal)}.
+	 * 
+	 * @param terminal
+	 *            is the reader holding the card
+	 * @return the connection with the card
+	 * @throws CardException
+	 *             when no connection could be made with the card
+	 */
+	private static Card connect(final CardTerminal terminal)
+			throws CardException {
+		synchronized (fgConnections) {
+			final Card card = terminal.connect("*");
+			final Integer count = fgConnections.get(terminal.getName());
+			fgConnections.put(terminal.getName(), (count == null) ? 1
+					: count + 1);
+			return card;
+		}
+	}
+
+	/**
+	 * Counts a connection with the card of the given reader as closed.
+	 * 
+	 * @param readerName
+	 *            is the name of the reader
+	 */
+	private static void closed(final String readerName) {
+		synchronized (fgConnections) {
+			final Integer count = fgConnections.get(readerName);
+			if ((count == null) || (count <= 1)) {
+				fgConnections.remove(readerName);
+			} else {
+				fgConnections.put(readerName, count - 1);
+			}
 		}
 	}
 
@@ -269,6 +553,33 @@ public class SmartCard {
 		return isConnected;
 	}
 
+	/**
+	 * Returns the smart card reader the system works with. This is the reader
+	 * given when setting up the system, or the reader with which the last
+	 * connection has been made.
+	 * 
+	 * @return the smart card reader, null if not known yet
+	 */
+	public CardTerminal getTerminal() {
+		return (boundTerminal != null) ? boundTerminal : terminal;
+	}
+
+	/**
+	 * Returns the name of the smart card reader the card is connected with.
+	 * 
+	 * @return the name of the reader
+	 * @throws CardNotFoundException
+	 *             if no connection with the smart card has been made yet
+	 */
+	public String getReaderName() throws CardNotFoundException {
+		if (isConnected()) {
+			return terminal.getName();
+		} else {
+			throw new CardNotFoundException(
+					CardNotFoundException.CardNotFoundType.NOT_CONNECTED);
+		}
+	}
+
 	/**
 	 * Returns the ATR (Answer To Reset) of the card.
 	 * 
@@ -285,8 +596,20 @@ public class SmartCard {
 		}
 	}
 
+	/**
+	 * Returns the number of APDUs that have been transmitted to the card by
+	 * this object.
+	 * 
+	 * @return the number of transmitted APDUs
+	 */
+	public long getAPDUCount() {
+		return apduCount;
+	}
+
 	/**
 	 * Locks the connected smart card reader to avoid concurrency problems.
+	 * Transactions can be nested, the card is only unlocked when the outermost
+	 * transaction ends.
 	 * 
 	 * @throws CardNotFoundException
 	 *             indicates that the card wasn't present in the system or was
@@ -301,8 +624,13 @@ public class SmartCard {
 			if (!isConnected()) {
 				throw new CardNotFoundException(
 						CardNotFoundException.CardNotFoundType.NOT_CONNECTED);
-			} else {
+			} else if (transactionDepth == 0) {
 				card.beginExclusive();
+				transactionDepth = 1;
+				lockedSince = System.nanoTime();
+			} else {
+				// Nested transaction, the card is already locked by us
+				transactionDepth++;
 			}
 		}
 	}
@@ -324,12 +652,98 @@ public class SmartCard {
 			if (!isConnected()) {
 				throw new CardNotFoundException(
 						CardNotFoundException.CardNotFoundType.NOT_CONNECTED);
-			} else {
-				card.endExclusive();
+			} else if (transactionDepth > 0) {
+				// Only unlock when the outermost transaction ends
+				transactionDepth--;
+				if (transactionDepth == 0) {
+					// Others may select another file once the card is unlocked
+					invalidateSelection();
+					lockReleased();
+					card.endExclusive();
+				}
 			}
 		}
 	}
 
+	/**
+	 * Locks the connected smart card reader, see {@link #beginTransaction()},
+	 * and returns the handle that unlocks it. Used in a try-with-resources
+	 * statement, the card is unlocked however the block ends:
+	 * 
+	 * <pre>
+	 * try (SmartCard.Transaction transaction = card.transaction()) {
+	 * 	// read several files
+	 * }
+	 * </pre>
+	 * 
+	 * @return the handle of the transaction
+	 * @throws CardNotFoundException
+	 *             indicates that the card wasn't present in the system or was
+	 *             reset, it could also be that no connection with the smart
+	 *             card has been made yet
+	 * @throws CardException
+	 *             if the card operation failed
+	 */
+	public Transaction transaction() throws CardNotFoundException,
+			CardException {
+		beginTransaction();
+		return new Transaction();
+	}
+
+	/**
+	 * Unlocks the connected smart card reader whatever the number of nested
+	 * transactions left open. This recovers from a transaction that hasn't
+	 * been ended, it has to be called from the thread that locked the card.
+	 * 
+	 * @return whether the card was locked
+	 * @throws CardException
+	 *             if the card operation failed, the transaction is forgotten
+	 *             anyway
+	 */
+	public boolean abortTransaction() throws CardException {
+		synchronized (this) {
+			if (!isConnected() || (transactionDepth == 0)) {
+				return false;
+			}
+			transactionDepth = 0;
+			invalidateSelection();
+			lockReleased();
+			card.endExclusive();
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the number of nested transactions currently open.
+	 * 
+	 * @return the depth of the transactions, 0 when the card isn't locked
+	 */
+	public synchronized int getTransactionDepth() {
+		return transactionDepth;
+	}
+
+	/**
+	 * Returns the moment the card has been locked by the current outermost
+	 * transaction. It can be called from any thread without waiting for the
+	 * card.
+	 * 
+	 * @return the moment (in nanoseconds, see {@link System#nanoTime()}) the
+	 *         card has been locked, 0 when it isn't locked
+	 */
+	public long getLockedSince() {
+		return lockedSince;
+	}
+
+	/**
+	 * Registers the time the lock of the card has been held for by the
+	 * outermost transaction that ends.
+	 */
+	private void lockReleased() {
+		CardMetrics.lockHeld(terminal.getName(), System.nanoTime()
+				- lockedSince);
+		lockedSince = 0;
+	}
+
 	/**
 	 * Transmits the given command APDU to the smart card.
 	 * 
@@ -347,8 +761,34 @@ public class SmartCard {
 	public ResponseAPDU transmitAPDU(final CommandAPDU cAPDU)
 			throws CardException, CardNotFoundException {
 		if (isConnected()) {
+			checkCancellation();
 			// Transmit APDU over channel and return response
-			return channel.transmit(cAPDU);
+			apduCount++;
+			if (cAPDU.getINS() == 0xA4) {
+				// The selected file is only known again once this one succeeds
+				invalidateSelection();
+			}
+			final long sent = System.nanoTime();
+			final ResponseAPDU rAPDU;
+			try {
+				rAPDU = channel.transmit(cAPDU);
+			} catch (CardException e) {
+				// The card may have been reset
+				invalidateSelection();
+				CardMetrics.apduFailure(terminal.getName(), cAPDU.getINS(),
+						selectedFileTag);
+				throw e;
+			}
+			final long received = System.nanoTime();
+			CardMetrics.apdu(terminal.getName(), cAPDU.getINS(),
+					selectedFileTag, rAPDU.getSW(), received - sent);
+
+			final APDUTraceRecorder recorder = fgTraceRecorder;
+			if (recorder != null) {
+				recorder.recordExchange(terminal.getName(), sent, received,
+						cAPDU.getBytes(), rAPDU.getBytes());
+			}
+			return rAPDU;
 		} else {
 			throw new CardNotFoundException(
 					CardNotFoundException.CardNotFoundType.NOT_CONNECTED);
@@ -377,8 +817,87 @@ public class SmartCard {
 					CardNotFoundException.CardNotFoundType.NOT_CONNECTED);
 		}
 
-		return transmitAPDU(new CommandAPDU(0x00, 0xA4, 0x08, 0x0C, fileID,
-				0x00));
+		selectedFileTag = CardMetrics.fileTag(fileID);
+		final ResponseAPDU rAPDU = transmitAPDU(new CommandAPDU(0x00, 0xA4,
+				0x08, 0x0C, fileID, 0x00));
+
+		// Keep track of an elementary file selected by its full path
+		if ((rAPDU.getSW() == 0x9000) && (fileID.length == 6)
+				&& (fileID[0] == SmartCardReadable.fgMF[0])
+				&& (fileID[1] == SmartCardReadable.fgMF[1])) {
+			selectedDF = identifier(fileID, 2);
+			selectedEF = identifier(fileID, 4);
+		}
+		return rAPDU;
+	}
+
+	/**
+	 * Selects the given file to read it. Within a transaction the selected
+	 * file is known, so that nothing is sent when the file is selected
+	 * already, and only the identifier of the elementary file is sent when
+	 * its dedicated file is selected already. Otherwise the file is selected
+	 * by its full path.
+	 * 
+	 * @param fullfileID
+	 *            is the path of the file from the master file
+	 * @throws CardNotFoundException
+	 *             indicates that the card wasn't present in the system or was
+	 *             reset, it could also be that no connection with the smart
+	 *             card has been made yet
+	 * @throws CardException
+	 *             if the card operation failed
+	 */
+	private void selectToRead(final byte[] fullfileID)
+			throws CardNotFoundException, CardException {
+		if (fullfileID.length != 6) {
+			selectFile(fullfileID);
+			return;
+		}
+		final int df = identifier(fullfileID, 2);
+		final int ef = identifier(fullfileID, 4);
+		if ((df == selectedDF) && (ef == selectedEF)) {
+			// Already selected, no need to send anything
+			selectedFileTag = CardMetrics.fileTag(fullfileID);
+			return;
+		}
+
+		if ((df == selectedDF) && shortSelect) {
+			selectedFileTag = CardMetrics.fileTag(fullfileID);
+			final ResponseAPDU rAPDU = transmitAPDU(new CommandAPDU(0x00,
+					0xA4, 0x02, 0x0C, new byte[] { fullfileID[4],
+							fullfileID[5] }, 0x00));
+			if (rAPDU.getSW() == 0x9000) {
+				selectedDF = df;
+				selectedEF = ef;
+				return;
+			} else if (rAPDU.getSW() != 0x6A82) {
+				// The card doesn't support this form, only use full paths
+				shortSelect = false;
+			}
+		}
+		selectFile(fullfileID);
+	}
+
+	/**
+	 * Forgets which file is selected on the card, so that the next file to
+	 * read is selected by its full path.
+	 */
+	private void invalidateSelection() {
+		selectedDF = -1;
+		selectedEF = -1;
+	}
+
+	/**
+	 * Returns the identifier of a file given by two bytes of a path.
+	 * 
+	 * @param path
+	 *            is the path containing the identifier
+	 * @param offset
+	 *            is the position of the identifier in the path
+	 * @return the identifier of the file
+	 */
+	private static int identifier(final byte[] path, final int offset) {
+		return ((path[offset] & 0xFF) << 8) | (path[offset + 1] & 0xFF);
 	}
 
 	/**
@@ -412,7 +931,8 @@ public class SmartCard {
 
 	/**
 	 * Reads a file from the smart card and returns the contents of the read
-	 * file.
+	 * file. The file is read in blocks as large as the card and the reader
+	 * allow, see {@link sopra.belgium.eid.metier.ReaderProfile}.
 	 * 
 	 * @param fileID
 	 *            is the identifier for the file to read
@@ -428,91 +948,425 @@ public class SmartCard {
 	 */
 	public byte[] readFile(byte[] fileID, final int maxOutputLength)
 			throws CardNotFoundException, CardException {
+		final ByteBuffer dst = ByteBuffer.allocate(maxOutputLength);
+		final int length = readFile(fileID, dst);
+		return Arrays.copyOf(dst.array(), length);
+	}
+
+	/**
+	 * Reads a file from the smart card into the given buffer, starting at its
+	 * current position and reading at most as many bytes as remain in the
+	 * buffer. The blocks are received straight into the buffer over reusable
+	 * command and response buffers, so that no memory is allocated per block.
+	 * The position of the buffer is advanced by the number of bytes read.
+	 * 
+	 * @param fileID
+	 *            is the identifier for the file to read
+	 * @param dst
+	 *            is the buffer to read the file into
+	 * @return the number of bytes read
+	 * @throws CardNotFoundException
+	 *             indicates that the card wasn't present in the system or was
+	 *             reset, it could also be that no connection with the smart
+	 *             card has been made yet
+	 * @throws CardException
+	 *             if the card operation failed
+	 */
+	public int readFile(byte[] fileID, final ByteBuffer dst)
+			throws CardNotFoundException, CardException {
+		return readFile(fileID, dst, null);
+	}
+
+	/**
+	 * Reads a file from the smart card into the given buffer, see
+	 * {@link #readFile(byte[], ByteBuffer)}, and notifies the given listener of
+	 * every block read. The read stops as soon as the listener has seen enough
+	 * of the file, e.g. when the tags asked for have been decoded.
+	 * 
+	 * @param fileID
+	 *            is the identifier for the file to read
+	 * @param dst
+	 *            is the buffer to read the file into
+	 * @param listener
+	 *            is notified of every block read, null to read the whole file
+	 * @return the number of bytes read
+	 * @throws CardNotFoundException
+	 *             indicates that the card wasn't present in the system or was
+	 *             reset, it could also be that no connection with the smart
+	 *             card has been made yet
+	 * @throws CardException
+	 *             if the card operation failed
+	 */
+	@SuppressWarnings("try")
+	public int readFile(byte[] fileID, final ByteBuffer dst,
+			final BlockListener listener) throws CardNotFoundException,
+			CardException {
 		// Handle the case when no connection has yet been made
 		if (!isConnected()) {
 			throw new CardNotFoundException(
 					CardNotFoundException.CardNotFoundType.NOT_CONNECTED);
 		}
 
-		// Lock card
-		this.beginTransaction();
+		final long start = System.nanoTime();
+
+		// Lock card, unlocked also when the read failed or has been cancelled.
+		// A failure to unlock doesn't hide the failure of the read
+		try (Transaction transaction = this.transaction()) {
+			// Select the file to read
+			byte[] fullfileID = new byte[2 + fileID.length];
+			fullfileID[0] = SmartCardReadable.fgMF[0];
+			fullfileID[1] = SmartCardReadable.fgMF[1];
+			//copie un tableau source à partir d'une position de début 
+			//spécifique vers le tableau de destination à partir de la position mentionnée.
+			//fileID : tableau à copier de
+			//0 : position de départ dans le tableau source d'où copier
+			//fullfileID : tableau à copier dans
+			//2 : début position dans le tableau de destination, où copier dans
+			//fileID.length : nb de composants à copier 
+			System.arraycopy(fileID, 0, fullfileID, 2, fileID.length);
+			this.selectToRead(fullfileID);
+
+			return readSelectedFile(fullfileID, dst, listener, start);
+		}
+	}
 
+	/**
+	 * Reads the selected file into the given buffer, see
+	 * {@link #readFile(byte[], ByteBuffer, BlockListener)}.
+	 * 
+	 * @param fullfileID
+	 *            is the full path of the selected file
+	 * @param dst
+	 *            is the buffer to read the file into
+	 * @param listener
+	 *            is notified of every block read, null to read the whole file
+	 * @param start
+	 *            is the moment (see System.nanoTime()) the read started
+	 * @return the number of bytes read
+	 * @throws CardException
+	 *             if the card operation failed or has been cancelled
+	 */
+	private int readSelectedFile(final byte[] fullfileID,
+			final ByteBuffer dst, final BlockListener listener,
+			final long start) throws CardException {
 		// Init
-		int blocklength = 0xF8;
+		int blocklength = profile.getBlockLength();
 		int length = 0;
 		boolean enough = false;
-		byte[] tmpReadData = new byte[maxOutputLength];
-
-		// Select the file to read
-		byte[] fullfileID = new byte[2 + fileID.length];
-		fullfileID[0] = SmartCardReadable.fgMF[0];
-		fullfileID[1] = SmartCardReadable.fgMF[1];
-		//copie un tableau source à partir d'une position de début 
-		//spécifique vers le tableau de destination à partir de la position mentionnée.
-		//fileID : tableau à copier de
-		//0 : position de départ dans le tableau source d'où copier
-		//fullfileID : tableau à copier dans
-		//2 : début position dans le tableau de destination, où copier dans
-		//fileID.length : nb de composants à copier 
-		System.arraycopy(fileID, 0, fullfileID, 2, fileID.length);
-		this.selectFile(fullfileID);
+		final int maxOutputLength = dst.remaining();
 
 		// Keep on reading the file until everything has been read
+		int retries = 0;
+		boolean lastBlock = false;
+		boolean transientErrors = false;
+		int blocks = 0;
 		while (!enough) {
-			// Read block
+			// Stop between two blocks when nobody waits for the file anymore
+			checkCancellation();
+
+			// Read block, never more than what fits in the output
 			int p1 = length / 256;
 			int p2 = length % 256;
-			int noBytesToRead = blocklength;
-			ResponseAPDU rAPDU = readBinaryData(p1, p2, noBytesToRead);
+			int noBytesToRead = Math.min(blocklength, maxOutputLength - length);
+			if (noBytesToRead <= 0) {
+				break;
+			}
+			final int position = dst.position();
+			int sw;
+			try {
+				blocks++;
+				sw = readBinaryData(p1, p2, noBytesToRead, dst);
+			} catch (CardException e) {
+				dst.position(position);
+				if ((noBytesToRead > 256)
+						&& !(e instanceof CardNotPresentException)
+						&& profile.downgrade()) {
+					// The reader may not transmit extended length APDUs at
+					// all, their support hasn't been confirmed yet
+					blocklength = profile.getBlockLength();
+					continue;
+				}
+				// Otherwise the reader failed to transmit or the card has
+				// been removed, which says nothing about the block length:
+				// only the status words below make it smaller. Wait and
+				// retry the block
+				transientErrors = true;
+				retries = backOff(retries, e);
+				continue;
+			}
+			final int sw1 = sw >> 8;
+			final int sw2 = sw & 0xFF;
 			//Renvoie la valeur de l'octet d'�tat SW1 sous la forme d'une valeur comprise entre 0 et 255.
-			if ((rAPDU.getSW1() == 0x90) && (rAPDU.getSW2() == 0x00)) {
+			if ((sw == 0x9000) || (sw == 0x6282)) {
 				// Data remains to be read
-				System.arraycopy(rAPDU.getData(), 0, tmpReadData, length, rAPDU
-						.getData().length);
-				length += rAPDU.getData().length;
+				final int received = dst.position() - position;
+				length += received;
+				retries = 0;
+				if (received == profile.getBlockLength()) {
+					// The card and the reader both handled a full block
+					profile.confirm();
+				}
+
+				// The previous block told us how many bytes were left, or the
+				// card returned less than asked because the end of the file
+				// has been reached
+				enough = lastBlock || (received < noBytesToRead)
+						|| (sw1 == 0x62);
+				if (listener != null) {
+					final ByteBuffer block = dst.asReadOnlyBuffer();
+					block.limit(dst.position());
+					block.position(position);
+					enough |= listener.blockRead(block);
+				}
+				continue;
+			}
+
+			// No data comes with the other status words
+			dst.position(position);
+			if ((sw == 0x6700) && profile.downgrade()) {
+				// The card refuses blocks this large
+				blocklength = profile.getBlockLength();
+			} else if ((sw1 == 0x61) || ((sw1 == 0x6C) && lastBlock)) {
+				// Response bytes are still available or the corrected length
+				// was refused as well, the reader needs more time
+				transientErrors = true;
+				retries = backOff(retries, new CardException(
+						"Transient error while reading the file",
+						new InvalidSWException(sw1, sw2)));
+				if (sw1 == 0x6C) {
+					blocklength = (sw2 == 0) ? 256 : sw2;
+				}
+			} else if (sw1 == 0x6C) {
+				// Wrong length read (too much), so we are at the end of
+				// the file and thus only need to read the value of SW2
+				// number of bytes
+				blocklength = (sw2 == 0) ? 256 : sw2;
+				lastBlock = true;
 			} else {
 				enough = true;
+			}
+		}
 
-				if (rAPDU.getSW1() == 0x6C) {
-					// Wrong length read (too much), so we are at the end of
-					// the file and thus only need to read the value of SW2
-					// number of bytes
-					blocklength = rAPDU.getSW2();
+		CardMetrics.fileRead(terminal.getName(), CardMetrics
+				.fileTag(fullfileID), length, blocks, System.nanoTime() - start);
 
-					p1 = length / 256;
-					p2 = length % 256;
-					noBytesToRead = blocklength;
-					rAPDU = readBinaryData(p1, p2, noBytesToRead);
+		// Let the reader learn whether it needs a delay between reads
+		if (!transientErrors) {
+			pacing.success();
+		}
+		pacing.pause();
+		
+		return length;
+	}
 
-					// This should have worked
-					assert ((rAPDU.getSW1() == 0x90) && (rAPDU.getSW2() == 0x00));
+	/**
+	 * Sends a READ BINARY command for the currently selected file and receives
+	 * the data of the block at the position of the given buffer. The data is
+	 * received straight into the buffer when it has room for the status word
+	 * as well and for the smallest response buffer PC/SC accepts, see
+	 * {@link #fgMIN_RESPONSE_SPACE}, otherwise it goes through the response
+	 * buffer of the connection.
+	 * 
+	 * @param p1
+	 *            contains the first parameter to indicate what to read
+	 * @param p2
+	 *            contains the second parameter to indicate what to read
+	 * @param noBytesToRead
+	 *            contains the number of bytes to read
+	 * @param dst
+	 *            is the buffer to receive the data in
+	 * @return the status word of the response
+	 * @throws CardException
+	 *             if the card operation failed
+	 */
+	private int readBinaryData(final int p1, final int p2,
+			final int noBytesToRead, final ByteBuffer dst) throws CardException {
+		// Encode the command, with an extended Le for blocks beyond 256 bytes
+		commandBuffer.clear();
+		commandBuffer.put((byte) 0x00).put((byte) 0xB0).put((byte) p1)
+				.put((byte) p2);
+		if (noBytesToRead > 256) {
+			commandBuffer.put((byte) 0x00).put((byte) (noBytesToRead >> 8))
+					.put((byte) noBytesToRead);
+		} else {
+			commandBuffer.put((byte) noBytesToRead);
+		}
+		commandBuffer.flip();
 
-					// Copy last bit of data in certificate
-					System.arraycopy(rAPDU.getData(), 0, tmpReadData, length,
-							blocklength);
-					length += blocklength;
-				}
+		final ByteBuffer response;
+		if (dst.remaining() >= Math.max(noBytesToRead + 2,
+				fgMIN_RESPONSE_SPACE)) {
+			response = dst;
+		} else {
+			response = responseBuffer;
+			response.clear();
+		}
+		final int sw = transmit(commandBuffer, response);
+
+		// Leave the data only in the destination
+		response.position(response.position() - 2);
+		if (response != dst) {
+			response.flip();
+			if (response.remaining() > dst.remaining()) {
+				throw new CardException("The card returned more than "
+						+ noBytesToRead + " bytes");
 			}
+			dst.put(response);
 		}
+		return sw;
+	}
 
-		// Unlock card
-		this.endTransaction();
+	/**
+	 * Transmits the encoded command APDU in the given buffer to the smart card
+	 * and receives the encoded response APDU in the other buffer.
+	 * 
+	 * @param command
+	 *            contains the command APDU between its position and its limit
+	 * @param response
+	 *            is the buffer to receive the response APDU at its position
+	 * @return the status word of the response
+	 * @throws CardException
+	 *             if the card operation failed
+	 */
+	private int transmit(final ByteBuffer command, final ByteBuffer response)
+			throws CardException {
+		apduCount++;
+		final int commandStart = command.position();
+		final int responseStart = response.position();
+		final int ins = command.get(commandStart + 1) & 0xFF;
+		final long sent = System.nanoTime();
+		final int length;
+		try {
+			length = channel.transmit(command, response);
+		} catch (CardException e) {
+			// The card may have been reset
+			invalidateSelection();
+			CardMetrics.apduFailure(terminal.getName(), ins, selectedFileTag);
+			throw e;
+		}
+		final long received = System.nanoTime();
+		if (length < 2) {
+			throw new CardException("The response of the card has no status word");
+		}
+		final int sw = ((response.get(responseStart + length - 2) & 0xFF) << 8)
+				| (response.get(responseStart + length - 1) & 0xFF);
+		CardMetrics.apdu(terminal.getName(), ins, selectedFileTag, sw,
+				received - sent);
 
-		// Return the data
-		byte[] result = new byte[length];
-		System.arraycopy(tmpReadData, 0, result, 0, length);
+		final APDUTraceRecorder recorder = fgTraceRecorder;
+		if (recorder != null) {
+			recorder.recordExchange(terminal.getName(), sent, received,
+					bytes(command, commandStart, command.position()), bytes(
+							response, responseStart, responseStart + length));
+		}
+		return sw;
+	}
 
-		
+	/**
+	 * Sets the token of the operation in progress, checked before every APDU.
+	 * 
+	 * @param cancellation
+	 *            is the token of the operation, null when it is done
+	 */
+	public void setCancellation(final CancellationToken cancellation) {
+		this.cancellation = cancellation;
+	}
+
+	/**
+	 * Stops the operation in progress when it has been cancelled.
+	 * 
+	 * @throws ReadCancelledException
+	 *             when the operation has been cancelled
+	 */
+	private void checkCancellation() throws ReadCancelledException {
+		final CancellationToken token = cancellation;
+		if ((token != null) && token.isCancelled()) {
+			CardMetrics.cancelled(terminal.getName());
+			throw new ReadCancelledException();
+		}
+	}
+
+	/**
+	 * Returns a copy of the bytes between the given positions of a buffer.
+	 * 
+	 * @param buffer
+	 *            is the buffer to copy from
+	 * @param from
+	 *            is the position of the first byte to copy
+	 * @param to
+	 *            is the position after the last byte to copy
+	 * @return the copied bytes
+	 */
+	private static byte[] bytes(final ByteBuffer buffer, final int from,
+			final int to) {
+		final byte[] bytes = new byte[to - from];
+		for (int i = from; i < to; i++) {
+			bytes[i - from] = buffer.get(i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Registers a transient error of the reader and waits according to the
+	 * pacing of the reader before the failed block is retried.
+	 * 
+	 * @param retries
+	 *            is the number of times the block has already been retried
+	 * @param cause
+	 *            is the transient error reported by the reader
+	 * @return the number of times the block has been retried, including the
+	 *         upcoming retry
+	 * @throws CardException
+	 *             when the block has been retried too many times already, or
+	 *             when the card has been removed
+	 */
+	private int backOff(final int retries, final CardException cause)
+			throws CardException {
+		// A card pulled out says nothing about the reader, retrying is useless
+		boolean present;
 		try {
-			Thread.sleep(100);
-		} catch (InterruptedException e) {
-			System.err.println(e);
-			Thread.currentThread().interrupt();
+			present = terminal.isCardPresent();
+		} catch (CardException e) {
+			present = false;
 		}
-		
-		return result;
+		if (!present) {
+			throw cause;
+		}
+		pacing.transientError();
+		if (retries >= fgMAX_RETRIES) {
+			throw cause;
+		}
+		pacing.pause();
+		return retries + 1;
 	}
 
 
+	/**
+	 * The Transaction class contains the handle of a transaction on the card,
+	 * see {@link SmartCard#transaction()}. Closing it ends the transaction, it
+	 * can safely be closed more than once.
+	 */
+	public class Transaction implements AutoCloseable {
+
+		/** Indicates whether the transaction has been ended */
+		private boolean closed = false;
+
+		/**
+		 * Only created by {@link SmartCard#transaction()}.
+		 */
+		private Transaction() {
+		}
 
-}
\ No newline at end of file
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.AutoCloseable#close()
+		 */
+		public void close() throws CardNotFoundException, CardException {
+			if (!closed) {
+				closed = true;
+				endTransaction();
+			}
+		}
+	}
+}
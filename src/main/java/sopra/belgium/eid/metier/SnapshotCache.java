@@ -0,0 +1,171 @@
+package sopra.belgium.eid.metier;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The SnapshotCache class keeps the verified snapshots of the cards read
+ * recently, keyed by the card number and the chip number of the card. When a
+ * card is inserted again, only its key has to be read to serve the rest of the
+ * snapshot from memory. A snapshot is kept for a limited time only and the
+ * cache holds a limited number of snapshots, the least recently used ones are
+ * dropped first.
+ */
+public class SnapshotCache {
+
+	/** Contains the time (in milliseconds) a snapshot is kept */
+	private final long ttl;
+
+	/** Contains the maximum number of snapshots kept */
+	private final int maxEntries;
+
+	/** Contains the cached snapshots mapped by key, least recently used first */
+	private final Map<String, Entry> entries;
+
+	/**
+	 * Returns the key of the card with the given numbers.
+	 *
+	 * @param cardNumber
+	 *            is the card number of the card
+	 * @param chipNumber
+	 *            is the chip number of the card in hexadecimal format
+	 * @return the key of the card
+	 */
+	public static String key(final String cardNumber, final String chipNumber) {
+		return cardNumber + "/" + chipNumber;
+	}
+
+	/**
+	 * Initializes an empty cache.
+	 *
+	 * @param ttl
+	 *            is the time (in milliseconds) a snapshot is kept, 0 to disable
+	 *            the cache
+	 * @param maxEntries
+	 *            is the maximum number of snapshots kept, 0 to disable the
+	 *            cache
+	 */
+	@SuppressWarnings("serial")
+	public SnapshotCache(final long ttl, final int maxEntries) {
+		this.ttl = ttl;
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, Entry> eldest) {
+				return size() > SnapshotCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Indicates whether snapshots are cached at all.
+	 *
+	 * @return whether the cache is enabled
+	 */
+	public boolean isEnabled() {
+		return (ttl > 0) && (maxEntries > 0);
+	}
+
+	/**
+	 * Returns the snapshot of the card with the given key.
+	 *
+	 * @param key
+	 *            is the key of the card
+	 * @return the snapshot, null if it isn't cached or has expired
+	 */
+	public synchronized CardSnapshot get(final String key) {
+		final Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.expiresAt <= System.currentTimeMillis()) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.snapshot;
+	}
+
+	/**
+	 * Keeps the given snapshot for the time to live of the cache.
+	 *
+	 * @param snapshot
+	 *            is the verified snapshot of a card
+	 */
+	public synchronized void put(final CardSnapshot snapshot) {
+		if (!isEnabled()) {
+			return;
+		}
+		purge();
+		entries.put(key(snapshot.getIDData().getCardNumber(), snapshot
+				.getIDData().getChipNumber()), new Entry(snapshot, System
+				.currentTimeMillis()
+				+ ttl));
+	}
+
+	/**
+	 * Drops the snapshot of the card with the given key.
+	 *
+	 * @param key
+	 *            is the key of the card
+	 */
+	public synchronized void evict(final String key) {
+		entries.remove(key);
+	}
+
+	/**
+	 * Drops every snapshot.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Returns the number of snapshots in the cache, including the expired ones
+	 * that haven't been dropped yet.
+	 *
+	 * @return the number of cached snapshots
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Drops the snapshots that have expired.
+	 */
+	private void purge() {
+		final long now = System.currentTimeMillis();
+		final Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().expiresAt <= now) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * The Entry class contains a cached snapshot with its expiry time.
+	 */
+	private static class Entry {
+
+		/** Contains the cached snapshot */
+		private final CardSnapshot snapshot;
+
+		/** Contains the moment (in milliseconds) the snapshot expires */
+		private final long expiresAt;
+
+		/**
+		 * Initializes the entry.
+		 *
+		 * @param snapshot
+		 *            is the cached snapshot
+		 * @param expiresAt
+		 *            is the moment (in milliseconds) the snapshot expires
+		 */
+		Entry(final CardSnapshot snapshot, final long expiresAt) {
+			this.snapshot = snapshot;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package sopra.belgium.eid.metier;
+
+/**
+ * Contains the parts of the data of a card that can be asked for separately,
+ * see {@link sopra.belgium.eid.metier.ReadPlan}.
+ */
+public enum SnapshotPart {
+
+	IDENTITY, /* The ID information of the holder and of the card */
+
+	ADDRESS, /* The address of the holder */
+
+	PHOTO /* The photo of the holder */
+
+}
@@ -0,0 +1,586 @@
+package sopra.belgium.eid.metier;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.stereotype.Component;
+
+import sopra.belgium.eid.EidProperties;
+
+/**
+ * The SnapshotService class reads and verifies the complete contents of the
+ * cards, see {@link sopra.belgium.eid.metier.BeID#readSnapshot()}. As soon as
+ * a card is inserted, it is read in the background by the worker of its reader
+ * so that the first request for the card gets the finished result, or waits
+ * for the read in progress, instead of starting another read. Removing the
+ * card cancels its read and discards the result.
+ * <br />
+ * The verified snapshots are kept in a {@link SnapshotCache} for a while, so
+ * that a card inserted again only needs the first block of its ID file to be
+ * read to identify it.
+ * <br />
+ * Identical reads asked for at the same time are coalesced: the first one is
+ * performed on the card and the others get its result. A complete read in
+ * progress also serves the partial reads of the same reader. Cancelling the
+ * result of a read, because its client went away, only stops the read on the
+ * card once every caller sharing it has cancelled.
+ */
+@Component
+public class SnapshotService implements CardPresenceListener {
+
+	/** Contains the task that reads and verifies every file of a card */
+	private final ReaderTask<CardSnapshot> readSnapshot = readTask(ReadPlan
+			.full());
+
+	/** Contains the sessions of all the smart card readers of the system */
+	private final ReaderPool readerPool;
+
+	/** Contains the live state of the smart card readers */
+	private final CardPresenceMonitor presenceMonitor;
+
+	/**
+	 * Contains the reads started on insertion that haven't been asked for yet,
+	 * mapped by the name of the reader
+	 */
+	private final Map<String, CompletableFuture<CardSnapshot>> prefetches = new ConcurrentHashMap<String, CompletableFuture<CardSnapshot>>();
+
+	/** Contains the verified snapshots of the cards read recently */
+	private final SnapshotCache cache;
+
+	/** Indicates whether the snapshot of a card is dropped on its removal */
+	private final boolean evictOnRemoval;
+
+	/**
+	 * Contains the reads in progress that were asked for by requests, mapped
+	 * by the reader asked for and the parts read
+	 */
+	private final Map<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+
+	/** Contains the time (in milliseconds) a read may wait for its reader */
+	private final long requestTimeout;
+
+	/** Contains the key of the last card read in every reader */
+	private final Map<String, String> readerCards = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Initializes the service.
+	 *
+	 * @param readerPool
+	 *            contains the sessions of the smart card readers
+	 * @param presenceMonitor
+	 *            contains the live state of the smart card readers
+	 * @param properties
+	 *            are the settings of the application
+	 */
+	public SnapshotService(final ReaderPool readerPool,
+			final CardPresenceMonitor presenceMonitor,
+			final EidProperties properties) {
+		this.readerPool = readerPool;
+		this.presenceMonitor = presenceMonitor;
+		this.cache = new SnapshotCache(properties.getCacheTtl().toMillis(),
+				properties.getCacheSize());
+		this.evictOnRemoval = properties.isCacheEvictOnRemoval();
+		this.requestTimeout = properties.getRequestTimeout().toMillis();
+	}
+
+	/**
+	 * Starts reading the cards as soon as they are inserted.
+	 */
+	@PostConstruct
+	public void start() {
+		presenceMonitor.addListener(this);
+	}
+
+	/**
+	 * Stops reading the cards on insertion and cancels the pending reads.
+	 */
+	@PreDestroy
+	public void stop() {
+		presenceMonitor.removeListener(this);
+		for (String readerName : prefetches.keySet()) {
+			cardRemoved(readerName);
+		}
+	}
+
+	/**
+	 * Returns the contents of the card in the reader with the given name. The
+	 * read started when the card has been inserted is used if there is one,
+	 * otherwise the card is read now.
+	 *
+	 * @param readerName
+	 *            is the name of the reader to use, null or empty to use any
+	 *            reader that contains a card
+	 * @return the verified contents of the card
+	 * @throws Exception
+	 *             when no suitable reader was found or when the card couldn't
+	 *             be read or verified
+	 */
+	public CardSnapshot read(final String readerName) throws Exception {
+		return read(readerName, ReadPlan.full());
+	}
+
+	/**
+	 * Returns the parts of the contents of the card asked for by the given
+	 * plan, see {@link #read(String)}.
+	 *
+	 * @param readerName
+	 *            is the name of the reader to use, null or empty to use any
+	 *            reader that contains a card
+	 * @param plan
+	 *            contains the parts asked for
+	 * @return the verified parts of the contents of the card
+	 * @throws Exception
+	 *             when no suitable reader was found or when the card couldn't
+	 *             be read or verified
+	 */
+	public CardSnapshot read(final String readerName, final ReadPlan plan)
+			throws Exception {
+		try {
+			return readAsync(readerName, plan).get();
+		} catch (ExecutionException e) {
+			// Report the problem of the read itself
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the contents of the card in the reader with the given name
+	 * without blocking the calling thread, see {@link #read(String)}.
+	 *
+	 * @param readerName
+	 *            is the name of the reader to use, null or empty to use any
+	 *            reader that contains a card
+	 * @return the pending verified contents of the card
+	 */
+	public CompletableFuture<CardSnapshot> readAsync(final String readerName) {
+		return readAsync(readerName, ReadPlan.full());
+	}
+
+	/**
+	 * Returns the parts of the contents of the card asked for by the given
+	 * plan without blocking the calling thread, see {@link #read(String)}. A
+	 * read started on insertion reads every part, so it is used for any plan.
+	 * Reads without the photo go before the complete reads of the reader, and
+	 * a read that couldn't start within the request timeout is dropped. When
+	 * the same read is already in progress, its result is shared.
+	 * <br />
+	 * Cancelling the returned result withdraws the caller from the read, the
+	 * read itself is cancelled between two APDUs once no caller is left.
+	 *
+	 * @param readerName
+	 *            is the name of the reader to use, null or empty to use any
+	 *            reader that contains a card
+	 * @param plan
+	 *            contains the parts asked for
+	 * @return the pending verified parts of the contents of the card
+	 */
+	public CompletableFuture<CardSnapshot> readAsync(final String readerName,
+			final ReadPlan plan) {
+		// The reads asked for any reader and for the reader chosen share
+		final String reader;
+		try {
+			reader = readerPool.session(readerName).getTerminal().getName();
+		} catch (Exception e) {
+			final CompletableFuture<CardSnapshot> failed = new CompletableFuture<CardSnapshot>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		final String key = flightKey(reader, plan);
+		while (true) {
+			// A complete read in progress serves any plan
+			final Flight complete = inFlight.get(flightKey(reader, ReadPlan
+					.full()));
+			if ((complete != null) && complete.enter()) {
+				CardMetrics.read(true);
+				return complete.share();
+			}
+
+			final Flight flight = new Flight(key);
+			final Flight existing = inFlight.putIfAbsent(key, flight);
+			if (existing == null) {
+				CardMetrics.read(false);
+				flight.start(startRead(reader, plan));
+				return flight.share();
+			}
+			if (existing.enter()) {
+				CardMetrics.read(true);
+				return existing.share();
+			}
+			// Every caller left the read in progress, it is being cancelled
+			inFlight.remove(key, existing);
+		}
+	}
+
+	/**
+	 * Starts the read of the parts of the contents of the card asked for by
+	 * the given plan, using the read started on insertion if there is one.
+	 *
+	 * @param readerName
+	 *            is the name of the reader to use
+	 * @param plan
+	 *            contains the parts asked for
+	 * @return the pending verified parts of the contents of the card
+	 */
+	private CompletableFuture<CardSnapshot> startRead(final String readerName,
+			final ReadPlan plan) {
+		final ReaderTask<CardSnapshot> task = plan.isComplete() ? readSnapshot
+				: readTask(plan);
+		final TaskPriority priority = plan.needs(CardFile.PHOTO) ? TaskPriority.BULK
+				: TaskPriority.IDENTITY;
+		final CompletableFuture<CardSnapshot> prefetch = takePrefetch(readerName);
+		if (prefetch == null) {
+			return submitRead(readerName, task, priority);
+		}
+		// Cancelling the read cancels the read on insertion or its retry
+		final AtomicReference<CompletableFuture<CardSnapshot>> current = new AtomicReference<CompletableFuture<CardSnapshot>>(
+				prefetch);
+		final CompletableFuture<CardSnapshot> read = new CompletableFuture<CardSnapshot>() {
+			@Override
+			public boolean cancel(final boolean mayInterruptIfRunning) {
+				final boolean cancelled = super.cancel(mayInterruptIfRunning);
+				current.get().cancel(true);
+				return cancelled;
+			}
+		};
+		prefetch.whenComplete(new BiConsumer<CardSnapshot, Throwable>() {
+			public void accept(final CardSnapshot snapshot, final Throwable e) {
+				if (e == null) {
+					read.complete(snapshot);
+					return;
+				}
+				if (read.isDone()) {
+					return;
+				}
+				// The read on insertion failed or the card has been removed
+				// in the meantime, try again
+				final CompletableFuture<CardSnapshot> retry = submitRead(
+						readerName, task, priority);
+				current.set(retry);
+				if (read.isCancelled()) {
+					retry.cancel(true);
+				}
+				retry.whenComplete(new BiConsumer<CardSnapshot, Throwable>() {
+					public void accept(final CardSnapshot retried,
+							final Throwable failure) {
+						if (failure != null) {
+							read.completeExceptionally(unwrap(failure));
+						} else {
+							read.complete(retried);
+						}
+					}
+				});
+			}
+		});
+		return read;
+	}
+
+	/**
+	 * Drops every cached snapshot.
+	 */
+	public void clearCache() {
+		cache.clear();
+		readerCards.clear();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * sopra.belgium.eid.metier.CardPresenceListener#cardInserted(sopra.belgium
+	 * .eid.metier.ReaderState)
+	 */
+	public void cardInserted(final ReaderState state) {
+		final CompletableFuture<CardSnapshot> prefetch;
+		try {
+			prefetch = readerPool.submit(state.getReaderName(), readSnapshot);
+		} catch (Exception e) {
+			// The card will be read when asked for
+			return;
+		}
+		final CompletableFuture<CardSnapshot> previous = prefetches.put(
+				state.getReaderName(), prefetch);
+		if (previous != null) {
+			previous.cancel(true);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * sopra.belgium.eid.metier.CardPresenceListener#cardRemoved(java.lang.String
+	 * )
+	 */
+	public void cardRemoved(final String readerName) {
+		final CompletableFuture<CardSnapshot> prefetch = prefetches.remove(readerName);
+		if (prefetch != null) {
+			prefetch.cancel(true);
+		}
+		final String key = readerCards.remove(readerName);
+		if (evictOnRemoval && (key != null)) {
+			cache.evict(key);
+		}
+	}
+
+	/**
+	 * Returns the task that reads the parts of the card asked for by the given
+	 * plan.
+	 *
+	 * @param plan
+	 *            contains the parts asked for
+	 * @return the task reading the card
+	 */
+	private ReaderTask<CardSnapshot> readTask(final ReadPlan plan) {
+		return new ReaderTask<CardSnapshot>() {
+			public CardSnapshot execute(final BeID eID) throws Exception {
+				return readThroughCache(eID, plan);
+			}
+		};
+	}
+
+	/**
+	 * Reads the snapshot of the card in the reader of the given session. The
+	 * key of the card is read first, within the same transaction, so that a
+	 * cached snapshot is returned without reading the rest of the card. Only
+	 * complete snapshots are cached, they are returned for any plan.
+	 *
+	 * @param eID
+	 *            is the session of the reader
+	 * @param plan
+	 *            contains the parts asked for
+	 * @return the verified snapshot of the card
+	 * @throws Exception
+	 *             when the card couldn't be read or verified
+	 */
+	@SuppressWarnings("try")
+	private CardSnapshot readThroughCache(final BeID eID, final ReadPlan plan)
+			throws Exception {
+		if (!cache.isEnabled()) {
+			return eID.readSnapshot(plan);
+		}
+
+		eID.connectCard();
+		final long apduCountStart = eID.getAPDUCount();
+		try (SmartCard.Transaction transaction = eID.transaction()) {
+			final String key = eID.readCardKey();
+			if (key != null) {
+				readerCards.put(eID.getReaderName(), key);
+				final CardSnapshot cached = cache.get(key);
+				CardMetrics.cache(cached != null);
+				if (cached != null) {
+					return cached.withAPDUCount(eID.getAPDUCount()
+							- apduCountStart);
+				}
+			}
+			final CardSnapshot snapshot = eID.readSnapshot(plan);
+			if (plan.isComplete()) {
+				cache.put(snapshot);
+			}
+			return snapshot.withAPDUCount(eID.getAPDUCount() - apduCountStart);
+		}
+	}
+
+	/**
+	 * Returns the key of the reads of the given parts on the given reader.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @param plan
+	 *            contains the parts asked for
+	 * @return the key of the reads in progress
+	 */
+	private static String flightKey(final String readerName,
+			final ReadPlan plan) {
+		return readerName + plan.getParts();
+	}
+
+	/**
+	 * Returns the problem of a failed read without the wrapper added by the
+	 * stages it went through.
+	 *
+	 * @param e
+	 *            is the problem of the read
+	 * @return the problem itself
+	 */
+	private static Throwable unwrap(final Throwable e) {
+		if ((e instanceof CompletionException) && (e.getCause() != null)) {
+			return e.getCause();
+		}
+		return e;
+	}
+
+	/**
+	 * The Flight class contains a read in progress shared by the requests
+	 * asking for it. It counts its callers, so that the read on the card is
+	 * only cancelled when the last of them leaves.
+	 */
+	@SuppressWarnings("serial")
+	private class Flight extends CompletableFuture<CardSnapshot> {
+
+		/** Contains the key of the read in the reads in progress */
+		private final String key;
+
+		/** Contains the number of callers, negative once the read is closed */
+		private final AtomicInteger callers = new AtomicInteger(1);
+
+		/** Contains the read performed on the card */
+		private volatile CompletableFuture<CardSnapshot> read;
+
+		/**
+		 * Initializes the read, with its first caller.
+		 *
+		 * @param key
+		 *            is the key of the read in the reads in progress
+		 */
+		Flight(final String key) {
+			this.key = key;
+		}
+
+		/**
+		 * Starts sharing the result of the given read. The read is cancelled
+		 * right away when every caller has already left.
+		 *
+		 * @param read
+		 *            is the read performed on the card
+		 */
+		void start(final CompletableFuture<CardSnapshot> read) {
+			this.read = read;
+			if (callers.get() < 0) {
+				read.cancel(true);
+			}
+			read.whenComplete(new BiConsumer<CardSnapshot, Throwable>() {
+				public void accept(final CardSnapshot snapshot, final Throwable e) {
+					// Later requests read the card again
+					inFlight.remove(key, Flight.this);
+					if (e != null) {
+						completeExceptionally(unwrap(e));
+					} else {
+						complete(snapshot);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Adds a caller to the read.
+		 *
+		 * @return whether the caller has been added, false when every caller
+		 *         has already left the read
+		 */
+		boolean enter() {
+			while (true) {
+				final int count = callers.get();
+				if (count <= 0) {
+					return false;
+				}
+				if (callers.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Removes a caller from the read, cancelling the read on the card when
+		 * it was the last one.
+		 */
+		void leave() {
+			if ((callers.decrementAndGet() == 0)
+					&& callers.compareAndSet(0, -1)) {
+				inFlight.remove(key, this);
+				cancel(false);
+				final CompletableFuture<CardSnapshot> current = read;
+				if (current != null) {
+					current.cancel(true);
+				}
+			}
+		}
+
+		/**
+		 * Returns the result of the read for one caller. Every caller gets its
+		 * own stage, so that none of them can complete the read of the others,
+		 * and cancelling it withdraws the caller from the read.
+		 *
+		 * @return the pending result of the read
+		 */
+		CompletableFuture<CardSnapshot> share() {
+			final CompletableFuture<CardSnapshot> share = new CompletableFuture<CardSnapshot>() {
+				@Override
+				public boolean cancel(final boolean mayInterruptIfRunning) {
+					final boolean cancelled = super.cancel(mayInterruptIfRunning);
+					if (cancelled) {
+						leave();
+					}
+					return cancelled;
+				}
+			};
+			whenComplete(new BiConsumer<CardSnapshot, Throwable>() {
+				public void accept(final CardSnapshot snapshot, final Throwable e) {
+					if (e != null) {
+						share.completeExceptionally(e);
+					} else {
+						share.complete(snapshot);
+					}
+				}
+			});
+			return share;
+		}
+	}
+
+	/**
+	 * Submits a new read of the card in the reader with the given name.
+	 *
+	 * @param readerName
+	 *            is the name of the reader to use, null or empty to use any
+	 *            reader that contains a card
+	 * @param task
+	 *            is the task reading the card
+	 * @param priority
+	 *            is the priority class of the read
+	 * @return the pending read, failed when no suitable reader was found
+	 */
+	private CompletableFuture<CardSnapshot> submitRead(
+			final String readerName, final ReaderTask<CardSnapshot> task,
+			final TaskPriority priority) {
+		try {
+			return readerPool.submit(readerName, task, priority,
+					requestTimeout);
+		} catch (Exception e) {
+			final CompletableFuture<CardSnapshot> failed = new CompletableFuture<CardSnapshot>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	/**
+	 * Takes the read started on insertion for the given reader, so that it is
+	 * only used once.
+	 *
+	 * @param readerName
+	 *            is the name of the reader, null or empty for any reader
+	 * @return the pending read, null if there is none
+	 */
+	private CompletableFuture<CardSnapshot> takePrefetch(final String readerName) {
+		if ((readerName != null) && !readerName.isEmpty()) {
+			return prefetches.remove(readerName);
+		}
+		for (String name : prefetches.keySet()) {
+			final CompletableFuture<CardSnapshot> prefetch = prefetches.remove(name);
+			if (prefetch != null) {
+				return prefetch;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,16 @@
+package sopra.belgium.eid.metier;
+
+/**
+ * Contains the priority classes of the tasks performed on a smart card
+ * reader, see {@link sopra.belgium.eid.metier.ReaderScheduler}. The tasks of
+ * a class are only performed when no task of a previous class is waiting,
+ * unless they have waited for too long. The presence of a card isn't queried
+ * through the reader, see {@link sopra.belgium.eid.metier.CardPresenceMonitor}.
+ */
+public enum TaskPriority {
+
+	IDENTITY, /* Reads of the identity or the address, a few short files */
+
+	BULK /* Reads of the photo or the certificates and complete snapshots */
+
+}
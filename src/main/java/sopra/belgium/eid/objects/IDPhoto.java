@@ -27,6 +27,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+
+import sopra.belgium.eid.security.CryptoEngines;
 import sopra.belgium.eid.util.*;
 
 /**
@@ -124,14 +126,12 @@ public class IDPhoto implements SmartCardReadable {
 	 */
 	public boolean verifyHash(final byte[] hash) {
 		try {
-			// Create a hash of the photo data
-			final MessageDigest md = MessageDigest.getInstance("SHA-1");
-			byte[] sha1hash = new byte[40];
+			// Create a hash of the photo data with the engine of the thread
+			final MessageDigest md = CryptoEngines.digest("SHA-1");
 			md.update(photo);
-			sha1hash = md.digest();
-			final String actualHash = FormattedTLV.hexify(sha1hash);
+			final byte[] sha1hash = md.digest();
 			// Check whether equal
-			return actualHash.equals(FormattedTLV.hexify(hash));
+			return MessageDigest.isEqual(sha1hash, hash);
 		} catch (NoSuchAlgorithmException e) {
 			// Shouldn't occur
 		}
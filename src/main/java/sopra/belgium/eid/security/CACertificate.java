@@ -0,0 +1,54 @@
+package sopra.belgium.eid.security;
+
+import javax.smartcardio.CardException;
+
+import sopra.belgium.eid.exceptions.CardNotFoundException;
+import sopra.belgium.eid.metier.SmartCard;
+import sopra.belgium.eid.objects.SmartCardReadable;
+
+/**
+ * This class contains the certificate of the citizen certification authority,
+ * which signs the authentication and signature certificates of the card and is
+ * itself signed by the root certificate.
+ */
+public class CACertificate extends Certificate implements SmartCardReadable {
+
+	/**
+	 * Contains the CA specific file attributes to read from on the smart
+	 * card
+	 */
+	public final static byte[] fgCA = { fgCertTag, fgDataTagCA };
+
+	/** Contains the label for the current certificate */
+	public final static String fgLabel = "CA";
+
+	/**
+	 * Initializes the CA certificate by reading it from the given card
+	 * reader.
+	 * 
+	 * @param card
+	 *            is the smart card to fetch the certificate data from
+	 * @throws CardException
+	 *             when a card related error occurred
+	 * @throws CardNotFoundException
+	 *             indicates that the card wasn't present in the system or was
+	 *             reset
+	 */
+	public CACertificate(final SmartCard card) throws CardNotFoundException,
+			CardException {
+		// Initializes the certificate with the read data and the constant label
+		super(card.readFile(new byte[] { Certificate.fgDFCert[0],
+				Certificate.fgDFCert[1], fgCA[0], fgCA[1] },
+				fgMAX_CERT_LEN), fgLabel);
+	}
+
+	/**
+	 * Initializes the CA certificate by the given data.
+	 * 
+	 * @param contents
+	 *            are the contents of the certificate
+	 */
+	public CACertificate(final byte[] contents) {
+		super(contents, fgLabel);
+	}
+}
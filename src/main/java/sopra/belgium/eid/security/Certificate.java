@@ -23,6 +23,8 @@ package sopra.belgium.eid.security;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
@@ -57,6 +59,15 @@ public abstract class Certificate implements Verifiable, SmartCardReadable {
 	/** Contains the status of the certificate */
 	private CertificateStatus status;
 
+	/** Contains the parsed certificate, null until it is first asked for */
+	private volatile X509Certificate x509;
+
+	/**
+	 * Contains the SHA-256 hash of the contents, null until it is first asked
+	 * for
+	 */
+	private volatile byte[] fingerprint;
+
 	/**
 	 * Initializes the certificate with the given contents and identification.
 	 * 
@@ -141,7 +152,8 @@ public abstract class Certificate implements Verifiable, SmartCardReadable {
 
 	/**
 	 * Returns the parsed X509 certificate from the encoded RN certificate
-	 * fetched from the smart card.
+	 * fetched from the smart card. The contents are only parsed the first
+	 * time, the same instance is returned afterwards.
 	 * 
 	 * @return the parsed X509 certificate
 	 * @throws IOException
@@ -152,11 +164,63 @@ public abstract class Certificate implements Verifiable, SmartCardReadable {
 	 */
 	public X509Certificate getX509Certificate() throws IOException,
 			CertificateException {
-		ByteArrayInputStream bais = new ByteArrayInputStream(this.getContents());
-		final CertificateFactory cf = CertificateFactory.getInstance("X.509");
-		final X509Certificate cert = (X509Certificate) cf
-				.generateCertificate(bais);
-
+		X509Certificate cert = x509;
+		if (cert == null) {
+			// Parsing twice at the same time gives equal certificates
+			ByteArrayInputStream bais = new ByteArrayInputStream(contents);
+			final CertificateFactory cf = CertificateFactory
+					.getInstance("X.509");
+			cert = (X509Certificate) cf.generateCertificate(bais);
+			x509 = cert;
+		}
 		return cert;
 	}
+
+	/**
+	 * Returns the SHA-256 hash of the encoded certificate, which identifies
+	 * the certificate without having to parse it. It is only computed the
+	 * first time.
+	 * 
+	 * @return the fingerprint of the certificate
+	 * @throws CertificateException
+	 *             when SHA-256 isn't supported
+	 */
+	public byte[] getFingerprint() throws CertificateException {
+		return fingerprint().clone();
+	}
+
+	/**
+	 * Indicates whether the given certificate has the same encoding as this
+	 * one, by comparing their fingerprints.
+	 * 
+	 * @param other
+	 *            is the certificate to compare with
+	 * @return whether both certificates are the same
+	 * @throws CertificateException
+	 *             when SHA-256 isn't supported
+	 */
+	public boolean sameAs(final Certificate other) throws CertificateException {
+		return MessageDigest.isEqual(fingerprint(), other.fingerprint());
+	}
+
+	/**
+	 * Returns the SHA-256 hash of the encoded certificate, computing it the
+	 * first time.
+	 * 
+	 * @return the fingerprint of the certificate, not to be modified
+	 * @throws CertificateException
+	 *             when SHA-256 isn't supported
+	 */
+	private byte[] fingerprint() throws CertificateException {
+		byte[] hash = fingerprint;
+		if (hash == null) {
+			try {
+				hash = CryptoEngines.digest("SHA-256").digest(contents);
+			} catch (NoSuchAlgorithmException e) {
+				throw new CertificateException(e);
+			}
+			fingerprint = hash;
+		}
+		return hash;
+	}
 }
\ No newline at end of file
@@ -28,6 +28,7 @@ import javax.smartcardio.CardException;
 
 import sopra.belgium.eid.exceptions.CardNotFoundException;
 import sopra.belgium.eid.metier.SmartCard;
+import sopra.belgium.eid.objects.SmartCardReadable;
 
 /**
  * The certificate chain class represents the chain of certificates that are to
@@ -40,6 +41,19 @@ public class CertificateChain {
 
 	/** Contains the root certificate at the top of the certificates chain */
 	private final RootCertificate rootCert;
+
+	/** Contains the certificate of the citizen certification authority */
+	private final CACertificate caCert;
+
+	/** Contains the authentication certificate, null if the card has none */
+	private final AuthenticationCertificate authCert;
+
+	/** Contains the signature certificate, null if the card has none */
+	private final SignatureCertificate sigCert;
+
+	/** Contains the national register certificate */
+	private final RNCertificate rnCert;
+
 	/**
 	 * Initializes the certificate chain by reading all the certificates in the
 	 * chain from the smart card and to verify them.
@@ -61,6 +75,14 @@ public class CertificateChain {
 			CardException, CertificateException, IOException {
 		rootCert = new RootCertificate(card);
 		rootCert.verify();
+		caCert = new CACertificate(card);
+		rnCert = new RNCertificate(card);
+		authCert = readOptional(card, AuthenticationCertificate.fgAuth) ? new AuthenticationCertificate(
+				card)
+				: null;
+		sigCert = readOptional(card, SignatureCertificate.fgSig) ? new SignatureCertificate(
+				card)
+				: null;
 	}
 
 	/**
@@ -72,13 +94,21 @@ public class CertificateChain {
 	 * @param caCert
 	 *            is the certificate authority certificate
 	 * @param authCert
-	 *            is the authentication certificate
+	 *            is the authentication certificate, null if none
 	 * @param sigCert
-	 *            is the signature certificate
+	 *            is the signature certificate, null if none
+	 * @param rnCert
+	 *            is the national register certificate
 	 */
-	public CertificateChain(final RootCertificate rootCert
-			) {
+	public CertificateChain(final RootCertificate rootCert,
+			final CACertificate caCert,
+			final AuthenticationCertificate authCert,
+			final SignatureCertificate sigCert, final RNCertificate rnCert) {
 		this.rootCert = rootCert;
+		this.caCert = caCert;
+		this.authCert = authCert;
+		this.sigCert = sigCert;
+		this.rnCert = rnCert;
 	}
 
 	/**
@@ -90,4 +120,95 @@ public class CertificateChain {
 		return rootCert;
 	}
 
+	/**
+	 * Returns the certificate of the citizen certification authority.
+	 * 
+	 * @return the CA certificate
+	 */
+	public CACertificate getCACert() {
+		return caCert;
+	}
+
+	/**
+	 * Returns the authentication certificate.
+	 * 
+	 * @return the authentication certificate, null if the card has none
+	 */
+	public AuthenticationCertificate getAuthCert() {
+		return authCert;
+	}
+
+	/**
+	 * Returns the signature certificate.
+	 * 
+	 * @return the signature certificate, null if the card has none
+	 */
+	public SignatureCertificate getSigCert() {
+		return sigCert;
+	}
+
+	/**
+	 * Returns the national register certificate.
+	 * 
+	 * @return the RN certificate
+	 */
+	public RNCertificate getRNCert() {
+		return rnCert;
+	}
+
+	/**
+	 * Validates every path of the chain: RN to root, and authentication and
+	 * signature to CA to root. The status of every certificate tells the
+	 * outcome, see {@link CertificateValidator}.
+	 * 
+	 * @param trustedRoot
+	 *            indicates whether the root has to be one of the trusted
+	 *            roots, see {@link TrustedRoots}
+	 * @return whether every path is valid
+	 * @throws IOException
+	 *             when the certificate couldn't be parsed because the file
+	 *             system is read only
+	 * @throws CertificateException
+	 *             when the instance couldn't be parsed
+	 */
+	public boolean validate(final boolean trustedRoot) throws IOException,
+			CertificateException {
+		boolean valid = CertificateValidator.validatePath(trustedRoot, rnCert,
+				rootCert);
+		valid &= CertificateValidator.validatePath(trustedRoot, caCert,
+				rootCert);
+		if (authCert != null) {
+			valid &= CertificateValidator.validatePath(trustedRoot, authCert,
+					caCert, rootCert);
+		}
+		if (sigCert != null) {
+			valid &= CertificateValidator.validatePath(trustedRoot, sigCert,
+					caCert, rootCert);
+		}
+		return valid;
+	}
+
+	/**
+	 * Indicates whether the card has the certificate with the given file
+	 * attributes.
+	 * 
+	 * @param card
+	 *            is the smart card to fetch the certificate data from
+	 * @param file
+	 *            are the file attributes of the certificate
+	 * @return whether the certificate can be read
+	 * @throws CardException
+	 *             when a card related error occurred
+	 * @throws CardNotFoundException
+	 *             indicates that the card wasn't present in the system or was
+	 *             reset
+	 */
+	private static boolean readOptional(final SmartCard card, final byte[] file)
+			throws CardNotFoundException, CardException {
+		// Selecting it within the transaction of the chain, the file isn't
+		// selected again to read it
+		return card.selectFile(new byte[] { SmartCardReadable.fgMF[0],
+				SmartCardReadable.fgMF[1], Certificate.fgDFCert[0],
+				Certificate.fgDFCert[1], file[0], file[1] }).getSW() == 0x9000;
+	}
 }
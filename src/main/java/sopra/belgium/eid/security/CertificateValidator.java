@@ -0,0 +1,223 @@
+package sopra.belgium.eid.security;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The CertificateValidator class validates certification paths, from a
+ * certificate of the card up to its root. Every certificate of the path has to
+ * be valid at the moment, has to be issued by the next certificate of the path
+ * and has to carry its signature, the issuers have to be certification
+ * authorities allowed to sign certificates and the root has to sign itself.
+ * The status of every certificate tells the outcome.
+ * <br />
+ * The validity period of the root isn't checked: a root is trusted because it
+ * is one of the trusted roots, not because of its dates. The bundled roots
+ * have expired while the certificates they issued are still in use, so an
+ * expired root doesn't invalidate the path. Every certificate it issued still
+ * has to be valid at the moment.
+ * <br />
+ * Checking a signature is the expensive part. Its outcome is kept per
+ * certificate and issuer, identified by their fingerprints, so that the
+ * certificates shared by every card, the root and the CA and RN certificates,
+ * are only checked once.
+ * <br />
+ * The certificates issued by another are finally checked against the
+ * revocation list of their issuer, see {@link RevocationCache}. That check is
+ * never kept, the lists change.
+ */
+public class CertificateValidator {
+
+	/** Contains the maximum number of signature checks kept */
+	public static final int fgCACHE_SIZE = 256;
+
+	/**
+	 * Contains the outcome of the signature checks mapped by the fingerprints
+	 * of the certificate and of its issuer, least recently used first
+	 */
+	@SuppressWarnings("serial")
+	private static final Map<ByteBuffer, Boolean> fgSignatures = new LinkedHashMap<ByteBuffer, Boolean>(
+			16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<ByteBuffer, Boolean> eldest) {
+			return size() > fgCACHE_SIZE;
+		}
+	};
+
+	/**
+	 * Not to be instantiated.
+	 */
+	private CertificateValidator() {
+	}
+
+	/**
+	 * Validates the given certification path. Every certificate is marked
+	 * validated when the whole path is valid, otherwise the first certificate
+	 * that failed tells why and the certificates it issued are marked as
+	 * missing a valid issuer.
+	 *
+	 * @param trustedRoot
+	 *            indicates whether the root has to be one of the trusted
+	 *            roots, see {@link TrustedRoots}
+	 * @param path
+	 *            are the certificates, starting with the certificate to
+	 *            validate and ending with the root
+	 * @return whether the path is valid
+	 * @throws IOException
+	 *             when a certificate couldn't be parsed because the file
+	 *             system is read only
+	 * @throws CertificateException
+	 *             when a certificate couldn't be parsed
+	 */
+	public static boolean validatePath(final boolean trustedRoot,
+			final Certificate... path) throws IOException,
+			CertificateException {
+		final Certificate root = path[path.length - 1];
+		if (trustedRoot && !TrustedRoots.getDefault().isTrusted(root)) {
+			root.setStatus(CertificateStatus.BEID_CERTSTATUS_INVALID_ROOT);
+			return invalid(path, path.length - 1);
+		}
+		if (!validate(root, root)) {
+			return invalid(path, path.length - 1);
+		}
+		for (int i = path.length - 2; i >= 0; i--) {
+			if (!validate(path[i], path[i + 1])) {
+				return invalid(path, i);
+			}
+		}
+		for (Certificate cert : path) {
+			cert.setStatus(CertificateStatus.BEID_CERTSTATUS_CERT_VALIDATED_OK);
+		}
+		return true;
+	}
+
+	/**
+	 * Validates the given certificate against its issuer, setting the status
+	 * of the certificate when it isn't valid. The validity period of a root,
+	 * given as its own issuer, isn't checked.
+	 *
+	 * @param cert
+	 *            is the certificate to validate
+	 * @param issuer
+	 *            is the certificate of its issuer, the certificate itself for
+	 *            a root
+	 * @return whether the certificate is valid
+	 * @throws IOException
+	 *             when a certificate couldn't be parsed because the file
+	 *             system is read only
+	 * @throws CertificateException
+	 *             when a certificate couldn't be parsed
+	 */
+	public static boolean validate(final Certificate cert,
+			final Certificate issuer) throws IOException, CertificateException {
+		// Validity period, the RN certificate also checks its name. A root
+		// only has to sign itself, whatever its dates
+		if ((cert != issuer) && !cert.verify()) {
+			return false;
+		}
+
+		final X509Certificate x509 = cert.getX509Certificate();
+		final X509Certificate issuerX509 = issuer.getX509Certificate();
+		if (!x509.getIssuerX500Principal().equals(
+				issuerX509.getSubjectX500Principal())) {
+			cert.setStatus(CertificateStatus.BEID_CERTSTATUS_SUBJECT_ISSUER_MISMATCH);
+			return false;
+		}
+		if (issuerX509.getBasicConstraints() < 0) {
+			cert.setStatus(CertificateStatus.BEID_CERTSTATUS_INVALID_CA);
+			return false;
+		}
+		final boolean[] keyUsage = issuerX509.getKeyUsage();
+		if ((keyUsage != null) && ((keyUsage.length <= 5) || !keyUsage[5])) {
+			cert.setStatus(CertificateStatus.BEID_CERTSTATUS_KEYUSAGE_NO_CERTSIGN);
+			return false;
+		}
+		if (!isSignedBy(cert, issuer)) {
+			cert.setStatus(CertificateStatus.BEID_CERTSTATUS_CERT_SIGNATURE_FAILURE);
+			return false;
+		}
+		// The roots aren't on a revocation list
+		if (cert != issuer) {
+			final CertificateStatus revocation = RevocationCache.getDefault()
+					.check(cert, issuer);
+			if (revocation != null) {
+				cert.setStatus(revocation);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Drops the outcome of every signature check.
+	 */
+	public static void clearCache() {
+		synchronized (fgSignatures) {
+			fgSignatures.clear();
+		}
+	}
+
+	/**
+	 * Indicates whether the given certificate carries the signature of the
+	 * given issuer, checking it only if it hasn't been checked before.
+	 *
+	 * @param cert
+	 *            is the signed certificate
+	 * @param issuer
+	 *            is the certificate of its issuer
+	 * @return whether the signature is valid
+	 * @throws IOException
+	 *             when a certificate couldn't be parsed because the file
+	 *             system is read only
+	 * @throws CertificateException
+	 *             when a certificate couldn't be parsed
+	 */
+	private static boolean isSignedBy(final Certificate cert,
+			final Certificate issuer) throws IOException, CertificateException {
+		final ByteBuffer key = ByteBuffer.allocate(64);
+		key.put(cert.getFingerprint()).put(issuer.getFingerprint()).flip();
+		synchronized (fgSignatures) {
+			final Boolean known = fgSignatures.get(key);
+			if (known != null) {
+				return known.booleanValue();
+			}
+		}
+
+		// Checked outside the lock, checking twice gives the same outcome
+		boolean signed;
+		try {
+			cert.getX509Certificate().verify(
+					issuer.getX509Certificate().getPublicKey());
+			signed = true;
+		} catch (GeneralSecurityException e) {
+			signed = false;
+		}
+		synchronized (fgSignatures) {
+			fgSignatures.put(key, Boolean.valueOf(signed));
+		}
+		return signed;
+	}
+
+	/**
+	 * Marks the certificates issued by the one that failed as missing a valid
+	 * issuer.
+	 *
+	 * @param path
+	 *            is the certification path
+	 * @param failed
+	 *            is the index of the certificate that failed
+	 * @return false
+	 */
+	private static boolean invalid(final Certificate[] path, final int failed) {
+		for (int i = 0; i < failed; i++) {
+			path[i].setStatus(CertificateStatus.BEID_CERTSTATUS_UNABLE_TO_GET_ISSUER_CERT);
+		}
+		return false;
+	}
+}
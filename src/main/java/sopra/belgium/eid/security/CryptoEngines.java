@@ -0,0 +1,84 @@
+package sopra.belgium.eid.security;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The CryptoEngines class keeps the signature and digest engines used to
+ * verify the cards, one per algorithm and per thread. Looking an engine up
+ * through its provider for every verification costs more than the
+ * verification of the small files of the card itself. An engine is only used
+ * by the thread it belongs to, so it never has to be locked; it is
+ * initialized again before every use.
+ */
+public class CryptoEngines {
+
+	/** Contains the signature engines of the thread mapped by algorithm */
+	private static final ThreadLocal<Map<String, Signature>> fgSignatures = new ThreadLocal<Map<String, Signature>>() {
+		@Override
+		protected Map<String, Signature> initialValue() {
+			return new HashMap<String, Signature>();
+		}
+	};
+
+	/** Contains the digest engines of the thread mapped by algorithm */
+	private static final ThreadLocal<Map<String, MessageDigest>> fgDigests = new ThreadLocal<Map<String, MessageDigest>>() {
+		@Override
+		protected Map<String, MessageDigest> initialValue() {
+			return new HashMap<String, MessageDigest>();
+		}
+	};
+
+	/**
+	 * Not to be instantiated.
+	 */
+	private CryptoEngines() {
+	}
+
+	/**
+	 * Returns the signature engine of the calling thread for the given
+	 * algorithm. It has to be initialized for verification before use.
+	 *
+	 * @param algorithm
+	 *            is the signature algorithm, e.g. "SHA1withRSA"
+	 * @return the signature engine
+	 * @throws NoSuchAlgorithmException
+	 *             when the algorithm isn't supported
+	 */
+	public static Signature signature(final String algorithm)
+			throws NoSuchAlgorithmException {
+		final Map<String, Signature> engines = fgSignatures.get();
+		Signature engine = engines.get(algorithm);
+		if (engine == null) {
+			engine = Signature.getInstance(algorithm);
+			engines.put(algorithm, engine);
+		}
+		return engine;
+	}
+
+	/**
+	 * Returns the digest engine of the calling thread for the given
+	 * algorithm, ready to hash new data.
+	 *
+	 * @param algorithm
+	 *            is the digest algorithm, e.g. "SHA-1"
+	 * @return the digest engine
+	 * @throws NoSuchAlgorithmException
+	 *             when the algorithm isn't supported
+	 */
+	public static MessageDigest digest(final String algorithm)
+			throws NoSuchAlgorithmException {
+		final Map<String, MessageDigest> engines = fgDigests.get();
+		MessageDigest engine = engines.get(algorithm);
+		if (engine == null) {
+			engine = MessageDigest.getInstance(algorithm);
+			engines.put(algorithm, engine);
+		} else {
+			engine.reset();
+		}
+		return engine;
+	}
+}
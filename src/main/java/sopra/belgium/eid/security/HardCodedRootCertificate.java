@@ -120,4 +120,18 @@ public class HardCodedRootCertificate extends Certificate {
 	public HardCodedRootCertificate() {
 		super(fgEncodedRootCert, "Root");
 	}
+
+	/** Contains the shared instance, parsed once for the whole application */
+	private static final HardCodedRootCertificate fgINSTANCE = new HardCodedRootCertificate();
+
+	/**
+	 * Returns the shared instance of the certificate, so that its contents are
+	 * only parsed and hashed once. The validations use copies of it, see
+	 * {@link TrustedRoots#getIssuer(Certificate)}, so its status doesn't change.
+	 * 
+	 * @return the hard coded root certificate
+	 */
+	public static HardCodedRootCertificate getInstance() {
+		return fgINSTANCE;
+	}
 }
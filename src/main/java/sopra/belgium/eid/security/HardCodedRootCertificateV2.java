@@ -73,4 +73,18 @@ public class HardCodedRootCertificateV2 extends Certificate {
     public HardCodedRootCertificateV2() {
         super(fgEncodedRootCert, "Root");
     }
+
+    /** Contains the shared instance, parsed once for the whole application */
+    private static final HardCodedRootCertificateV2 fgINSTANCE = new HardCodedRootCertificateV2();
+
+    /**
+     * Returns the shared instance of the certificate, so that its contents are
+     * only parsed and hashed once. The validations use copies of it, see
+     * {@link TrustedRoots#getIssuer(Certificate)}, so its status doesn't change.
+     * 
+     * @return the hard coded root certificate
+     */
+    public static HardCodedRootCertificateV2 getInstance() {
+        return fgINSTANCE;
+    }
 }
\ No newline at end of file
@@ -65,6 +65,16 @@ public class RNCertificate extends Certificate implements SmartCardReadable {
 				fgLabel);
 	}
 
+	/**
+	 * Initializes the RN certificate by the given data.
+	 *
+	 * @param contents
+	 *            are the contents of the certificate
+	 */
+	public RNCertificate(final byte[] contents) {
+		super(contents, fgLabel);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -0,0 +1,545 @@
+package sopra.belgium.eid.security;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.cert.CRL;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+import sopra.belgium.eid.metier.CardMetrics;
+
+/**
+ * The RevocationCache class tells whether the certificates of the cards have
+ * been revoked. The revocation lists (CRL) of the issuers are kept in memory,
+ * indexed by issuer, so that a check never waits for the network: the lists
+ * are fetched in the background from a directory or from a responder, and the
+ * last lists fetched are kept on disk to be known again after a restart while
+ * the source is unreachable.
+ * <br />
+ * A certificate found on the list of its issuer is revoked. When there is no
+ * list for its issuer, when the list isn't signed by the issuer or when it is
+ * stale, the {@link RevocationPolicy} tells whether the certificate is
+ * accepted. A list is stale once its next update has been due for longer than
+ * allowed, see {@link RevocationConfig#getMaxStale()}.
+ */
+public class RevocationCache {
+
+	/** Contains the extensions of the list files read from a directory */
+	private static final String[] fgCRL_EXTENSIONS = { ".crl", ".pem", ".der" };
+
+	/** Contains the name of the file the fetched lists are kept in */
+	private static final String fgCACHE_FILE = "revocation.pem";
+
+	/** Contains the cache used to check the certificates of the cards */
+	private static volatile RevocationCache fgDefault = new RevocationCache(
+			new RevocationConfig());
+
+	/** Contains the settings of the checks */
+	private final RevocationConfig config;
+
+	/** Contains the lists mapped by issuer */
+	private volatile Map<X500Principal, Entry> lists = Collections.emptyMap();
+
+	/** Contains the time (in milliseconds) of the last fetch, 0 if none */
+	private volatile long lastRefresh;
+
+	/** Contains the thread that fetches the lists, null if not started */
+	private Thread refresher;
+
+	/**
+	 * Returns the cache used to check the certificates of the cards.
+	 *
+	 * @return the revocation cache
+	 */
+	public static RevocationCache getDefault() {
+		return fgDefault;
+	}
+
+	/**
+	 * Sets the cache used to check the certificates of the cards.
+	 *
+	 * @param cache
+	 *            is the revocation cache
+	 */
+	public static void setDefault(final RevocationCache cache) {
+		fgDefault = cache;
+	}
+
+	/**
+	 * Initializes the cache without any list, see {@link #start()}.
+	 *
+	 * @param config
+	 *            are the settings of the checks
+	 */
+	public RevocationCache(final RevocationConfig config) {
+		this.config = config;
+	}
+
+	/**
+	 * Checks whether the given certificate has been revoked by its issuer,
+	 * from the lists in memory only.
+	 *
+	 * @param cert
+	 *            is the certificate to check
+	 * @param issuer
+	 *            is the certificate of its issuer
+	 * @return the status telling why the certificate is rejected, null if it
+	 *         is accepted
+	 * @throws IOException
+	 *             when a certificate couldn't be parsed because the file
+	 *             system is read only
+	 * @throws CertificateException
+	 *             when a certificate couldn't be parsed
+	 */
+	public CertificateStatus check(final Certificate cert,
+			final Certificate issuer) throws IOException, CertificateException {
+		if (config.getPolicy() == RevocationPolicy.OFF) {
+			return null;
+		}
+
+		final X509Certificate x509 = cert.getX509Certificate();
+		final Entry entry = lists.get(x509.getIssuerX500Principal());
+		if (entry == null) {
+			CardMetrics.revocation("unavailable");
+			return reject(CertificateStatus.BEID_CERTSTATUS_UNABLE_TO_GET_CRL);
+		}
+		if (!entry.isSignedBy(issuer)) {
+			CardMetrics.revocation("unavailable");
+			return reject(CertificateStatus.BEID_CERTSTATUS_CRL_SIGNATURE_FAILURE);
+		}
+		// Revoked is revoked, however old the list
+		if (entry.crl.isRevoked(x509)) {
+			CardMetrics.revocation("revoked");
+			return CertificateStatus.BEID_CERTSTATUS_CERT_REVOKED;
+		}
+
+		final long now = System.currentTimeMillis();
+		if (entry.crl.getThisUpdate().getTime() > now) {
+			CardMetrics.revocation("unavailable");
+			return reject(CertificateStatus.BEID_CERTSTATUS_CRL_NOT_YET_VALID);
+		}
+		final Date nextUpdate = entry.crl.getNextUpdate();
+		if ((nextUpdate != null)
+				&& (nextUpdate.getTime() + config.getMaxStale().toMillis() < now)) {
+			CardMetrics.revocation("stale");
+			return reject(CertificateStatus.BEID_CERTSTATUS_CRL_HAS_EXPIRED);
+		}
+		CardMetrics.revocation("good");
+		return null;
+	}
+
+	/**
+	 * Returns the number of issuers with a list.
+	 *
+	 * @return the number of lists
+	 */
+	public int size() {
+		return lists.size();
+	}
+
+	/**
+	 * Returns the time of the last successful fetch of the lists.
+	 *
+	 * @return the time (in milliseconds), 0 if the lists haven't been fetched
+	 */
+	public long getLastRefresh() {
+		return lastRefresh;
+	}
+
+	/**
+	 * Returns the settings of the checks.
+	 *
+	 * @return the settings
+	 */
+	public RevocationConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Fetches the lists of the source again. The lists in use are kept when
+	 * the source can't be read. A list older than the one in use for the same
+	 * issuer is ignored.
+	 *
+	 * @throws IOException
+	 *             when the source couldn't be read or the lists couldn't be
+	 *             kept on disk
+	 * @throws GeneralSecurityException
+	 *             when a list couldn't be parsed
+	 */
+	public synchronized void reload() throws IOException,
+			GeneralSecurityException {
+		if (config.getSource() == null) {
+			return;
+		}
+		final Map<X500Principal, Entry> current = lists;
+		final Map<X500Principal, Entry> loaded = new HashMap<X500Principal, Entry>();
+		for (X509CRL crl : readSource()) {
+			final X500Principal issuer = crl.getIssuerX500Principal();
+			Entry entry = loaded.get(issuer);
+			if ((entry == null) || entry.isOlderThan(crl)) {
+				entry = current.get(issuer);
+				if ((entry == null) || entry.isOlderThan(crl)) {
+					entry = new Entry(crl);
+				}
+				loaded.put(issuer, entry);
+			}
+		}
+		lists = Collections.unmodifiableMap(loaded);
+		lastRefresh = System.currentTimeMillis();
+		store();
+	}
+
+	/**
+	 * Loads the lists kept on disk, fetches the lists of the source and keeps
+	 * on fetching them in the background. The problems are reported instead of
+	 * thrown, the checks go on with the lists known.
+	 */
+	public synchronized void start() {
+		if (refresher != null) {
+			return;
+		}
+		loadStored();
+		reloadQuietly();
+
+		final long interval = config.getRefresh().toMillis();
+		if ((config.getSource() == null) || (interval <= 0)) {
+			return;
+		}
+		refresher = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (!Thread.currentThread().isInterrupted()) {
+						Thread.sleep(interval);
+						reloadQuietly();
+					}
+				} catch (InterruptedException e) {
+					// Stopped refreshing
+				}
+			}
+		}, "eid-revocation-refresher");
+		refresher.setDaemon(true);
+		refresher.start();
+	}
+
+	/**
+	 * Stops fetching the lists.
+	 */
+	public synchronized void stop() {
+		if (refresher != null) {
+			refresher.interrupt();
+			refresher = null;
+		}
+	}
+
+	/**
+	 * Returns the status of the rejected certificate according to the policy.
+	 *
+	 * @param status
+	 *            is the reason why the revocation couldn't be checked
+	 * @return the status if the certificate is rejected, null if accepted
+	 */
+	private CertificateStatus reject(final CertificateStatus status) {
+		return (config.getPolicy() == RevocationPolicy.HARD_FAIL) ? status
+				: null;
+	}
+
+	/**
+	 * Fetches the lists of the source again, reporting the problems instead of
+	 * throwing them.
+	 */
+	private void reloadQuietly() {
+		try {
+			reload();
+		} catch (Exception e) {
+			// Keep on using the previous lists
+			System.err.println("Revocation lists not fetched from "
+					+ config.getSource() + ": " + e);
+		}
+	}
+
+	/**
+	 * Loads the lists kept on disk by a previous fetch, if any.
+	 */
+	private void loadStored() {
+		final File file = storedFile();
+		if ((file == null) || !file.isFile()) {
+			return;
+		}
+		try {
+			final Map<X500Principal, Entry> loaded = new HashMap<X500Principal, Entry>();
+			for (X509CRL crl : readLists(file)) {
+				loaded.put(crl.getIssuerX500Principal(), new Entry(crl));
+			}
+			lists = Collections.unmodifiableMap(loaded);
+		} catch (Exception e) {
+			System.err.println("Revocation lists not loaded from " + file
+					+ ": " + e);
+		}
+	}
+
+	/**
+	 * Keeps the lists in use on disk, replacing the previous ones at once.
+	 *
+	 * @throws IOException
+	 *             when the lists couldn't be written
+	 * @throws CRLException
+	 *             when a list couldn't be encoded
+	 */
+	private void store() throws IOException, CRLException {
+		final File file = storedFile();
+		if (file == null) {
+			return;
+		}
+		final Base64.Encoder encoder = Base64.getMimeEncoder(64,
+				new byte[] { '\n' });
+		final StringBuilder pem = new StringBuilder();
+		for (Entry entry : lists.values()) {
+			pem.append("-----BEGIN X509 CRL-----\n");
+			pem.append(encoder.encodeToString(entry.crl.getEncoded()));
+			pem.append("\n-----END X509 CRL-----\n");
+		}
+		file.getParentFile().mkdirs();
+		final File temp = new File(file.getPath() + ".tmp");
+		Files.write(temp.toPath(), pem.toString().getBytes(
+				StandardCharsets.US_ASCII));
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Returns the file the fetched lists are kept in.
+	 *
+	 * @return the file, null if the lists aren't kept on disk
+	 */
+	private File storedFile() {
+		final String directory = config.getCacheDirectory();
+		if ((directory == null) || directory.isEmpty()) {
+			return null;
+		}
+		return new File(directory, fgCACHE_FILE);
+	}
+
+	/**
+	 * Reads the lists of the source.
+	 *
+	 * @return the lists of the source
+	 * @throws IOException
+	 *             when the source couldn't be read
+	 * @throws CRLException
+	 *             when a list couldn't be parsed
+	 */
+	private List<X509CRL> readSource() throws IOException, CRLException {
+		final String source = config.getSource();
+		if (source.startsWith("http://") || source.startsWith("https://")) {
+			final HttpURLConnection connection = (HttpURLConnection) new URL(
+					source).openConnection();
+			connection.setConnectTimeout(config.getTimeout());
+			connection.setReadTimeout(config.getTimeout());
+			try {
+				if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+					throw new IOException("HTTP "
+							+ connection.getResponseCode());
+				}
+				return readLists(connection.getInputStream());
+			} finally {
+				connection.disconnect();
+			}
+		}
+
+		final File file = new File(source);
+		final List<X509CRL> crls = new ArrayList<X509CRL>();
+		if (file.isDirectory()) {
+			final File[] files = file.listFiles();
+			if (files != null) {
+				for (File child : files) {
+					if (isListFile(child)) {
+						crls.addAll(readLists(child));
+					}
+				}
+			}
+		} else {
+			crls.addAll(readLists(file));
+		}
+		return crls;
+	}
+
+	/**
+	 * Reads the lists of a PEM or DER file.
+	 *
+	 * @param file
+	 *            is the list file
+	 * @return the lists of the file
+	 * @throws IOException
+	 *             when the file couldn't be read
+	 * @throws CRLException
+	 *             when a list couldn't be parsed
+	 */
+	private static List<X509CRL> readLists(final File file)
+			throws IOException, CRLException {
+		final InputStream in = new FileInputStream(file);
+		try {
+			return readLists(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the lists of the given stream, PEM or DER encoded.
+	 *
+	 * @param in
+	 *            is the stream
+	 * @return the lists of the stream
+	 * @throws CRLException
+	 *             when a list couldn't be parsed
+	 */
+	private static List<X509CRL> readLists(final InputStream in)
+			throws CRLException {
+		final CertificateFactory cf;
+		try {
+			cf = CertificateFactory.getInstance("X.509");
+		} catch (CertificateException e) {
+			// X.509 is always supported
+			throw new CRLException(e);
+		}
+		final List<X509CRL> crls = new ArrayList<X509CRL>();
+		for (CRL crl : cf.generateCRLs(new BufferedInputStream(in))) {
+			crls.add((X509CRL) crl);
+		}
+		return crls;
+	}
+
+	/**
+	 * Indicates whether the given file holds revocation lists.
+	 *
+	 * @param file
+	 *            is the file
+	 * @return whether it is a list file
+	 */
+	private static boolean isListFile(final File file) {
+		final String name = file.getName().toLowerCase();
+		for (String extension : fgCRL_EXTENSIONS) {
+			if (name.endsWith(extension)) {
+				return file.isFile();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The Entry class contains the list of an issuer and whether it carries
+	 * the signature of the issuer, which is only checked once.
+	 */
+	private static class Entry {
+
+		/** Contains the revocation list */
+		private final X509CRL crl;
+
+		/** Contains the outcome of the last signature check, null if none */
+		private volatile SignatureCheck check;
+
+		/**
+		 * Initializes the entry of the given list.
+		 *
+		 * @param crl
+		 *            is the revocation list
+		 */
+		private Entry(final X509CRL crl) {
+			this.crl = crl;
+		}
+
+		/**
+		 * Indicates whether the given list has been issued after this one.
+		 *
+		 * @param other
+		 *            is the list of the same issuer
+		 * @return whether the other list is newer
+		 */
+		private boolean isOlderThan(final X509CRL other) {
+			return crl.getThisUpdate().before(other.getThisUpdate());
+		}
+
+		/**
+		 * Indicates whether the list carries the signature of the given
+		 * issuer.
+		 *
+		 * @param issuer
+		 *            is the certificate of the issuer
+		 * @return whether the signature is valid
+		 * @throws IOException
+		 *             when the certificate couldn't be parsed because the
+		 *             file system is read only
+		 * @throws CertificateException
+		 *             when the certificate couldn't be parsed
+		 */
+		private boolean isSignedBy(final Certificate issuer)
+				throws IOException, CertificateException {
+			final ByteBuffer fingerprint = ByteBuffer.wrap(issuer
+					.getFingerprint());
+			final SignatureCheck known = check;
+			if ((known != null) && known.issuer.equals(fingerprint)) {
+				return known.signed;
+			}
+
+			// Checking twice gives the same outcome, no lock needed
+			boolean signed;
+			try {
+				crl.verify(issuer.getX509Certificate().getPublicKey());
+				signed = true;
+			} catch (GeneralSecurityException e) {
+				signed = false;
+			}
+			check = new SignatureCheck(fingerprint, signed);
+			return signed;
+		}
+	}
+
+	/**
+	 * The SignatureCheck class contains the outcome of the check of the
+	 * signature of a list against an issuer.
+	 */
+	private static class SignatureCheck {
+
+		/** Contains the fingerprint of the issuer */
+		private final ByteBuffer issuer;
+
+		/** Indicates whether the list carries the signature of the issuer */
+		private final boolean signed;
+
+		/**
+		 * Initializes the outcome of a check.
+		 *
+		 * @param issuer
+		 *            is the fingerprint of the issuer
+		 * @param signed
+		 *            indicates whether the signature is valid
+		 */
+		private SignatureCheck(final ByteBuffer issuer, final boolean signed) {
+			this.issuer = issuer;
+			this.signed = signed;
+		}
+	}
+}
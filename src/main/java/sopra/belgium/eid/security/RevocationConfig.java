@@ -0,0 +1,88 @@
+package sopra.belgium.eid.security;
+
+import java.time.Duration;
+
+/**
+ * The RevocationConfig class contains the settings of the revocation checks
+ * performed by the {@link RevocationCache}: where the revocation lists come
+ * from, how often they are fetched again and how long a list stays usable
+ * once its issuer should have published the next one.
+ */
+public class RevocationConfig {
+
+	/**
+	 * Contains the revocation lists: a CRL file, a directory of CRL files or
+	 * the http(s) URL of a responder serving them, null if none
+	 */
+	private String source;
+
+	/**
+	 * Contains the directory the fetched lists are kept in, so that they are
+	 * still known after a restart while the source is unreachable, null not
+	 * to keep them
+	 */
+	private String cacheDirectory;
+
+	/** Contains the time between two fetches of the lists, 0 not to refresh */
+	private Duration refresh = Duration.ofMinutes(15);
+
+	/**
+	 * Contains the time a list is still used after its next update was due,
+	 * before it is considered stale
+	 */
+	private Duration maxStale = Duration.ofHours(24);
+
+	/** Contains the treatment of the certificates without fresh list */
+	private RevocationPolicy policy = RevocationPolicy.SOFT_FAIL;
+
+	/** Contains the time (in milliseconds) a fetch from a responder may take */
+	private int timeout = 5000;
+
+	public String getSource() {
+		return source;
+	}
+
+	public void setSource(String source) {
+		this.source = source;
+	}
+
+	public String getCacheDirectory() {
+		return cacheDirectory;
+	}
+
+	public void setCacheDirectory(String cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	public Duration getRefresh() {
+		return refresh;
+	}
+
+	public void setRefresh(Duration refresh) {
+		this.refresh = refresh;
+	}
+
+	public Duration getMaxStale() {
+		return maxStale;
+	}
+
+	public void setMaxStale(Duration maxStale) {
+		this.maxStale = maxStale;
+	}
+
+	public RevocationPolicy getPolicy() {
+		return policy;
+	}
+
+	public void setPolicy(RevocationPolicy policy) {
+		this.policy = policy;
+	}
+
+	public int getTimeout() {
+		return timeout;
+	}
+
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+}
@@ -0,0 +1,16 @@
+package sopra.belgium.eid.security;
+
+/**
+ * Contains the ways of treating a certificate whose revocation can't be
+ * checked with fresh data, see {@link RevocationCache}. A certificate found on
+ * a revocation list is always rejected, whatever the policy.
+ */
+public enum RevocationPolicy {
+
+	OFF, /* The revocation isn't checked */
+
+	SOFT_FAIL, /* Certificates without a list or with a stale one are accepted */
+
+	HARD_FAIL /* Certificates without a list or with a stale one are rejected */
+
+}
@@ -0,0 +1,54 @@
+package sopra.belgium.eid.security;
+
+import javax.smartcardio.CardException;
+
+import sopra.belgium.eid.exceptions.CardNotFoundException;
+import sopra.belgium.eid.metier.SmartCard;
+import sopra.belgium.eid.objects.SmartCardReadable;
+
+/**
+ * This class contains the certificate the holder of the card signs with,
+ * signed by the citizen certification authority. The cards of holders under 18
+ * have none.
+ */
+public class SignatureCertificate extends Certificate implements SmartCardReadable {
+
+	/**
+	 * Contains the signature specific file attributes to read from on the smart
+	 * card
+	 */
+	public final static byte[] fgSig = { fgCertTag, fgDataTagSIG };
+
+	/** Contains the label for the current certificate */
+	public final static String fgLabel = "Signature";
+
+	/**
+	 * Initializes the signature certificate by reading it from the given card
+	 * reader.
+	 * 
+	 * @param card
+	 *            is the smart card to fetch the certificate data from
+	 * @throws CardException
+	 *             when a card related error occurred
+	 * @throws CardNotFoundException
+	 *             indicates that the card wasn't present in the system or was
+	 *             reset
+	 */
+	public SignatureCertificate(final SmartCard card) throws CardNotFoundException,
+			CardException {
+		// Initializes the certificate with the read data and the constant label
+		super(card.readFile(new byte[] { Certificate.fgDFCert[0],
+				Certificate.fgDFCert[1], fgSig[0], fgSig[1] },
+				fgMAX_CERT_LEN), fgLabel);
+	}
+
+	/**
+	 * Initializes the signature certificate by the given data.
+	 * 
+	 * @param contents
+	 *            are the contents of the certificate
+	 */
+	public SignatureCertificate(final byte[] contents) {
+		super(contents, fgLabel);
+	}
+}
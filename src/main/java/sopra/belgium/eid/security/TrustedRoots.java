@@ -0,0 +1,387 @@
+package sopra.belgium.eid.security;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * The TrustedRoots class contains the root certificates that the cards may be
+ * signed by, indexed by their SHA-256 fingerprint so that the root of a card is
+ * looked up at once whatever the number of roots. The roots bundled with the
+ * application, see {@link HardCodedRootCertificate} and
+ * {@link HardCodedRootCertificateV2}, are always trusted. More roots, such as
+ * the newer Belgian roots, can be added from a keystore or from a directory of
+ * PEM or DER files, without changing the code.
+ * <br />
+ * The configured source can be watched, so that the roots are loaded again
+ * when it changes without restarting the application. The roots in use are
+ * replaced at once, a lookup never sees a partially loaded registry.
+ */
+public class TrustedRoots {
+
+	/** Contains the extensions of the certificate files read from a directory */
+	private static final String[] fgCERT_EXTENSIONS = { ".pem", ".crt",
+			".cer", ".der" };
+
+	/** Contains the registry used to verify the roots of the cards */
+	private static volatile TrustedRoots fgDefault = new TrustedRoots(null,
+			null);
+
+	/** Contains the keystore, certificate file or directory, null if none */
+	private final File source;
+
+	/** Contains the password of the keystore, null if none */
+	private final char[] password;
+
+	/** Contains the trusted roots mapped by fingerprint */
+	private volatile Map<ByteBuffer, Certificate> roots;
+
+	/** Contains the version of the source the roots have been loaded from */
+	private volatile long sourceVersion;
+
+	/** Contains the thread that watches the source, null if not watched */
+	private Thread watcher;
+
+	/**
+	 * Returns the registry used to verify the roots of the cards.
+	 *
+	 * @return the trusted roots
+	 */
+	public static TrustedRoots getDefault() {
+		return fgDefault;
+	}
+
+	/**
+	 * Sets the registry used to verify the roots of the cards.
+	 *
+	 * @param roots
+	 *            are the trusted roots
+	 */
+	public static void setDefault(final TrustedRoots roots) {
+		fgDefault = roots;
+	}
+
+	/**
+	 * Initializes the registry with the bundled roots and the roots of the
+	 * given source.
+	 *
+	 * @param source
+	 *            is a keystore (.jks, .p12 or .pfx), a certificate file or a
+	 *            directory of certificate files, null for the bundled roots
+	 *            only
+	 * @param password
+	 *            is the password of the keystore, null if none
+	 */
+	public TrustedRoots(final File source, final char[] password) {
+		this.source = source;
+		this.password = (password == null) ? null : password.clone();
+		try {
+			this.roots = Collections.unmodifiableMap(bundled());
+		} catch (CertificateException e) {
+			// The bundled roots are well formed and SHA-256 is always there
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Indicates whether the given certificate is one of the trusted roots.
+	 *
+	 * @param cert
+	 *            is the certificate to look up
+	 * @return whether the certificate is trusted
+	 * @throws CertificateException
+	 *             when SHA-256 isn't supported
+	 */
+	public boolean isTrusted(final Certificate cert)
+			throws CertificateException {
+		return roots.containsKey(ByteBuffer.wrap(cert.getFingerprint()));
+	}
+
+	/**
+	 * Returns the trusted root that has issued the given certificate. The root
+	 * is a copy of its own: validating it sets its status, which mustn't be
+	 * shared by the validations running at the same time.
+	 *
+	 * @param cert
+	 *            is the certificate issued by a root
+	 * @return a copy of the root whose name is the issuer of the certificate,
+	 *         null if none is trusted
+	 * @throws IOException
+	 *             when a certificate couldn't be parsed because the file
+	 *             system is read only
+	 * @throws CertificateException
+	 *             when a certificate couldn't be parsed
+	 */
+	public Certificate getIssuer(final Certificate cert) throws IOException,
+			CertificateException {
+		final X500Principal issuer = cert.getX509Certificate()
+				.getIssuerX500Principal();
+		for (Certificate root : roots.values()) {
+			if (root.getX509Certificate().getSubjectX500Principal().equals(
+					issuer)) {
+				return new RootCertificate(root.getContents());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the trusted roots. They are shared by the whole application, so
+	 * they aren't meant to be validated, see {@link #getIssuer(Certificate)}.
+	 *
+	 * @return the root certificates
+	 */
+	public Collection<Certificate> getRoots() {
+		return roots.values();
+	}
+
+	/**
+	 * Returns the number of trusted roots.
+	 *
+	 * @return the number of roots
+	 */
+	public int size() {
+		return roots.size();
+	}
+
+	/**
+	 * Loads the roots of the source again. The roots in use are kept when the
+	 * source can't be read.
+	 *
+	 * @throws IOException
+	 *             when the source couldn't be read
+	 * @throws GeneralSecurityException
+	 *             when a certificate or the keystore couldn't be parsed
+	 */
+	public synchronized void reload() throws IOException,
+			GeneralSecurityException {
+		final long version = version();
+		final Map<ByteBuffer, Certificate> loaded = bundled();
+		if (source != null) {
+			for (X509Certificate cert : readSource()) {
+				final Certificate root = new RootCertificate(cert.getEncoded());
+				loaded.put(ByteBuffer.wrap(root.getFingerprint()), root);
+			}
+		}
+		roots = Collections.unmodifiableMap(loaded);
+		sourceVersion = version;
+	}
+
+	/**
+	 * Starts loading the roots again whenever the source changes.
+	 *
+	 * @param interval
+	 *            is the time (in milliseconds) between two checks of the
+	 *            source
+	 */
+	public synchronized void watch(final long interval) {
+		if ((source == null) || (watcher != null) || (interval <= 0)) {
+			return;
+		}
+		watcher = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (!Thread.currentThread().isInterrupted()) {
+						Thread.sleep(interval);
+						if (version() != sourceVersion) {
+							reloadQuietly();
+						}
+					}
+				} catch (InterruptedException e) {
+					// Stopped watching
+				}
+			}
+		}, "eid-trusted-roots-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * Stops watching the source.
+	 */
+	public synchronized void stopWatching() {
+		if (watcher != null) {
+			watcher.interrupt();
+			watcher = null;
+		}
+	}
+
+	/**
+	 * Loads the roots of the source again, reporting the problems instead of
+	 * throwing them.
+	 */
+	private void reloadQuietly() {
+		try {
+			reload();
+		} catch (Exception e) {
+			// Keep on using the previous roots
+			System.err.println("Trusted roots not reloaded from " + source
+					+ ": " + e);
+		}
+	}
+
+	/**
+	 * Returns the version of the source, which changes whenever a file is
+	 * added, removed or modified.
+	 *
+	 * @return the version of the source
+	 */
+	private long version() {
+		if (source == null) {
+			return 0;
+		}
+		long version = source.lastModified();
+		final File[] files = source.listFiles();
+		if (files != null) {
+			version = version * 31 + files.length;
+			for (File file : files) {
+				version = version * 31 + file.lastModified();
+			}
+		}
+		return version;
+	}
+
+	/**
+	 * Reads the certificates of the source.
+	 *
+	 * @return the certificates of the source
+	 * @throws IOException
+	 *             when the source couldn't be read
+	 * @throws GeneralSecurityException
+	 *             when a certificate or the keystore couldn't be parsed
+	 */
+	private List<X509Certificate> readSource() throws IOException,
+			GeneralSecurityException {
+		final List<X509Certificate> certs = new ArrayList<X509Certificate>();
+		if (source.isDirectory()) {
+			final File[] files = source.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					if (isCertificateFile(file)) {
+						certs.addAll(readCertificates(file));
+					}
+				}
+			}
+		} else if (isCertificateFile(source)) {
+			certs.addAll(readCertificates(source));
+		} else {
+			certs.addAll(readKeyStore(source));
+		}
+		return certs;
+	}
+
+	/**
+	 * Reads the certificates of a PEM or DER file.
+	 *
+	 * @param file
+	 *            is the certificate file
+	 * @return the certificates of the file
+	 * @throws IOException
+	 *             when the file couldn't be read
+	 * @throws CertificateException
+	 *             when a certificate couldn't be parsed
+	 */
+	private static List<X509Certificate> readCertificates(final File file)
+			throws IOException, CertificateException {
+		final List<X509Certificate> certs = new ArrayList<X509Certificate>();
+		final InputStream in = new FileInputStream(file);
+		try {
+			final CertificateFactory cf = CertificateFactory
+					.getInstance("X.509");
+			for (java.security.cert.Certificate cert : cf
+					.generateCertificates(in)) {
+				certs.add((X509Certificate) cert);
+			}
+		} finally {
+			in.close();
+		}
+		return certs;
+	}
+
+	/**
+	 * Reads the certificates of a keystore.
+	 *
+	 * @param file
+	 *            is the keystore, PKCS12 for .p12 and .pfx files, JKS
+	 *            otherwise
+	 * @return the certificates of the keystore
+	 * @throws IOException
+	 *             when the keystore couldn't be read
+	 * @throws GeneralSecurityException
+	 *             when the keystore couldn't be parsed
+	 */
+	private List<X509Certificate> readKeyStore(final File file)
+			throws IOException, GeneralSecurityException {
+		final String name = file.getName().toLowerCase();
+		final KeyStore store = KeyStore.getInstance((name.endsWith(".p12") || name
+				.endsWith(".pfx")) ? "PKCS12" : "JKS");
+		final InputStream in = new FileInputStream(file);
+		try {
+			store.load(in, password);
+		} finally {
+			in.close();
+		}
+		final List<X509Certificate> certs = new ArrayList<X509Certificate>();
+		final Enumeration<String> aliases = store.aliases();
+		while (aliases.hasMoreElements()) {
+			final java.security.cert.Certificate cert = store
+					.getCertificate(aliases.nextElement());
+			if (cert instanceof X509Certificate) {
+				certs.add((X509Certificate) cert);
+			}
+		}
+		return certs;
+	}
+
+	/**
+	 * Indicates whether the given file holds certificates rather than a
+	 * keystore.
+	 *
+	 * @param file
+	 *            is the file
+	 * @return whether it is a certificate file
+	 */
+	private static boolean isCertificateFile(final File file) {
+		final String name = file.getName().toLowerCase();
+		for (String extension : fgCERT_EXTENSIONS) {
+			if (name.endsWith(extension)) {
+				return file.isFile();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the bundled roots mapped by fingerprint.
+	 *
+	 * @return the bundled roots
+	 * @throws CertificateException
+	 *             when a root couldn't be parsed
+	 */
+	private static Map<ByteBuffer, Certificate> bundled()
+			throws CertificateException {
+		final Map<ByteBuffer, Certificate> bundled = new HashMap<ByteBuffer, Certificate>();
+		for (Certificate root : new Certificate[] {
+				HardCodedRootCertificate.getInstance(),
+				HardCodedRootCertificateV2.getInstance() }) {
+			bundled.put(ByteBuffer.wrap(root.getFingerprint()), root);
+		}
+		return bundled;
+	}
+}
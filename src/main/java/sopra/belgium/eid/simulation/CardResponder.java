@@ -0,0 +1,30 @@
+package sopra.belgium.eid.simulation;
+
+import javax.smartcardio.CardException;
+
+/**
+ * The CardResponder interface is the card behind a
+ * {@link sopra.belgium.eid.simulation.SimulatedCardTerminal}. It answers the
+ * APDUs sent to the card, e.g. from the files of a
+ * {@link sopra.belgium.eid.simulation.SimulatedApplet} or from a recorded
+ * trace.
+ */
+public interface CardResponder {
+
+	/**
+	 * Processes the given command and returns the response of the card.
+	 *
+	 * @param command
+	 *            is the encoded command APDU
+	 * @return the encoded response APDU
+	 * @throws CardException
+	 *             when the card couldn't answer
+	 */
+	byte[] process(byte[] command) throws CardException;
+
+	/**
+	 * Resets the card, as happens when it is inserted or when a connection is
+	 * released with a reset.
+	 */
+	void reset();
+}
@@ -0,0 +1,216 @@
+package sopra.belgium.eid.simulation;
+
+import java.util.Arrays;
+
+import javax.smartcardio.CommandAPDU;
+
+/**
+ * The SimulatedApplet class answers the APDUs sent to a simulated beID card.
+ * It supports the commands used by {@link sopra.belgium.eid.metier.SmartCard}:
+ * SELECT FILE by path from the master file, by identifier of a dedicated file
+ * and by identifier of an elementary file in the current dedicated file, and
+ * READ BINARY with the status words of a real card when asking beyond the end
+ * of a file. The applet keeps the currently selected file, like the card does.
+ */
+public class SimulatedApplet implements CardResponder {
+
+	/** Contains the identifier of the master file */
+	public static final int fgMF = 0x3F00;
+
+	/** Contains the status word of a successful command */
+	private static final byte[] fgSW_OK = { (byte) 0x90, (byte) 0x00 };
+
+	/** Contains the files of the card */
+	private final SimulatedCardFiles files;
+
+	/** Contains the capabilities of the reader and the card */
+	private final SimulationConfig config;
+
+	/** Contains the identifier of the selected dedicated file */
+	private int currentDF = fgMF;
+
+	/** Contains the identifier of the selected elementary file, -1 if none */
+	private int currentEF = -1;
+
+	/**
+	 * Initializes the applet of a freshly inserted or reset card.
+	 *
+	 * @param files
+	 *            are the files of the card
+	 * @param config
+	 *            are the capabilities of the reader and the card
+	 */
+	public SimulatedApplet(final SimulatedCardFiles files,
+			final SimulationConfig config) {
+		this.files = files;
+		this.config = config;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see sopra.belgium.eid.simulation.CardResponder#process(byte[])
+	 */
+	public synchronized byte[] process(final byte[] command) {
+		final CommandAPDU apdu;
+		try {
+			apdu = new CommandAPDU(command);
+		} catch (IllegalArgumentException e) {
+			// Wrong length
+			return sw(0x67, 0x00);
+		}
+		if (apdu.getCLA() != 0x00) {
+			// Class not supported
+			return sw(0x6E, 0x00);
+		}
+
+		switch (apdu.getINS()) {
+		case 0xA4:
+			return select(apdu);
+		case 0xB0:
+			return readBinary(apdu, command.length > 5);
+		default:
+			// Instruction not supported
+			return sw(0x6D, 0x00);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see sopra.belgium.eid.simulation.CardResponder#reset()
+	 */
+	public synchronized void reset() {
+		// The master file is selected after a reset
+		currentDF = fgMF;
+		currentEF = -1;
+	}
+
+	/**
+	 * Selects the file given by the command.
+	 *
+	 * @param apdu
+	 *            is the SELECT FILE command
+	 * @return the encoded response APDU
+	 */
+	private byte[] select(final CommandAPDU apdu) {
+		final byte[] data = apdu.getData();
+		if ((data.length == 0) || (data.length % 2 != 0)) {
+			return sw(0x67, 0x00);
+		}
+		final int[] path = new int[data.length / 2];
+		for (int i = 0; i < path.length; i++) {
+			path[i] = ((data[2 * i] & 0xFF) << 8) | (data[2 * i + 1] & 0xFF);
+		}
+
+		switch (apdu.getP1()) {
+		case 0x00:
+		case 0x01:
+			// Dedicated file (or master file) by identifier
+			if ((path.length == 1) && ((path[0] == fgMF) || files.hasDF(path[0]))) {
+				currentDF = path[0];
+				currentEF = -1;
+				return fgSW_OK.clone();
+			}
+			return sw(0x6A, 0x82);
+		case 0x02:
+			// Elementary file in the current dedicated file
+			if ((path.length == 1) && (files.file(currentDF, path[0]) != null)) {
+				currentEF = path[0];
+				return fgSW_OK.clone();
+			}
+			return sw(0x6A, 0x82);
+		case 0x08:
+			// Path from the master file, which may be given explicitly
+			int start = (path[0] == fgMF) ? 1 : 0;
+			if ((path.length - start == 2)
+					&& (files.file(path[start], path[start + 1]) != null)) {
+				currentDF = path[start];
+				currentEF = path[start + 1];
+				return fgSW_OK.clone();
+			} else if ((path.length - start == 1) && files.hasDF(path[start])) {
+				currentDF = path[start];
+				currentEF = -1;
+				return fgSW_OK.clone();
+			}
+			return sw(0x6A, 0x82);
+		default:
+			// Incorrect parameters
+			return sw(0x6A, 0x86);
+		}
+	}
+
+	/**
+	 * Reads a block of the selected file.
+	 *
+	 * @param apdu
+	 *            is the READ BINARY command
+	 * @param extended
+	 *            indicates whether the command uses an extended length field
+	 * @return the encoded response APDU
+	 */
+	private byte[] readBinary(final CommandAPDU apdu, final boolean extended) {
+		if (currentEF == -1) {
+			// Command not allowed, no file selected
+			return sw(0x69, 0x86);
+		}
+		if ((extended && !config.isExtendedLength())
+				|| (apdu.getNe() > config.getMaxBlockLength())) {
+			return sw(0x67, 0x00);
+		}
+
+		final byte[] file = files.file(currentDF, currentEF);
+		final int offset = ((apdu.getP1() & 0x7F) << 8) | apdu.getP2();
+		if (offset >= file.length) {
+			// Offset beyond the end of the file
+			return sw(0x6B, 0x00);
+		}
+
+		final int remaining = file.length - offset;
+		if (apdu.getNe() <= remaining) {
+			return response(file, offset, apdu.getNe(), fgSW_OK);
+		} else if (!extended && (remaining < 256)) {
+			// Wrong length, the exact length is given in SW2
+			return sw(0x6C, remaining);
+		} else {
+			// End of file reached before reading the asked bytes
+			return response(file, offset, remaining, new byte[] { (byte) 0x62,
+					(byte) 0x82 });
+		}
+	}
+
+	/**
+	 * Returns a response with the given part of a file and status word.
+	 *
+	 * @param file
+	 *            is the contents of the file
+	 * @param offset
+	 *            is the first byte to return
+	 * @param length
+	 *            is the number of bytes to return
+	 * @param sw
+	 *            is the status word
+	 * @return the encoded response APDU
+	 */
+	private static byte[] response(final byte[] file, final int offset,
+			final int length, final byte[] sw) {
+		final byte[] response = Arrays.copyOf(Arrays.copyOfRange(file, offset,
+				offset + length), length + 2);
+		response[length] = sw[0];
+		response[length + 1] = sw[1];
+		return response;
+	}
+
+	/**
+	 * Returns a response containing only the given status word.
+	 *
+	 * @param sw1
+	 *            is the first status word
+	 * @param sw2
+	 *            is the second status word
+	 * @return the encoded response APDU
+	 */
+	private static byte[] sw(final int sw1, final int sw2) {
+		return new byte[] { (byte) sw1, (byte) sw2 };
+	}
+}
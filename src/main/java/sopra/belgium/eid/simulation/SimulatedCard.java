@@ -0,0 +1,136 @@
+package sopra.belgium.eid.simulation;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+
+/**
+ * The SimulatedCard class is a connection with the simulated beID card in a
+ * {@link sopra.belgium.eid.simulation.SimulatedCardTerminal}. Only the basic
+ * channel is available, like on the real card.
+ */
+public class SimulatedCard extends Card {
+
+	/** Contains the reader holding the card */
+	private final SimulatedCardTerminal terminal;
+
+	/** Contains the ATR of the card */
+	private final ATR atr;
+
+	/** Contains the basic channel of the connection */
+	private final SimulatedCardChannel basicChannel;
+
+	/** Indicates whether the connection is still valid */
+	private volatile boolean valid = true;
+
+	/** Indicates whether this connection holds exclusive access to the card */
+	private boolean exclusive = false;
+
+	/** Contains the generation of the card the connection has been made with */
+	private final int generation;
+
+	/**
+	 * Initializes the connection with the card in the given reader.
+	 *
+	 * @param terminal
+	 *            is the reader holding the card
+	 * @param atr
+	 *            is the ATR of the card
+	 * @param generation
+	 *            is the number of times the card has been inserted or reset
+	 */
+	SimulatedCard(final SimulatedCardTerminal terminal, final ATR atr,
+			final int generation) {
+		this.terminal = terminal;
+		this.atr = atr;
+		this.generation = generation;
+		this.basicChannel = new SimulatedCardChannel(this);
+	}
+
+	@Override
+	public ATR getATR() {
+		return atr;
+	}
+
+	@Override
+	public String getProtocol() {
+		return "T=1";
+	}
+
+	@Override
+	public CardChannel getBasicChannel() {
+		checkValid();
+		return basicChannel;
+	}
+
+	@Override
+	public CardChannel openLogicalChannel() throws CardException {
+		throw new CardException("Logical channels aren't supported by the card");
+	}
+
+	@Override
+	public void beginExclusive() throws CardException {
+		checkValid();
+		terminal.beginExclusive();
+		exclusive = true;
+	}
+
+	@Override
+	public void endExclusive() throws CardException {
+		checkValid();
+		terminal.endExclusive();
+		exclusive = false;
+	}
+
+	@Override
+	public byte[] transmitControlCommand(final int controlCode,
+			final byte[] command) throws CardException {
+		throw new CardException("Control commands aren't supported by the reader");
+	}
+
+	@Override
+	public void disconnect(final boolean reset) throws CardException {
+		if (valid) {
+			valid = false;
+			if (exclusive) {
+				terminal.endExclusive();
+				exclusive = false;
+			}
+			if (reset) {
+				terminal.reset();
+			}
+		}
+	}
+
+	/**
+	 * Returns the reader holding the card.
+	 *
+	 * @return the reader
+	 */
+	SimulatedCardTerminal terminal() {
+		return terminal;
+	}
+
+	/**
+	 * Returns the number of times the card had been inserted or reset when the
+	 * connection has been made.
+	 *
+	 * @return the generation of the card
+	 */
+	int generation() {
+		return generation;
+	}
+
+	/**
+	 * Makes sure the connection hasn't been closed yet.
+	 *
+	 * @throws IllegalStateException
+	 *             when the card has been disconnected
+	 */
+	void checkValid() {
+		if (!valid) {
+			throw new IllegalStateException("Card has been disconnected");
+		}
+	}
+}
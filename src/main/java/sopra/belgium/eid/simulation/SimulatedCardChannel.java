@@ -0,0 +1,106 @@
+package sopra.belgium.eid.simulation;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * The SimulatedCardChannel class transmits APDUs to a simulated beID card. Every APDU takes the latency of the reader, varied randomly by at
+ * most the configured jitter, to simulate the time spent on the wire. Like
+ * the PC/SC channel, it refuses response buffers with room for less than a
+ * full short response.
+ */
+public class SimulatedCardChannel extends CardChannel {
+
+	/** Contains the room PC/SC requires in a response buffer */
+	private static final int fgMIN_RESPONSE_SPACE = 258;
+
+	/** Contains the random generator for the jitter */
+	private static final Random fgRandom = new Random();
+
+	/** Contains the connection the channel belongs to */
+	private final SimulatedCard card;
+
+	/**
+	 * Initializes the basic channel of the given connection.
+	 *
+	 * @param card
+	 *            is the connection the channel belongs to
+	 */
+	SimulatedCardChannel(final SimulatedCard card) {
+		this.card = card;
+	}
+
+	@Override
+	public Card getCard() {
+		return card;
+	}
+
+	@Override
+	public int getChannelNumber() {
+		return 0;
+	}
+
+	@Override
+	public ResponseAPDU transmit(final CommandAPDU command)
+			throws CardException {
+		return new ResponseAPDU(process(command.getBytes()));
+	}
+
+	@Override
+	public int transmit(final ByteBuffer command, final ByteBuffer response)
+			throws CardException {
+		if (response.remaining() < fgMIN_RESPONSE_SPACE) {
+			throw new IllegalArgumentException(
+					"Insufficient space in response buffer");
+		}
+		final byte[] commandBytes = new byte[command.remaining()];
+		command.get(commandBytes);
+		final byte[] responseBytes = process(commandBytes);
+		if (response.remaining() < responseBytes.length) {
+			throw new IllegalArgumentException(
+					"Insufficient space in response buffer");
+		}
+		response.put(responseBytes);
+		return responseBytes.length;
+	}
+
+	@Override
+	public void close() throws CardException {
+		throw new IllegalStateException("Cannot close basic logical channel");
+	}
+
+	/**
+	 * Sends the given command to the card after waiting for the
+	 * latency of the reader.
+	 *
+	 * @param command
+	 *            is the encoded command APDU
+	 * @return the encoded response APDU
+	 * @throws CardException
+	 *             when the card has been removed or waiting was interrupted
+	 */
+	private byte[] process(final byte[] command) throws CardException {
+		card.checkValid();
+		final SimulationConfig config = card.terminal().config();
+		long delay = config.getLatency();
+		if (config.getJitter() > 0) {
+			delay += (long) ((fgRandom.nextDouble() * 2 - 1) * config
+					.getJitter());
+		}
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CardException(e);
+			}
+		}
+		return card.terminal().responder(card.generation()).process(command);
+	}
+}
@@ -0,0 +1,149 @@
+package sopra.belgium.eid.simulation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The SimulatedCardFiles class contains the file system of a simulated beID
+ * card. Every file is stored in a fixture named after its dedicated file and
+ * its elementary file, e.g. <i>DF01-4031.bin</i> for the ID file or
+ * <i>DF00-503C.bin</i> for the RN certificate. The fixtures are read from a
+ * directory, or from the synthetic card bundled with the application.
+ */
+public class SimulatedCardFiles {
+
+	/** Contains the location of the bundled synthetic card on the classpath */
+	public static final String fgBUNDLED = "/simulation/card/";
+
+	/** Contains the files of the bundled synthetic card */
+	public static final String[] fgBUNDLED_FILES = { "DF01-4031", "DF01-4032",
+			"DF01-4033", "DF01-4034", "DF01-4035", "DF00-5038", "DF00-5039",
+			"DF00-503A", "DF00-503B", "DF00-503C" };
+
+	/** Contains the extension of the fixtures */
+	public static final String fgEXTENSION = ".bin";
+
+	/** Contains the contents of the files mapped by their path */
+	private final Map<String, byte[]> files;
+
+	/**
+	 * Returns the files found in the given directory, or the bundled
+	 * synthetic card when no directory is given.
+	 *
+	 * @param directory
+	 *            is the directory with the fixtures, null for the bundled card
+	 * @return the file system of the simulated card
+	 * @throws IOException
+	 *             when the fixtures couldn't be read
+	 */
+	public static SimulatedCardFiles load(final String directory)
+			throws IOException {
+		final Map<String, byte[]> files = new HashMap<String, byte[]>();
+		if (directory == null) {
+			for (String name : fgBUNDLED_FILES) {
+				final InputStream in = SimulatedCardFiles.class
+						.getResourceAsStream(fgBUNDLED + name + fgEXTENSION);
+				if (in != null) {
+					files.put(name, readFully(in));
+				}
+			}
+		} else {
+			final File[] fixtures = new File(directory).listFiles();
+			if (fixtures == null) {
+				throw new IOException("No fixtures found in " + directory);
+			}
+			for (File fixture : fixtures) {
+				final String name = fixture.getName();
+				if (name.matches("[0-9A-Fa-f]{4}-[0-9A-Fa-f]{4}\\"
+						+ fgEXTENSION)) {
+					files.put(name.substring(0, 9).toUpperCase(),
+							readFully(new FileInputStream(fixture)));
+				}
+			}
+		}
+		return new SimulatedCardFiles(files);
+	}
+
+	/**
+	 * Initializes the file system with the given files.
+	 *
+	 * @param files
+	 *            are the contents of the files mapped by their path
+	 */
+	public SimulatedCardFiles(final Map<String, byte[]> files) {
+		this.files = Collections.unmodifiableMap(new HashMap<String, byte[]>(
+				files));
+	}
+
+	/**
+	 * Indicates whether the dedicated file with the given identifier exists.
+	 *
+	 * @param df
+	 *            is the identifier of the dedicated file
+	 * @return whether the dedicated file exists
+	 */
+	public boolean hasDF(final int df) {
+		final String prefix = path(df, 0).substring(0, 5);
+		for (String path : files.keySet()) {
+			if (path.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the contents of the elementary file in the given dedicated file.
+	 *
+	 * @param df
+	 *            is the identifier of the dedicated file
+	 * @param ef
+	 *            is the identifier of the elementary file
+	 * @return the contents of the file, null if it doesn't exist
+	 */
+	public byte[] file(final int df, final int ef) {
+		return files.get(path(df, ef));
+	}
+
+	/**
+	 * Returns the path of a file as used in the names of the fixtures.
+	 *
+	 * @param df
+	 *            is the identifier of the dedicated file
+	 * @param ef
+	 *            is the identifier of the elementary file
+	 * @return the path of the file
+	 */
+	private static String path(final int df, final int ef) {
+		return String.format("%04X-%04X", df, ef);
+	}
+
+	/**
+	 * Reads the given stream completely and closes it.
+	 *
+	 * @param in
+	 *            is the stream to read
+	 * @return the contents of the stream
+	 * @throws IOException
+	 *             when the stream couldn't be read
+	 */
+	private static byte[] readFully(final InputStream in) throws IOException {
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
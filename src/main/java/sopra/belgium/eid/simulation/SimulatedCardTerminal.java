@@ -0,0 +1,252 @@
+package sopra.belgium.eid.simulation;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
+import javax.smartcardio.CardTerminal;
+
+/**
+ * The SimulatedCardTerminal class is a smart card reader holding a simulated
+ * beID card. The card can be removed and inserted again to simulate a citizen
+ * at the desk. Every connection to the card shares the same
+ * {@link sopra.belgium.eid.simulation.CardResponder}, which is reset when the
+ * card is inserted or reset.
+ */
+public class SimulatedCardTerminal extends CardTerminal {
+
+	/** Contains the ATR of a simulated card without extended length support */
+	private static final byte[] fgATR = { (byte) 0x3B, (byte) 0x98,
+			(byte) 0x13, (byte) 0x40, (byte) 0x0A, (byte) 0xA5, (byte) 0x03,
+			(byte) 0x01, (byte) 0x01, (byte) 0x01, (byte) 0xAD, (byte) 0x13,
+			(byte) 0x11 };
+
+	/**
+	 * Contains the ATR of a simulated card announcing extended Lc and Le
+	 * fields in its card capabilities
+	 */
+	private static final byte[] fgATR_EXTENDED = { (byte) 0x3B, (byte) 0x05,
+			(byte) 0x80, (byte) 0x73, (byte) 0x00, (byte) 0x00, (byte) 0x40 };
+
+	/** Contains the name of the reader */
+	private final String name;
+
+	/** Contains the ATR of the card in the reader, null to derive it */
+	private final byte[] atr;
+
+	/** Contains the capabilities and the speed of the reader */
+	private final SimulationConfig config;
+
+	/** Contains the readers the reader belongs to */
+	private final SimulatedCardTerminals terminals;
+
+	/** Contains the card that answers the APDUs */
+	private final CardResponder responder;
+
+	/** Indicates whether a card is present in the reader */
+	private boolean present = true;
+
+	/** Contains the thread that has exclusive access to the card, if any */
+	private Thread exclusiveOwner;
+
+	/**
+	 * Contains the number of times the card has been inserted or reset, the
+	 * connections made before are no longer valid
+	 */
+	private int generation = 0;
+
+	/**
+	 * Initializes the reader with a card inserted.
+	 *
+	 * @param name
+	 *            is the name of the reader
+	 * @param atr
+	 *            is the ATR of the card in the reader, null to derive it from
+	 *            the capabilities of the reader
+	 * @param responder
+	 *            is the card that answers the APDUs
+	 * @param config
+	 *            are the capabilities and the speed of the reader
+	 * @param terminals
+	 *            are the readers the reader belongs to
+	 */
+	SimulatedCardTerminal(final String name, final byte[] atr,
+			final CardResponder responder, final SimulationConfig config,
+			final SimulatedCardTerminals terminals) {
+		this.name = name;
+		this.atr = (atr == null) ? null : atr.clone();
+		this.responder = responder;
+		this.config = config;
+		this.terminals = terminals;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public synchronized Card connect(final String protocol)
+			throws CardException {
+		if (!present) {
+			throw new CardNotPresentException("No card present in " + name);
+		}
+		if (atr != null) {
+			return new SimulatedCard(this, new ATR(atr), generation);
+		}
+		return new SimulatedCard(this, new ATR(config.isExtendedLength()
+				? fgATR_EXTENDED : fgATR), generation);
+	}
+
+	@Override
+	public synchronized boolean isCardPresent() {
+		return present;
+	}
+
+	@Override
+	public synchronized boolean waitForCardPresent(final long timeout)
+			throws CardException {
+		return waitForPresence(true, timeout);
+	}
+
+	@Override
+	public synchronized boolean waitForCardAbsent(final long timeout)
+			throws CardException {
+		return waitForPresence(false, timeout);
+	}
+
+	/**
+	 * Inserts a fresh card in the reader.
+	 */
+	public void insertCard() {
+		synchronized (this) {
+			present = true;
+			generation++;
+			responder.reset();
+			notifyAll();
+		}
+		terminals.changed(this, true);
+	}
+
+	/**
+	 * Removes the card from the reader.
+	 */
+	public void removeCard() {
+		synchronized (this) {
+			present = false;
+			exclusiveOwner = null;
+			notifyAll();
+		}
+		terminals.changed(this, false);
+	}
+
+	/**
+	 * Returns the card that answers the APDUs sent over a connection.
+	 *
+	 * @param connection
+	 *            is the generation of the card the connection has been made
+	 *            with
+	 * @return the responder of the inserted card
+	 * @throws CardException
+	 *             when the card has been removed, or has been removed or reset
+	 *             since the connection has been made
+	 */
+	synchronized CardResponder responder(final int connection)
+			throws CardException {
+		if (!present) {
+			throw new CardNotPresentException("The card has been removed from "
+					+ name);
+		}
+		if (connection != generation) {
+			throw new CardException("The card in " + name
+					+ " has been removed or reset since the connection was made");
+		}
+		return responder;
+	}
+
+	/**
+	 * Resets the inserted card, the selected file is lost.
+	 */
+	synchronized void reset() {
+		generation++;
+		responder.reset();
+	}
+
+	/**
+	 * Returns the capabilities and the speed of the reader.
+	 *
+	 * @return the settings of the reader
+	 */
+	SimulationConfig config() {
+		return config;
+	}
+
+	/**
+	 * Gives exclusive access to the card to the current thread, waiting for
+	 * another thread to release it if needed.
+	 *
+	 * @throws CardException
+	 *             when the current thread already has exclusive access
+	 */
+	synchronized void beginExclusive() throws CardException {
+		final Thread current = Thread.currentThread();
+		if (exclusiveOwner == current) {
+			throw new CardException(
+					"Exclusive access has already been assigned to "
+							+ current.getName());
+		}
+		while (exclusiveOwner != null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CardException(e);
+			}
+		}
+		exclusiveOwner = current;
+	}
+
+	/**
+	 * Releases the exclusive access of the current thread.
+	 *
+	 * @throws CardException
+	 *             when the current thread doesn't have exclusive access
+	 */
+	synchronized void endExclusive() throws CardException {
+		if (exclusiveOwner != Thread.currentThread()) {
+			throw new CardException(
+					"Exclusive access not assigned to current thread");
+		}
+		exclusiveOwner = null;
+		notifyAll();
+	}
+
+	/**
+	 * Waits until the presence of the card matches the given one.
+	 *
+	 * @param wanted
+	 *            is the wanted presence of the card
+	 * @param timeout
+	 *            is the time to wait in milliseconds, 0 to wait forever
+	 * @return whether the presence matches
+	 * @throws CardException
+	 *             when waiting has been interrupted
+	 */
+	private boolean waitForPresence(final boolean wanted, final long timeout)
+			throws CardException {
+		final long end = System.currentTimeMillis() + timeout;
+		while (present != wanted) {
+			final long left = end - System.currentTimeMillis();
+			if ((timeout != 0) && (left <= 0)) {
+				return false;
+			}
+			try {
+				wait((timeout == 0) ? 0 : left);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CardException(e);
+			}
+		}
+		return true;
+	}
+}
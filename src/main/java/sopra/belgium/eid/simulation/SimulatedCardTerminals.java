@@ -0,0 +1,151 @@
+package sopra.belgium.eid.simulation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+
+import sopra.belgium.eid.trace.APDUTraceReplayer;
+
+/**
+ * The SimulatedCardTerminals class contains the simulated smart card readers of
+ * a {@link sopra.belgium.eid.simulation.SimulatedTerminalFactorySpi}. It keeps
+ * track of the insertions and removals since the last call to
+ * {@link #waitForChange(long)}, like the PC/SC implementation does.
+ */
+public class SimulatedCardTerminals extends CardTerminals {
+
+	/** Contains the simulated readers */
+	private final List<SimulatedCardTerminal> terminals;
+
+	/** Contains the readers in which a card has been inserted */
+	private final Set<SimulatedCardTerminal> insertions = new HashSet<SimulatedCardTerminal>();
+
+	/** Contains the readers from which a card has been removed */
+	private final Set<SimulatedCardTerminal> removals = new HashSet<SimulatedCardTerminal>();
+
+	/** Indicates whether a change occurred since the last wait */
+	private boolean changed = false;
+
+	/**
+	 * Initializes the given number of readers, each holding a card with the
+	 * given files.
+	 *
+	 * @param files
+	 *            are the files of the simulated cards
+	 * @param config
+	 *            are the capabilities and the speed of the readers
+	 */
+	public SimulatedCardTerminals(final SimulatedCardFiles files,
+			final SimulationConfig config) {
+		final List<SimulatedCardTerminal> list = new ArrayList<SimulatedCardTerminal>();
+		for (int i = 0; i < config.getReaders(); i++) {
+			final SimulatedCardTerminal terminal = new SimulatedCardTerminal(
+					"Simulated eID Reader " + i, null, new SimulatedApplet(files,
+							config), config, this);
+			list.add(terminal);
+			insertions.add(terminal);
+		}
+		this.terminals = Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Initializes a reader for every reader found in the given trace, each
+	 * holding a card that answers with the recorded responses.
+	 *
+	 * @param replayer
+	 *            is the replayer of the recorded trace
+	 * @param config
+	 *            are the capabilities and the speed of the readers
+	 */
+	public SimulatedCardTerminals(final APDUTraceReplayer replayer,
+			final SimulationConfig config) {
+		final List<SimulatedCardTerminal> list = new ArrayList<SimulatedCardTerminal>();
+		for (String name : replayer.getReaderNames()) {
+			final SimulatedCardTerminal terminal = new SimulatedCardTerminal(
+					name, replayer.getATR(name), replayer.responder(name),
+					config, this);
+			list.add(terminal);
+			insertions.add(terminal);
+		}
+		this.terminals = Collections.unmodifiableList(list);
+	}
+
+	@Override
+	public synchronized List<CardTerminal> list(final State state)
+			throws CardException {
+		final List<CardTerminal> list = new ArrayList<CardTerminal>();
+		for (SimulatedCardTerminal terminal : terminals) {
+			final boolean match;
+			switch (state) {
+			case CARD_PRESENT:
+				match = terminal.isCardPresent();
+				break;
+			case CARD_ABSENT:
+				match = !terminal.isCardPresent();
+				break;
+			case CARD_INSERTION:
+				match = insertions.contains(terminal);
+				break;
+			case CARD_REMOVAL:
+				match = removals.contains(terminal);
+				break;
+			default:
+				match = true;
+			}
+			if (match) {
+				list.add(terminal);
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public synchronized boolean waitForChange(final long timeout)
+			throws CardException {
+		final long end = System.currentTimeMillis() + timeout;
+		while (!changed) {
+			final long left = end - System.currentTimeMillis();
+			if ((timeout != 0) && (left <= 0)) {
+				break;
+			}
+			try {
+				wait((timeout == 0) ? 0 : left);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CardException(e);
+			}
+		}
+
+		// The events are relative to this call from now on
+		final boolean result = changed;
+		changed = false;
+		insertions.clear();
+		removals.clear();
+		return result;
+	}
+
+	/**
+	 * Registers the insertion or removal of a card in the given reader.
+	 *
+	 * @param terminal
+	 *            is the reader that changed
+	 * @param inserted
+	 *            indicates whether the card has been inserted or removed
+	 */
+	synchronized void changed(final SimulatedCardTerminal terminal,
+			final boolean inserted) {
+		if (inserted) {
+			insertions.add(terminal);
+		} else {
+			removals.add(terminal);
+		}
+		changed = true;
+		notifyAll();
+	}
+}
@@ -0,0 +1,41 @@
+package sopra.belgium.eid.simulation;
+
+import java.security.Provider;
+import java.security.Security;
+
+/**
+ * The SimulatedProvider class registers the "PC/SC-SIM" terminal factory,
+ * which serves simulated smart card readers holding a beID card whose files
+ * are read from fixtures. It allows the whole read path to run without any
+ * smart card reader attached, e.g. for load and latency testing.
+ */
+@SuppressWarnings("serial")
+public class SimulatedProvider extends Provider {
+
+	/** Contains the name of the provider */
+	public static final String fgNAME = "EIDSimulation";
+
+	/** Contains the type of the simulated terminal factory */
+	public static final String fgTYPE = "PC/SC-SIM";
+
+	/**
+	 * Initializes the provider. The constructor taking the version as a
+	 * string only exists since Java 9, while the application still runs on
+	 * Java 8: the one taking a double is the only one both accept.
+	 */
+	@SuppressWarnings("deprecation")
+	public SimulatedProvider() {
+		super(fgNAME, 1.0, "Simulated beID smart card readers");
+		put("TerminalFactory." + fgTYPE,
+				SimulatedTerminalFactorySpi.class.getName());
+	}
+
+	/**
+	 * Registers the provider in the system, unless already done.
+	 */
+	public static synchronized void install() {
+		if (Security.getProvider(fgNAME) == null) {
+			Security.addProvider(new SimulatedProvider());
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package sopra.belgium.eid.simulation;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.InvalidAlgorithmParameterException;
+
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactorySpi;
+
+import sopra.belgium.eid.trace.APDUTraceReplayer;
+
+/**
+ * The SimulatedTerminalFactorySpi class is the implementation of the
+ * "PC/SC-SIM" terminal factory. Its parameter is the
+ * {@link sopra.belgium.eid.simulation.SimulationConfig} to use, when no
+ * parameter is given the settings are taken from the system properties. When
+ * the settings name a recorded trace, the readers of the trace are replayed
+ * instead of serving the fixtures.
+ */
+public class SimulatedTerminalFactorySpi extends TerminalFactorySpi {
+
+	/** Contains the simulated readers */
+	private final SimulatedCardTerminals terminals;
+
+	/**
+	 * Initializes the simulated readers with the given settings.
+	 *
+	 * @param params
+	 *            is the {@link SimulationConfig} to use, or null
+	 * @throws InvalidAlgorithmParameterException
+	 *             when the parameter isn't a simulation config or when the
+	 *             fixtures or the trace couldn't be read
+	 */
+	public SimulatedTerminalFactorySpi(final Object params)
+			throws InvalidAlgorithmParameterException {
+		final SimulationConfig config;
+		if (params == null) {
+			config = SimulationConfig.fromSystemProperties();
+		} else if (params instanceof SimulationConfig) {
+			config = (SimulationConfig) params;
+		} else {
+			throw new InvalidAlgorithmParameterException(
+					"Expected a SimulationConfig instead of " + params);
+		}
+
+		try {
+			if (config.getReplay() != null) {
+				// The cards answer what has been recorded in the trace
+				terminals = new SimulatedCardTerminals(APDUTraceReplayer.load(
+						new File(config.getReplay()), config.isReplayPaced()),
+						config);
+			} else {
+				terminals = new SimulatedCardTerminals(SimulatedCardFiles
+						.load(config.getFixtures()), config);
+			}
+		} catch (IOException e) {
+			throw new InvalidAlgorithmParameterException(e);
+		}
+	}
+
+	@Override
+	protected CardTerminals engineTerminals() {
+		return terminals;
+	}
+}
@@ -0,0 +1,138 @@
+package sopra.belgium.eid.simulation;
+
+/**
+ * The SimulationConfig class contains the settings of the simulated smart card
+ * readers served by the {@link sopra.belgium.eid.simulation.SimulatedProvider}:
+ * where the files of the simulated card come from, how many readers exist and
+ * how fast and how capable the simulated readers are. Every setting can be
+ * given by a system property, see {@link #fromSystemProperties()}.
+ */
+public class SimulationConfig {
+
+	/** Contains the prefix of the system properties of the simulation */
+	public static final String fgPROPERTY_PREFIX = "eid.simulation.";
+
+	/**
+	 * Contains the directory with the files of the simulated card, null to use
+	 * the synthetic card bundled with the application
+	 */
+	private String fixtures;
+
+	/** Contains the number of simulated readers, each holding a card */
+	private int readers = 1;
+
+	/** Contains the time (in milliseconds) each APDU takes */
+	private long latency = 0;
+
+	/** Contains the maximum variation (in milliseconds) of the latency */
+	private long jitter = 0;
+
+	/** Contains the maximum number of bytes a single READ BINARY may ask */
+	private int maxBlockLength = 256;
+
+	/** Indicates whether the simulated card accepts extended length APDUs */
+	private boolean extendedLength = false;
+
+	/**
+	 * Contains the APDU trace to replay instead of serving the fixtures, null
+	 * to serve the fixtures
+	 */
+	private String replay;
+
+	/**
+	 * Indicates whether a replayed APDU takes as long as when it was recorded,
+	 * or is answered as fast as possible
+	 */
+	private boolean replayPaced = true;
+
+	/**
+	 * Returns the settings given by the system properties starting with
+	 * {@link #fgPROPERTY_PREFIX}, the defaults are used for the missing ones.
+	 *
+	 * @return the settings of the simulation
+	 */
+	public static SimulationConfig fromSystemProperties() {
+		final SimulationConfig config = new SimulationConfig();
+		config.setFixtures(System.getProperty(fgPROPERTY_PREFIX + "fixtures"));
+		config.setReaders(Integer.getInteger(fgPROPERTY_PREFIX + "readers",
+				config.getReaders()));
+		config.setLatency(Long.getLong(fgPROPERTY_PREFIX + "latency",
+				config.getLatency()));
+		config.setJitter(Long.getLong(fgPROPERTY_PREFIX + "jitter",
+				config.getJitter()));
+		config.setMaxBlockLength(Integer.getInteger(fgPROPERTY_PREFIX
+				+ "max-block-length", config.getMaxBlockLength()));
+		config.setExtendedLength(Boolean.parseBoolean(System.getProperty(
+				fgPROPERTY_PREFIX + "extended-length",
+				Boolean.toString(config.isExtendedLength()))));
+		config.setReplay(System.getProperty(fgPROPERTY_PREFIX + "replay"));
+		config.setReplayPaced(Boolean.parseBoolean(System.getProperty(
+				fgPROPERTY_PREFIX + "replay-paced",
+				Boolean.toString(config.isReplayPaced()))));
+		return config;
+	}
+
+	public String getFixtures() {
+		return fixtures;
+	}
+
+	public void setFixtures(final String fixtures) {
+		this.fixtures = fixtures;
+	}
+
+	public int getReaders() {
+		return readers;
+	}
+
+	public void setReaders(final int readers) {
+		this.readers = readers;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	public void setLatency(final long latency) {
+		this.latency = latency;
+	}
+
+	public long getJitter() {
+		return jitter;
+	}
+
+	public void setJitter(final long jitter) {
+		this.jitter = jitter;
+	}
+
+	public int getMaxBlockLength() {
+		return maxBlockLength;
+	}
+
+	public void setMaxBlockLength(final int maxBlockLength) {
+		this.maxBlockLength = maxBlockLength;
+	}
+
+	public boolean isExtendedLength() {
+		return extendedLength;
+	}
+
+	public void setExtendedLength(final boolean extendedLength) {
+		this.extendedLength = extendedLength;
+	}
+
+	public String getReplay() {
+		return replay;
+	}
+
+	public void setReplay(final String replay) {
+		this.replay = replay;
+	}
+
+	public boolean isReplayPaced() {
+		return replayPaced;
+	}
+
+	public void setReplayPaced(final boolean replayPaced) {
+		this.replayPaced = replayPaced;
+	}
+}
@@ -0,0 +1,145 @@
+package sopra.belgium.eid.trace;
+
+/**
+ * The APDUTraceEntry class contains a single event of an APDU trace: either a
+ * connection with the card in a reader, giving the ATR of the card, or a
+ * command sent to the card together with its response. The moments are given
+ * in nanoseconds since the start of the trace.
+ */
+public class APDUTraceEntry {
+
+	/** Contains the name of the reader the event happened in */
+	private final String readerName;
+
+	/** Contains the moment (in nanoseconds) of the event */
+	private final long time;
+
+	/** Contains the time (in nanoseconds) the card took to respond */
+	private final long duration;
+
+	/** Contains the ATR of the connected card, null for an exchange */
+	private final byte[] atr;
+
+	/** Contains the encoded command APDU, null for a connection */
+	private final byte[] command;
+
+	/** Contains the encoded response APDU, null for a connection */
+	private final byte[] response;
+
+	/**
+	 * Initializes a connection with the card in a reader.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @param time
+	 *            is the moment (in nanoseconds) of the connection
+	 * @param atr
+	 *            is the ATR of the card
+	 * @return the entry of the connection
+	 */
+	public static APDUTraceEntry connection(final String readerName,
+			final long time, final byte[] atr) {
+		return new APDUTraceEntry(readerName, time, 0, atr, null, null);
+	}
+
+	/**
+	 * Initializes an exchange of a command and a response with the card in a
+	 * reader.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @param time
+	 *            is the moment (in nanoseconds) the command has been sent
+	 * @param duration
+	 *            is the time (in nanoseconds) the card took to respond
+	 * @param command
+	 *            is the encoded command APDU
+	 * @param response
+	 *            is the encoded response APDU
+	 * @return the entry of the exchange
+	 */
+	public static APDUTraceEntry exchange(final String readerName,
+			final long time, final long duration, final byte[] command,
+			final byte[] response) {
+		return new APDUTraceEntry(readerName, time, duration, null, command,
+				response);
+	}
+
+	/**
+	 * Initializes the entry.
+	 */
+	private APDUTraceEntry(final String readerName, final long time,
+			final long duration, final byte[] atr, final byte[] command,
+			final byte[] response) {
+		this.readerName = readerName;
+		this.time = time;
+		this.duration = duration;
+		this.atr = atr;
+		this.command = command;
+		this.response = response;
+	}
+
+	/**
+	 * Indicates whether the entry is a connection rather than an exchange.
+	 *
+	 * @return whether a connection has been made
+	 */
+	public boolean isConnection() {
+		return atr != null;
+	}
+
+	/**
+	 * Returns the name of the reader the event happened in.
+	 *
+	 * @return the name of the reader
+	 */
+	public String getReaderName() {
+		return readerName;
+	}
+
+	/**
+	 * Returns the moment of the event in nanoseconds since the start of the
+	 * trace.
+	 *
+	 * @return the time of the event
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Returns the time the card took to respond in nanoseconds.
+	 *
+	 * @return the duration of the exchange, 0 for a connection
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * Returns the ATR of the connected card.
+	 *
+	 * @return the ATR, null for an exchange
+	 */
+	public byte[] getATR() {
+		return (atr == null) ? null : atr.clone();
+	}
+
+	/**
+	 * Returns the command sent to the card.
+	 *
+	 * @return the encoded command APDU, null for a connection
+	 */
+	public byte[] getCommand() {
+		return (command == null) ? null : command.clone();
+	}
+
+	/**
+	 * Returns the response of the card.
+	 *
+	 * @return the encoded response APDU, null for a connection
+	 */
+	public byte[] getResponse() {
+		return (response == null) ? null : response.clone();
+	}
+}
@@ -0,0 +1,206 @@
+package sopra.belgium.eid.trace;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The APDUTraceReader class reads the entries of a trace written by an
+ * {@link sopra.belgium.eid.trace.APDUTraceRecorder}, one at a time. See the
+ * recorder for the format of the trace.
+ */
+public class APDUTraceReader implements Closeable {
+
+	/** Contains the stream the trace is read from */
+	private final DataInputStream in;
+
+	/** Contains the wall-clock time (in milliseconds) recording started */
+	private final long startTime;
+
+	/** Contains the names of the readers mapped by their number */
+	private final Map<Long, String> readers = new HashMap<Long, String>();
+
+	/** Contains the moment (in nanoseconds) of the previous record */
+	private long time = 0;
+
+	/**
+	 * Returns every entry of the given trace. A trace whose recording has been
+	 * interrupted is read up to its last complete entry.
+	 *
+	 * @param file
+	 *            is the file containing the trace
+	 * @return the entries in the order they have been recorded
+	 * @throws IOException
+	 *             when the trace couldn't be read
+	 */
+	public static List<APDUTraceEntry> readAll(final File file)
+			throws IOException {
+		final APDUTraceReader reader = new APDUTraceReader(file);
+		try {
+			final List<APDUTraceEntry> entries = new ArrayList<APDUTraceEntry>();
+			try {
+				APDUTraceEntry entry;
+				while ((entry = reader.next()) != null) {
+					entries.add(entry);
+				}
+			} catch (EOFException e) {
+				// Recording has been interrupted, keep the complete entries
+			}
+			return entries;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Starts reading the trace in the given file.
+	 *
+	 * @param file
+	 *            is the file containing the trace
+	 * @throws IOException
+	 *             when the file isn't a trace
+	 */
+	public APDUTraceReader(final File file) throws IOException {
+		this(new FileInputStream(file));
+	}
+
+	/**
+	 * Starts reading the trace from the given stream.
+	 *
+	 * @param stream
+	 *            is the stream containing the trace
+	 * @throws IOException
+	 *             when the stream doesn't contain a trace
+	 */
+	public APDUTraceReader(final InputStream stream) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(stream));
+		if (in.readInt() != APDUTraceRecorder.fgMAGIC) {
+			in.close();
+			throw new IOException("Not an APDU trace");
+		}
+		final int version = in.readShort();
+		if (version != APDUTraceRecorder.fgVERSION) {
+			in.close();
+			throw new IOException("Unsupported APDU trace version " + version);
+		}
+		startTime = in.readLong();
+	}
+
+	/**
+	 * Returns the wall-clock time at which recording started.
+	 *
+	 * @return the start of the trace in milliseconds since the epoch
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Returns the next entry of the trace.
+	 *
+	 * @return the entry, null when the end of the trace has been reached
+	 * @throws IOException
+	 *             when the trace couldn't be read or is corrupt
+	 */
+	public APDUTraceEntry next() throws IOException {
+		while (true) {
+			final int type = in.read();
+			if (type == -1) {
+				return null;
+			}
+			if (type == APDUTraceRecorder.fgREADER) {
+				final long reader = readNumber();
+				readers.put(reader, in.readUTF());
+			} else if (type == APDUTraceRecorder.fgCONNECTION) {
+				final String readerName = readerName(readNumber());
+				time += readNumber();
+				return APDUTraceEntry.connection(readerName, time, readBytes());
+			} else if (type == APDUTraceRecorder.fgEXCHANGE) {
+				final String readerName = readerName(readNumber());
+				time += readNumber();
+				final long duration = readNumber();
+				final byte[] command = readBytes();
+				return APDUTraceEntry.exchange(readerName, time, duration,
+						command, readBytes());
+			} else {
+				throw new IOException("Unknown record type " + type
+						+ " in APDU trace");
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Returns the name of the reader with the given number.
+	 *
+	 * @param reader
+	 *            is the number of the reader
+	 * @return the name of the reader
+	 * @throws IOException
+	 *             when the reader hasn't been named in the trace
+	 */
+	private String readerName(final long reader) throws IOException {
+		final String name = readers.get(reader);
+		if (name == null) {
+			throw new IOException("Unknown reader " + reader + " in APDU trace");
+		}
+		return name;
+	}
+
+	/**
+	 * Reads a length followed by as many bytes.
+	 *
+	 * @return the bytes read
+	 * @throws IOException
+	 *             when the trace couldn't be read
+	 */
+	private byte[] readBytes() throws IOException {
+		final long length = readNumber();
+		if (length > 0x10005) {
+			// Larger than any APDU
+			throw new IOException("Corrupt APDU trace");
+		}
+		final byte[] bytes = new byte[(int) length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Reads a positive number written 7 bits at a time.
+	 *
+	 * @return the number read
+	 * @throws IOException
+	 *             when the trace couldn't be read
+	 */
+	private long readNumber() throws IOException {
+		long number = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final int b = in.read();
+			if (b == -1) {
+				throw new EOFException("Truncated APDU trace");
+			}
+			number |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return number;
+			}
+		}
+		throw new IOException("Corrupt APDU trace");
+	}
+}
@@ -0,0 +1,254 @@
+package sopra.belgium.eid.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The APDUTraceRecorder class writes every connection and every APDU exchanged
+ * with the cards to a compact binary trace, which can be read again with an
+ * {@link sopra.belgium.eid.trace.APDUTraceReader} and replayed with an
+ * {@link sopra.belgium.eid.trace.APDUTraceReplayer}.
+ * <p>
+ * The trace starts with the magic number <i>EIDT</i>, the version of the format
+ * and the wall-clock time (in milliseconds) at which recording started. Every
+ * record then starts with its type:
+ * <ul>
+ * <li><b>R</b>: a reader is seen for the first time, followed by its number
+ * and its name. Later records refer to the reader by number.</li>
+ * <li><b>C</b>: a connection has been made, followed by the number of the
+ * reader, the time since the previous record and the ATR of the card.</li>
+ * <li><b>A</b>: an APDU has been exchanged, followed by the number of the
+ * reader, the time since the previous record, the time the card took to
+ * respond, the command and the response.</li>
+ * </ul>
+ * Numbers, times (in nanoseconds) and lengths are written as variable length
+ * quantities of 7 bits per byte, so that a typical exchange takes a few bytes
+ * besides the APDUs themselves.
+ * <p>
+ * Recording never fails a read: when the trace can't be written anymore, the
+ * error is reported once and recording stops.
+ */
+public class APDUTraceRecorder implements Closeable {
+
+	/** Contains the magic number at the start of a trace */
+	public static final int fgMAGIC = 0x45494454;
+
+	/** Contains the version of the format of the trace */
+	public static final int fgVERSION = 1;
+
+	/** Contains the type of the record naming a reader */
+	public static final int fgREADER = 'R';
+
+	/** Contains the type of the record of a connection */
+	public static final int fgCONNECTION = 'C';
+
+	/** Contains the type of the record of an exchanged APDU */
+	public static final int fgEXCHANGE = 'A';
+
+	/** Contains the stream the trace is written to */
+	private final DataOutputStream out;
+
+	/** Contains the numbers of the readers already named in the trace */
+	private final Map<String, Integer> readers = new HashMap<String, Integer>();
+
+	/** Contains the moment (in nanoseconds) of the previous record */
+	private long previous;
+
+	/** Contains the number of exchanged APDUs recorded */
+	private long count = 0;
+
+	/** Indicates whether the trace can still be written */
+	private boolean open = true;
+
+	/**
+	 * Starts recording to the given file, which is overwritten.
+	 *
+	 * @param file
+	 *            is the file to write the trace to
+	 * @throws IOException
+	 *             when the file couldn't be created
+	 */
+	public APDUTraceRecorder(final File file) throws IOException {
+		this(new FileOutputStream(file));
+	}
+
+	/**
+	 * Starts recording to the given stream.
+	 *
+	 * @param stream
+	 *            is the stream to write the trace to
+	 * @throws IOException
+	 *             when the start of the trace couldn't be written
+	 */
+	public APDUTraceRecorder(final OutputStream stream) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(stream));
+		out.writeInt(fgMAGIC);
+		out.writeShort(fgVERSION);
+		out.writeLong(System.currentTimeMillis());
+		out.flush();
+		previous = System.nanoTime();
+	}
+
+	/**
+	 * Records a connection with the card in the given reader.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @param atr
+	 *            is the ATR of the card
+	 */
+	public synchronized void recordConnection(final String readerName,
+			final byte[] atr) {
+		if (!open) {
+			return;
+		}
+		final long now = System.nanoTime();
+		try {
+			final int reader = reader(readerName);
+			out.writeByte(fgCONNECTION);
+			writeNumber(reader);
+			writeNumber(Math.max(0, now - previous));
+			writeBytes(atr);
+			// A connection starts a new read, keep the trace up to date
+			out.flush();
+			previous = Math.max(previous, now);
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Records an APDU exchanged with the card in the given reader.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @param sent
+	 *            is the moment (as given by {@link System#nanoTime()}) the
+	 *            command has been sent
+	 * @param received
+	 *            is the moment (as given by {@link System#nanoTime()}) the
+	 *            response has been received
+	 * @param command
+	 *            is the encoded command APDU
+	 * @param response
+	 *            is the encoded response APDU
+	 */
+	public synchronized void recordExchange(final String readerName,
+			final long sent, final long received, final byte[] command,
+			final byte[] response) {
+		if (!open) {
+			return;
+		}
+		try {
+			final int reader = reader(readerName);
+			out.writeByte(fgEXCHANGE);
+			writeNumber(reader);
+			// Exchanges of several readers may be recorded out of order
+			writeNumber(Math.max(0, sent - previous));
+			writeNumber(Math.max(0, received - sent));
+			writeBytes(command);
+			writeBytes(response);
+			previous = Math.max(previous, sent);
+			count++;
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Returns the number of exchanged APDUs recorded so far.
+	 *
+	 * @return the number of recorded APDUs
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Stops recording and closes the trace.
+	 *
+	 * @throws IOException
+	 *             when the end of the trace couldn't be written
+	 */
+	public synchronized void close() throws IOException {
+		if (open) {
+			open = false;
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns the number of the given reader, naming it in the trace when it
+	 * is seen for the first time.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @return the number of the reader
+	 * @throws IOException
+	 *             when the trace couldn't be written
+	 */
+	private int reader(final String readerName) throws IOException {
+		Integer reader = readers.get(readerName);
+		if (reader == null) {
+			reader = readers.size();
+			out.writeByte(fgREADER);
+			writeNumber(reader);
+			out.writeUTF(readerName);
+			readers.put(readerName, reader);
+		}
+		return reader;
+	}
+
+	/**
+	 * Writes the length of the given bytes followed by the bytes.
+	 *
+	 * @param bytes
+	 *            are the bytes to write
+	 * @throws IOException
+	 *             when the trace couldn't be written
+	 */
+	private void writeBytes(final byte[] bytes) throws IOException {
+		writeNumber(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Writes a positive number 7 bits at a time, the highest bit of a byte
+	 * indicating that more bytes follow.
+	 *
+	 * @param number
+	 *            is the number to write
+	 * @throws IOException
+	 *             when the trace couldn't be written
+	 */
+	private void writeNumber(long number) throws IOException {
+		while ((number & ~0x7FL) != 0) {
+			out.writeByte((int) ((number & 0x7F) | 0x80));
+			number >>>= 7;
+		}
+		out.writeByte((int) number);
+	}
+
+	/**
+	 * Stops recording after the trace couldn't be written.
+	 *
+	 * @param e
+	 *            is the reason why the trace couldn't be written
+	 */
+	private void fail(final IOException e) {
+		open = false;
+		System.err.println("APDU trace stopped: " + e);
+		try {
+			out.close();
+		} catch (IOException e1) {
+			// Already reported
+		}
+	}
+}
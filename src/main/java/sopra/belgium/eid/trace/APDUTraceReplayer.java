@@ -0,0 +1,244 @@
+package sopra.belgium.eid.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.smartcardio.CardException;
+
+import sopra.belgium.eid.simulation.CardResponder;
+
+/**
+ * The APDUTraceReplayer class replays a recorded APDU trace against the
+ * current code. Every reader of the trace gets a card that answers the
+ * commands it receives with the responses that have been recorded, in the
+ * recorded order, so that a read seen in the field can be run again without
+ * the card. The replayed cards are served through the "PC/SC-SIM" readers of
+ * the {@link sopra.belgium.eid.simulation.SimulatedProvider}.
+ * <p>
+ * When replaying at the original pace, every response takes as long as it
+ * took the card when it was recorded; otherwise the responses are given as
+ * fast as possible. A command that differs from the recorded one is looked up
+ * further in the trace, the recorded exchanges in between are skipped; a
+ * command that hasn't been recorded at all is answered with <i>6F00</i>. The
+ * numbers of replayed, skipped and unknown commands allow comparing the APDUs
+ * of the current code with those of the recorded code.
+ */
+public class APDUTraceReplayer {
+
+	/** Contains the response to a command that hasn't been recorded */
+	private static final byte[] fgSW_UNKNOWN = { (byte) 0x6F, (byte) 0x00 };
+
+	/** Contains the replayed cards mapped by the name of their reader */
+	private final Map<String, ReplayedCard> cards = new LinkedHashMap<String, ReplayedCard>();
+
+	/** Indicates whether the responses take as long as when recorded */
+	private final boolean paced;
+
+	/**
+	 * Returns a replayer of the trace in the given file.
+	 *
+	 * @param file
+	 *            is the file containing the trace
+	 * @param paced
+	 *            indicates whether to replay at the original pace
+	 * @return the replayer of the trace
+	 * @throws IOException
+	 *             when the trace couldn't be read
+	 */
+	public static APDUTraceReplayer load(final File file, final boolean paced)
+			throws IOException {
+		return new APDUTraceReplayer(APDUTraceReader.readAll(file), paced);
+	}
+
+	/**
+	 * Initializes the replayer of the given entries.
+	 *
+	 * @param entries
+	 *            are the entries of the trace in the recorded order
+	 * @param paced
+	 *            indicates whether to replay at the original pace
+	 */
+	public APDUTraceReplayer(final List<APDUTraceEntry> entries,
+			final boolean paced) {
+		this.paced = paced;
+		for (APDUTraceEntry entry : entries) {
+			ReplayedCard card = cards.get(entry.getReaderName());
+			if (card == null) {
+				card = new ReplayedCard();
+				cards.put(entry.getReaderName(), card);
+			}
+			if (!entry.isConnection()) {
+				card.exchanges.add(entry);
+			} else if (card.atr == null) {
+				card.atr = entry.getATR();
+			}
+		}
+	}
+
+	/**
+	 * Returns the names of the readers found in the trace.
+	 *
+	 * @return the names in the order they appear in the trace
+	 */
+	public Set<String> getReaderNames() {
+		return Collections.unmodifiableSet(cards.keySet());
+	}
+
+	/**
+	 * Returns the ATR of the card first connected in the given reader.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @return the ATR, null if no connection has been recorded
+	 */
+	public byte[] getATR(final String readerName) {
+		final ReplayedCard card = cards.get(readerName);
+		return ((card == null) || (card.atr == null)) ? null : card.atr.clone();
+	}
+
+	/**
+	 * Returns the card that answers the commands sent to the given reader.
+	 *
+	 * @param readerName
+	 *            is the name of the reader
+	 * @return the replayed card, null if the reader isn't in the trace
+	 */
+	public CardResponder responder(final String readerName) {
+		return cards.get(readerName);
+	}
+
+	/**
+	 * Returns the number of commands answered with a recorded response.
+	 *
+	 * @return the number of replayed APDUs
+	 */
+	public int getReplayed() {
+		int replayed = 0;
+		for (ReplayedCard card : cards.values()) {
+			replayed += card.replayed;
+		}
+		return replayed;
+	}
+
+	/**
+	 * Returns the number of recorded exchanges skipped because the code sent
+	 * another command.
+	 *
+	 * @return the number of skipped APDUs
+	 */
+	public int getSkipped() {
+		int skipped = 0;
+		for (ReplayedCard card : cards.values()) {
+			skipped += card.skipped;
+		}
+		return skipped;
+	}
+
+	/**
+	 * Returns the number of commands that couldn't be found in the rest of
+	 * the trace.
+	 *
+	 * @return the number of unknown APDUs
+	 */
+	public int getUnknown() {
+		int unknown = 0;
+		for (ReplayedCard card : cards.values()) {
+			unknown += card.unknown;
+		}
+		return unknown;
+	}
+
+	/**
+	 * Returns the number of recorded exchanges that haven't been replayed yet.
+	 *
+	 * @return the number of remaining APDUs
+	 */
+	public int getRemaining() {
+		int remaining = 0;
+		for (ReplayedCard card : cards.values()) {
+			remaining += card.exchanges.size() - card.position;
+		}
+		return remaining;
+	}
+
+	/**
+	 * The ReplayedCard class answers the commands sent to a single reader of
+	 * the trace.
+	 */
+	private class ReplayedCard implements CardResponder {
+
+		/** Contains the recorded exchanges of the reader */
+		private final List<APDUTraceEntry> exchanges = new ArrayList<APDUTraceEntry>();
+
+		/** Contains the ATR of the card, null if unknown */
+		private byte[] atr;
+
+		/** Contains the index of the next exchange to replay */
+		private volatile int position = 0;
+
+		/** Contains the number of replayed commands */
+		private volatile int replayed = 0;
+
+		/** Contains the number of skipped exchanges */
+		private volatile int skipped = 0;
+
+		/** Contains the number of commands that haven't been recorded */
+		private volatile int unknown = 0;
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see sopra.belgium.eid.simulation.CardResponder#process(byte[])
+		 */
+		public synchronized byte[] process(final byte[] command)
+				throws CardException {
+			for (int i = position; i < exchanges.size(); i++) {
+				final APDUTraceEntry exchange = exchanges.get(i);
+				if (Arrays.equals(exchange.getCommand(), command)) {
+					skipped += i - position;
+					position = i + 1;
+					replayed++;
+					if (paced) {
+						pace(exchange.getDuration());
+					}
+					return exchange.getResponse();
+				}
+			}
+			unknown++;
+			return fgSW_UNKNOWN.clone();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see sopra.belgium.eid.simulation.CardResponder#reset()
+		 */
+		public void reset() {
+			// The trace goes on after a reset, like it has been recorded
+		}
+
+		/**
+		 * Waits as long as the card took to respond when recorded.
+		 *
+		 * @param duration
+		 *            is the recorded time (in nanoseconds) of the response
+		 * @throws CardException
+		 *             when waiting has been interrupted
+		 */
+		private void pace(final long duration) throws CardException {
+			try {
+				Thread.sleep(duration / 1000000, (int) (duration % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CardException(e);
+			}
+		}
+	}
+}
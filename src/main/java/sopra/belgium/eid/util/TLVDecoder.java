@@ -0,0 +1,151 @@
+package sopra.belgium.eid.util;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The TLVDecoder decodes the TLV elements of a file (see
+ * {@link sopra.belgium.eid.util.TLV}) while the file is still being read.
+ * Every block read from the card is fed to the decoder, which decodes the
+ * elements that are complete so far. When only some tags are asked for, the
+ * decoder tells when all of them have been decoded, so that the rest of the
+ * file doesn't have to be read.
+ */
+public class TLVDecoder {
+
+	/** Contains the tags asked for, empty when every tag is asked for */
+	private final Set<Byte> wantedTags = new HashSet<Byte>();
+
+	/** Contains the decoded elements mapped by tag */
+	private final AbstractMap<Byte, byte[]> elements = new HashMap<Byte, byte[]>();
+
+	/** Contains the bytes fed so far */
+	private byte[] data = new byte[256];
+
+	/** Contains the number of bytes fed so far */
+	private int length = 0;
+
+	/** Contains the position of the first element that isn't decoded yet */
+	private int position = 0;
+
+	/**
+	 * Initializes a decoder of the given tags.
+	 * 
+	 * @param tags
+	 *            are the tags asked for, none to decode every tag
+	 */
+	public TLVDecoder(final byte... tags) {
+		for (byte tag : tags) {
+			wantedTags.add(tag);
+		}
+	}
+
+	/**
+	 * Feeds the remaining bytes of the given block to the decoder and decodes
+	 * the elements that are complete. The position of the block is left
+	 * unchanged.
+	 * 
+	 * @param block
+	 *            is the next block of the file
+	 * @return whether every tag asked for has been decoded
+	 */
+	public boolean feed(final ByteBuffer block) {
+		final int received = block.remaining();
+		ensureCapacity(length + received);
+		block.duplicate().get(data, length, received);
+		length += received;
+		decode();
+		return isComplete();
+	}
+
+	/**
+	 * Feeds the given bytes to the decoder and decodes the elements that are
+	 * complete.
+	 * 
+	 * @param block
+	 *            is the next block of the file
+	 * @return whether every tag asked for has been decoded
+	 */
+	public boolean feed(final byte[] block) {
+		return feed(ByteBuffer.wrap(block));
+	}
+
+	/**
+	 * Indicates whether every tag asked for has been decoded. A decoder of
+	 * every tag is never complete, the whole file has to be read.
+	 * 
+	 * @return whether the decoder needs no more bytes
+	 */
+	public boolean isComplete() {
+		return !wantedTags.isEmpty()
+				&& elements.keySet().containsAll(wantedTags);
+	}
+
+	/**
+	 * Returns the data of the given tag.
+	 * 
+	 * @param tag
+	 *            is the tag to identify the data to return
+	 * @return the data, null if the tag hasn't been decoded
+	 */
+	public byte[] tagData(final byte tag) {
+		return elements.get(tag);
+	}
+
+	/**
+	 * Returns the elements decoded so far, see
+	 * {@link sopra.belgium.eid.util.TLV#getTLVElements()}.
+	 * 
+	 * @return the decoded elements mapped by tag
+	 */
+	public AbstractMap<Byte, byte[]> getTLVElements() {
+		return elements;
+	}
+
+	/**
+	 * Decodes the elements that have been fed completely. An element is kept
+	 * under the same conditions as in {@link TLV#parse(byte[])}: when its tag
+	 * hasn't been seen yet or when it isn't empty.
+	 */
+	private void decode() {
+		while (position + 2 <= length) {
+			final byte tag = data[position];
+
+			// Lengths of 255 and more continue in the next bytes
+			int i = position + 1;
+			int lengthData = data[i] & 0xFF;
+			while ((data[i] & 0xFF) == 0xFF) {
+				if (++i == length) {
+					return;
+				}
+				lengthData += data[i] & 0xFF;
+			}
+			if (i + 1 + lengthData > length) {
+				// The element continues in the next block
+				return;
+			}
+
+			if ((elements.get(tag) == null) || (lengthData > 0)) {
+				elements.put(tag, Arrays.copyOfRange(data, i + 1, i + 1
+						+ lengthData));
+			}
+			position = i + 1 + lengthData;
+		}
+	}
+
+	/**
+	 * Makes sure the given number of bytes fits in the data fed.
+	 * 
+	 * @param capacity
+	 *            is the number of bytes needed
+	 */
+	private void ensureCapacity(final int capacity) {
+		if (capacity > data.length) {
+			data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package sopra.belgium.eid.metier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import sopra.belgium.eid.EidProperties;
+import sopra.belgium.eid.simulation.SimulatedProvider;
+
+/**
+ * Tests the asynchronous operations of {@link BeID}, performed by the worker
+ * of the reader in a {@link ReaderPool}.
+ */
+public class BeIDAsyncTest {
+
+	/** Contains the settings of the application */
+	private static EidProperties fgProperties;
+
+	/** Contains the registry the metrics are checked in */
+	private SimpleMeterRegistry registry;
+
+	/** Contains the sessions of the simulated reader */
+	private ReaderPool pool;
+
+	@BeforeClass
+	public static void simulateReader() throws Exception {
+		SmartCardReadTest.storeProfilesAside();
+		fgProperties = new EidProperties();
+		fgProperties.setTerminalType(SimulatedProvider.fgTYPE);
+		// The synthetic card of the simulator is a test card
+		fgProperties.setEnableTestCard(true);
+		fgProperties.getSimulation().setLatency(10);
+		fgProperties.apply();
+	}
+
+	@Before
+	public void startPool() {
+		registry = new SimpleMeterRegistry();
+		Metrics.addRegistry(registry);
+		pool = new ReaderPool(fgProperties);
+	}
+
+	@After
+	public void stopPool() {
+		pool.shutdown();
+		Metrics.removeRegistry(registry);
+	}
+
+	@Test
+	public void readsOnTheThreadOfTheReader() throws Exception {
+		final BeID eID = pool.session(null);
+		assertNotNull(eID.getIDDataAsync().get(10, TimeUnit.SECONDS)
+				.getCardNumber());
+		final String thread = eID.async(TaskPriority.IDENTITY,
+				new ReaderTask<String>() {
+					public String execute(final BeID session) {
+						return Thread.currentThread().getName();
+					}
+				}).get(10, TimeUnit.SECONDS);
+		assertEquals("eid-reader-" + eID.getTerminal().getName(), thread);
+	}
+
+	@Test
+	public void stopsReadWhenCancelled() throws Exception {
+		final BeID eID = pool.session(null);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch cancelled = new CountDownLatch(1);
+		final CompletableFuture<Boolean> read = eID.async(TaskPriority.BULK,
+				new ReaderTask<Boolean>() {
+					public Boolean execute(final BeID session) throws Exception {
+						started.countDown();
+						cancelled.await(10, TimeUnit.SECONDS);
+						return session.readPhotoData();
+					}
+				});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		read.cancel(true);
+		cancelled.countDown();
+
+		// The read stops at its next APDU and the reader is free again
+		assertNotNull(eID.getIDAddressAsync().get(10, TimeUnit.SECONDS));
+		assertEquals(1, registry.get(CardMetrics.fgCANCELLED).counter()
+				.count(), 0);
+		try {
+			read.get();
+			fail("The read has been cancelled");
+		} catch (CancellationException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void failsOutsideOfAPool() throws Exception {
+		try {
+			new BeID(true).getIDDataAsync().get();
+			fail("A session without pool has no worker");
+		} catch (ExecutionException e) {
+			assertEquals(IllegalStateException.class, e.getCause().getClass());
+		}
+	}
+}
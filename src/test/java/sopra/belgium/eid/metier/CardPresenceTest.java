@@ -0,0 +1,52 @@
+package sopra.belgium.eid.metier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests how the ATR of an inserted card is read for the
+ * {@link CardPresenceMonitor}, see {@link SmartCard#readATR(javax.smartcardio.CardTerminal)}.
+ */
+public class CardPresenceTest {
+
+	@Test
+	public void releasesItsOwnConnection() throws Exception {
+		final FakeTerminal terminal = SmartCardReadTest.terminal(FakeTerminal
+				.data(16), 256);
+		assertArrayEquals(FakeTerminal.fgATR, SmartCard.readATR(terminal)
+				.getBytes());
+		assertEquals(1, terminal.getConnections());
+		assertEquals(1, terminal.getDisconnections());
+	}
+
+	@Test
+	public void leavesTheConnectionOfAWorkerAlone() throws Exception {
+		final byte[] file = FakeTerminal.data(300);
+		final FakeTerminal terminal = SmartCardReadTest.terminal(file, 256);
+		final SmartCard worker = new SmartCard(terminal);
+		worker.connectCard();
+		worker.beginTransaction();
+		try {
+			assertArrayEquals(FakeTerminal.fgATR, SmartCard.readATR(terminal)
+					.getBytes());
+			assertEquals(0, terminal.getDisconnections());
+
+			// The session of the worker goes on
+			final ByteBuffer dst = ByteBuffer.allocate(file.length);
+			assertEquals(file.length, worker.readFile(CardFile.ID.getPath(),
+					dst));
+		} finally {
+			worker.endTransaction();
+		}
+
+		// Once the worker is gone, the connection is released again
+		worker.disconnect(false);
+		assertEquals(1, terminal.getDisconnections());
+		SmartCard.readATR(terminal);
+		assertEquals(2, terminal.getDisconnections());
+	}
+}
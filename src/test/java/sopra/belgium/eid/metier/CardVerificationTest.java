@@ -0,0 +1,97 @@
+package sopra.belgium.eid.metier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import sopra.belgium.eid.exceptions.EIDException;
+import sopra.belgium.eid.exceptions.RootVerificationException;
+import sopra.belgium.eid.security.CertificateStatus;
+import sopra.belgium.eid.security.CertificateValidatorTest;
+import sopra.belgium.eid.security.TrustedRoots;
+
+/**
+ * Tests the verification of the certificates of a card by {@link BeID}, with
+ * the synthetic card of the simulator whose root and RN certificate are
+ * replaced. The replaced RN certificate keeps the key the files are signed
+ * with.
+ */
+public class CardVerificationTest {
+
+	/** Contains the numbers of the readers, each reader gets its own profile */
+	private static final AtomicInteger fgReaders = new AtomicInteger();
+
+	/** Contains the registry of trusted roots before the test */
+	private final TrustedRoots defaultRoots = TrustedRoots.getDefault();
+
+	@BeforeClass
+	public static void storeProfilesAside() throws Exception {
+		SmartCardReadTest.storeProfilesAside();
+	}
+
+	@After
+	public void restoreTrustedRoots() {
+		TrustedRoots.setDefault(defaultRoots);
+	}
+
+	@Test
+	public void readsCardIssuedByExpiredRoot() throws Exception {
+		TrustedRoots.setDefault(CertificateValidatorTest
+				.trusting("expired-root.der"));
+		final BeID eID = new BeID(false, terminal("expired-root.der",
+				"expired-root-rn.der"));
+		final CardSnapshot snapshot = eID.readSnapshot();
+		assertNotNull(snapshot.getIDData());
+		assertEquals(CertificateStatus.BEID_CERTSTATUS_CERT_VALIDATED_OK,
+				snapshot.getRNCertificate().getStatus());
+	}
+
+	@Test
+	public void readsTestCardWhoseCertificatesDontValidate() throws Exception {
+		// The root isn't trusted and the RN certificate has expired
+		final BeID eID = new BeID(true, terminal("test-root.der",
+				"test-rn.der"));
+		assertNotNull(eID.readSnapshot().getIDData());
+	}
+
+	@Test
+	public void rejectsTestCardWhenTestCardsAreDisabled() throws Exception {
+		final BeID eID = new BeID(false, terminal("test-root.der",
+				"test-rn.der"));
+		try {
+			eID.readSnapshot();
+			fail("The root of a test card isn't trusted");
+		} catch (EIDException e) {
+			assertEquals(RootVerificationException.class, e.getCause()
+					.getClass());
+		}
+	}
+
+	/**
+	 * Returns a reader holding the synthetic card with the given root and RN
+	 * certificates, with a name of its own.
+	 *
+	 * @param root
+	 *            is the name of the root certificate file
+	 * @param rn
+	 *            is the name of the RN certificate file
+	 * @return the reader
+	 * @throws Exception
+	 *             when the files couldn't be read
+	 */
+	private static FakeTerminal terminal(final String root, final String rn)
+			throws Exception {
+		final Map<String, byte[]> files = FakeTerminal.bundled();
+		files.put("DF00-503B", CertificateValidatorTest.fixture(root));
+		files.put("DF00-503C", CertificateValidatorTest.fixture(rn));
+		return new FakeTerminal("Verification reader "
+				+ fgReaders.incrementAndGet(), files, 256);
+	}
+}
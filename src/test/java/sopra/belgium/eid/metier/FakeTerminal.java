@@ -0,0 +1,420 @@
+package sopra.belgium.eid.metier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import sopra.belgium.eid.simulation.SimulatedApplet;
+import sopra.belgium.eid.simulation.SimulatedCardFiles;
+import sopra.belgium.eid.simulation.SimulationConfig;
+
+/**
+ * The FakeTerminal class is a smart card reader holding a card answered by a
+ * {@link SimulatedApplet}, whose channel behaves like the PC/SC channel of the
+ * JDK: a response buffer with room for less than 258 bytes is refused with an
+ * IllegalArgumentException. The lengths asked by the READ BINARY commands are
+ * recorded and failures of their transmission can be injected. Like PC/SC,
+ * the reader hands out the same connection until it is released.
+ */
+public class FakeTerminal extends CardTerminal {
+
+	/** Contains the ATR of a card without extended length support */
+	public static final byte[] fgATR = { (byte) 0x3B, (byte) 0x98,
+			(byte) 0x13, (byte) 0x40, (byte) 0x0A, (byte) 0xA5, (byte) 0x03,
+			(byte) 0x01, (byte) 0x01, (byte) 0x01, (byte) 0xAD, (byte) 0x13,
+			(byte) 0x11 };
+
+	/** Contains the ATR of a card that supports extended length APDUs */
+	public static final byte[] fgEXTENDED_ATR = { (byte) 0x3B, (byte) 0x05,
+			(byte) 0x80, (byte) 0x73, (byte) 0x00, (byte) 0x00, (byte) 0x40 };
+
+	/** Contains the name of the reader */
+	private final String name;
+
+	/** Contains the card that answers the APDUs */
+	private final SimulatedApplet applet;
+
+	/** Contains the lengths asked by the READ BINARY commands */
+	private final List<Integer> readLengths = Collections
+			.synchronizedList(new ArrayList<Integer>());
+
+	/** Indicates whether a card is present */
+	private volatile boolean present = true;
+
+	/** Contains the number of READ BINARY commands still to fail */
+	private volatile int failures;
+
+	/** Indicates whether the card is pulled out at the next READ BINARY */
+	private volatile boolean removeOnRead;
+
+	/**
+	 * Indicates whether the card supports extended length APDUs that the
+	 * reader fails to transmit
+	 */
+	private volatile boolean refuseExtended;
+
+	/** Indicates whether the next unlock of the card fails */
+	private volatile boolean failUnlock;
+
+	/** Contains the connection with the card, null if none */
+	private FakeCard card;
+
+	/** Contains the number of connections made */
+	private volatile int connections;
+
+	/** Contains the number of connections released */
+	private volatile int disconnections;
+
+	/**
+	 * Initializes a reader holding a card with the given files.
+	 *
+	 * @param name
+	 *            is the name of the reader
+	 * @param files
+	 *            are the contents of the files mapped by path, e.g.
+	 *            "DF01-4031"
+	 * @param maxBlockLength
+	 *            is the largest length the card accepts in a READ BINARY
+	 */
+	public FakeTerminal(final String name, final Map<String, byte[]> files,
+			final int maxBlockLength) {
+		this.name = name;
+		final SimulationConfig config = new SimulationConfig();
+		config.setMaxBlockLength(maxBlockLength);
+		this.applet = new SimulatedApplet(new SimulatedCardFiles(files), config);
+	}
+
+	/**
+	 * Returns the files of a card holding a single file.
+	 *
+	 * @param path
+	 *            is the path of the file, e.g. "DF01-4031"
+	 * @param contents
+	 *            is the contents of the file
+	 * @return the files of the card
+	 */
+	public static Map<String, byte[]> file(final String path,
+			final byte[] contents) {
+		final Map<String, byte[]> files = new HashMap<String, byte[]>();
+		files.put(path, contents);
+		return files;
+	}
+
+	/**
+	 * Returns the files of the synthetic card bundled with the simulator.
+	 *
+	 * @return the files of the card mapped by path
+	 * @throws IOException
+	 *             when a file couldn't be read
+	 */
+	public static Map<String, byte[]> bundled() throws IOException {
+		final Map<String, byte[]> files = new HashMap<String, byte[]>();
+		for (String name : SimulatedCardFiles.fgBUNDLED_FILES) {
+			final InputStream in = FakeTerminal.class
+					.getResourceAsStream(SimulatedCardFiles.fgBUNDLED + name
+							+ SimulatedCardFiles.fgEXTENSION);
+			try {
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				final byte[] buffer = new byte[4096];
+				for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+					out.write(buffer, 0, n);
+				}
+				files.put(name, out.toByteArray());
+			} finally {
+				in.close();
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Returns data of the given length, every byte differing from its
+	 * neighbours and none being zero.
+	 *
+	 * @param length
+	 *            is the length of the data
+	 * @return the data
+	 */
+	public static byte[] data(final int length) {
+		final byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i % 251 + 1);
+		}
+		return data;
+	}
+
+	/**
+	 * Makes the transmission of the next READ BINARY commands fail.
+	 *
+	 * @param count
+	 *            is the number of commands to fail
+	 */
+	public void failNextReads(final int count) {
+		failures = count;
+	}
+
+	/**
+	 * Pulls the card out while the next READ BINARY command is transmitted.
+	 */
+	public void removeCardOnNextRead() {
+		removeOnRead = true;
+	}
+
+	/**
+	 * Holds a card that announces extended length APDUs in a reader that
+	 * fails to transmit them.
+	 */
+	public void refuseExtendedLength() {
+		refuseExtended = true;
+	}
+
+	/**
+	 * Makes the next unlock of the card fail.
+	 */
+	public void failNextUnlock() {
+		failUnlock = true;
+	}
+
+	/**
+	 * Removes the card or inserts it again.
+	 *
+	 * @param present
+	 *            indicates whether a card is present
+	 */
+	public void setPresent(final boolean present) {
+		this.present = present;
+	}
+
+	/**
+	 * Returns the lengths asked by the READ BINARY commands so far.
+	 *
+	 * @return the lengths
+	 */
+	public List<Integer> getReadLengths() {
+		synchronized (readLengths) {
+			return new ArrayList<Integer>(readLengths);
+		}
+	}
+
+	/**
+	 * Returns the number of connections made to the card.
+	 *
+	 * @return the number of connections
+	 */
+	public int getConnections() {
+		return connections;
+	}
+
+	/**
+	 * Returns the number of connections released.
+	 *
+	 * @return the number of connections released
+	 */
+	public int getDisconnections() {
+		return disconnections;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public synchronized Card connect(final String protocol)
+			throws CardException {
+		if (!present) {
+			throw new CardNotPresentException("No card present in " + name);
+		}
+		if ((card == null) || !card.valid) {
+			card = new FakeCard();
+			connections++;
+		}
+		return card;
+	}
+
+	@Override
+	public boolean isCardPresent() {
+		return present;
+	}
+
+	@Override
+	public boolean waitForCardPresent(final long timeout) {
+		return present;
+	}
+
+	@Override
+	public boolean waitForCardAbsent(final long timeout) {
+		return !present;
+	}
+
+	/**
+	 * Sends a command to the card.
+	 *
+	 * @param command
+	 *            is the encoded command APDU
+	 * @return the encoded response APDU
+	 * @throws CardException
+	 *             when the transmission fails
+	 */
+	private byte[] process(final byte[] command) throws CardException {
+		if (!present) {
+			throw new CardNotPresentException("The card has been removed");
+		}
+		final CommandAPDU apdu = new CommandAPDU(command);
+		if (apdu.getINS() == 0xB0) {
+			if (removeOnRead) {
+				removeOnRead = false;
+				present = false;
+				throw new CardNotPresentException("The card has been removed");
+			}
+			if (failures > 0) {
+				failures--;
+				throw new CardException("Transmission failed");
+			}
+			readLengths.add(apdu.getNe());
+			if (refuseExtended && (apdu.getNe() > 256)) {
+				throw new CardException("Transmission failed");
+			}
+		}
+		return applet.process(command);
+	}
+
+	/**
+	 * The FakeCard class is a connection with the card of the reader.
+	 */
+	private class FakeCard extends Card {
+
+		/** Contains the basic channel of the connection */
+		private final CardChannel channel = new FakeChannel(this);
+
+		/** Indicates whether the connection is still open */
+		private volatile boolean valid = true;
+
+		@Override
+		public ATR getATR() {
+			return new ATR(refuseExtended ? fgEXTENDED_ATR : fgATR);
+		}
+
+		@Override
+		public String getProtocol() {
+			return "T=1";
+		}
+
+		@Override
+		public CardChannel getBasicChannel() {
+			return channel;
+		}
+
+		@Override
+		public CardChannel openLogicalChannel() throws CardException {
+			throw new CardException("Not supported");
+		}
+
+		@Override
+		public void beginExclusive() {
+		}
+
+		@Override
+		public void endExclusive() throws CardException {
+			if (failUnlock) {
+				failUnlock = false;
+				throw new CardException("Unlock failed");
+			}
+		}
+
+		@Override
+		public byte[] transmitControlCommand(final int controlCode,
+				final byte[] command) throws CardException {
+			throw new CardException("Not supported");
+		}
+
+		@Override
+		public void disconnect(final boolean reset) {
+			if (valid) {
+				valid = false;
+				disconnections++;
+			}
+		}
+
+		/**
+		 * Makes sure the connection hasn't been released.
+		 */
+		private void checkValid() {
+			if (!valid) {
+				throw new IllegalStateException("Card has been disconnected");
+			}
+		}
+	}
+
+	/**
+	 * The FakeChannel class is the basic channel of a connection, with the
+	 * buffer checks of the PC/SC channel of the JDK.
+	 */
+	private class FakeChannel extends CardChannel {
+
+		/** Contains the connection the channel belongs to */
+		private final Card card;
+
+		/**
+		 * Initializes the channel of the given connection.
+		 *
+		 * @param card
+		 *            is the connection
+		 */
+		private FakeChannel(final Card card) {
+			this.card = card;
+		}
+
+		@Override
+		public Card getCard() {
+			return card;
+		}
+
+		@Override
+		public int getChannelNumber() {
+			return 0;
+		}
+
+		@Override
+		public ResponseAPDU transmit(final CommandAPDU command)
+				throws CardException {
+			((FakeCard) card).checkValid();
+			return new ResponseAPDU(process(command.getBytes()));
+		}
+
+		@Override
+		public int transmit(final ByteBuffer command, final ByteBuffer response)
+				throws CardException {
+			((FakeCard) card).checkValid();
+			if (response.remaining() < 258) {
+				throw new IllegalArgumentException(
+						"Insufficient space in response buffer");
+			}
+			final byte[] commandBytes = new byte[command.remaining()];
+			command.get(commandBytes);
+			final byte[] responseBytes = process(commandBytes);
+			response.put(responseBytes);
+			return responseBytes.length;
+		}
+
+		@Override
+		public void close() {
+			throw new IllegalStateException("Cannot close basic logical channel");
+		}
+	}
+}
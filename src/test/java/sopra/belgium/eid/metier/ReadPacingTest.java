@@ -0,0 +1,92 @@
+package sopra.belgium.eid.metier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Tests the delay learned by {@link ReadPacing}.
+ */
+public class ReadPacingTest {
+
+	@Test
+	public void backsOffOnTransientErrors() {
+		final ReadPacing pacing = ReadPacing.forReader("backs-off");
+		assertEquals(0, pacing.getDelay());
+		pacing.transientError();
+		assertEquals(ReadPacing.fgSTEP, pacing.getDelay());
+		for (int i = 0; i < 10; i++) {
+			pacing.transientError();
+		}
+		assertEquals(ReadPacing.fgMAX_DELAY, pacing.getDelay());
+	}
+
+	@Test
+	public void decaysBackToNoDelayAfterSuccessfulReads() {
+		final ReadPacing pacing = ReadPacing.forReader("decays");
+		// A card pulled out in the middle of a read
+		for (int i = 0; i < SmartCard.fgMAX_RETRIES + 1; i++) {
+			pacing.transientError();
+		}
+		assertTrue(pacing.getDelay() >= 170);
+
+		succeed(pacing, ReadPacing.fgSTABLE_AFTER * 3);
+		assertTrue(pacing.isStable());
+		final long settled = pacing.getDelay();
+		assertTrue(settled > 0);
+
+		// The bound itself is lowered after a longer run
+		succeed(pacing, ReadPacing.fgRELAX_AFTER);
+		assertEquals(settled - ReadPacing.fgSTEP, pacing.getDelay());
+
+		succeed(pacing, (int) (settled / ReadPacing.fgSTEP)
+				* ReadPacing.fgRELAX_AFTER);
+		assertEquals(0, pacing.getDelay());
+	}
+
+	@Test
+	public void errorStopsTheDecay() {
+		final ReadPacing pacing = ReadPacing.forReader("error-stops-decay");
+		pacing.transientError();
+		pacing.transientError();
+		final long delay = pacing.getDelay();
+		succeed(pacing, ReadPacing.fgRELAX_AFTER - 1);
+		pacing.transientError();
+		succeed(pacing, ReadPacing.fgRELAX_AFTER - 1);
+		assertTrue(pacing.getDelay() >= delay);
+	}
+
+	@Test
+	public void exposesTheDelayAsGauge() {
+		final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		Metrics.addRegistry(registry);
+		try {
+			final ReadPacing pacing = ReadPacing.forReader("gauge");
+			pacing.transientError();
+			final Gauge gauge = registry.get(CardMetrics.fgPACING)
+					.tag("reader", "gauge").gauge();
+			assertEquals(pacing.getDelay(), gauge.value(), 0);
+		} finally {
+			Metrics.removeRegistry(registry);
+		}
+	}
+
+	/**
+	 * Registers the given number of successful reads.
+	 *
+	 * @param pacing
+	 *            is the pacing of the reader
+	 * @param reads
+	 *            is the number of reads
+	 */
+	private static void succeed(final ReadPacing pacing, final int reads) {
+		for (int i = 0; i < reads; i++) {
+			pacing.success();
+		}
+	}
+}
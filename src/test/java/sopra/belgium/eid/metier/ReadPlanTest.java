@@ -0,0 +1,95 @@
+package sopra.belgium.eid.metier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.EnumSet;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the files read for the parts asked for, e.g. by the fields parameter
+ * of a request, see {@link ReadPlan}.
+ */
+public class ReadPlanTest {
+
+	@BeforeClass
+	public static void storeProfilesAside() throws Exception {
+		SmartCardReadTest.storeProfilesAside();
+	}
+
+	@Test
+	public void readsEverythingWhenNothingOrEverythingIsAskedFor() {
+		assertSame(ReadPlan.full(), ReadPlan.of(Collections
+				.<SnapshotPart> emptySet()));
+		assertSame(ReadPlan.full(), ReadPlan.of(EnumSet
+				.allOf(SnapshotPart.class)));
+		assertEquals(EnumSet.allOf(CardFile.class), ReadPlan.full()
+				.getFiles());
+	}
+
+	@Test
+	public void readsIdentityWithItsSignature() {
+		final ReadPlan plan = ReadPlan.of(EnumSet.of(SnapshotPart.IDENTITY));
+		assertEquals(EnumSet.of(CardFile.ID, CardFile.ID_SIGNATURE,
+				CardFile.RN_CERTIFICATE, CardFile.ROOT_CERTIFICATE), plan
+				.getFiles());
+		assertFalse(plan.isComplete());
+	}
+
+	@Test
+	public void readsAddressWithoutTheIDFile() {
+		final ReadPlan plan = ReadPlan.of(EnumSet.of(SnapshotPart.ADDRESS));
+		assertEquals(EnumSet.of(CardFile.ADDRESS, CardFile.ADDRESS_SIGNATURE,
+				CardFile.ID_SIGNATURE, CardFile.RN_CERTIFICATE,
+				CardFile.ROOT_CERTIFICATE), plan.getFiles());
+	}
+
+	@Test
+	public void readsPhotoWithTheIDFileHoldingItsHash() {
+		final ReadPlan plan = ReadPlan.of(EnumSet.of(SnapshotPart.PHOTO));
+		assertTrue(plan.needs(CardFile.PHOTO));
+		assertTrue(plan.needs(CardFile.ID));
+		assertFalse(plan.needs(CardFile.ADDRESS));
+	}
+
+	@Test
+	public void returnsOnlyThePartsAskedFor() throws Exception {
+		final FakeTerminal terminal = new FakeTerminal("Plan reader",
+				FakeTerminal.bundled(), 256);
+		final CardSnapshot snapshot = new BeID(true, terminal)
+				.readSnapshot(ReadPlan.of(EnumSet.of(SnapshotPart.ADDRESS)));
+		assertEquals(EnumSet.of(SnapshotPart.ADDRESS), snapshot.getParts());
+		assertNotNull(snapshot.getIDAddress());
+		assertNull(snapshot.getIDData());
+		assertNull(snapshot.getIDPhoto());
+
+		// The photo of a few kilobytes isn't read
+		final FakeTerminal complete = new FakeTerminal("Complete reader",
+				FakeTerminal.bundled(), 256);
+		assertNotNull(new BeID(true, complete).readSnapshot().getIDPhoto());
+		assertTrue(sum(terminal) + 2048 < sum(complete));
+	}
+
+	/**
+	 * Returns the number of bytes asked for by the READ BINARY commands sent
+	 * to the given reader.
+	 *
+	 * @param terminal
+	 *            is the reader
+	 * @return the number of bytes asked for
+	 */
+	private static int sum(final FakeTerminal terminal) {
+		int total = 0;
+		for (int length : terminal.getReadLengths()) {
+			total += length;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,107 @@
+package sopra.belgium.eid.metier;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests the order in which {@link ReaderScheduler} performs its tasks.
+ */
+public class ReaderSchedulerTest {
+
+	@Test
+	public void performsHigherPriorityFirst() throws Exception {
+		final ReaderScheduler scheduler = new ReaderScheduler("priority",
+				ReaderScheduler.fgAGING);
+		try {
+			final List<String> order = performWhileBusy(scheduler, 0);
+			assertEquals(Arrays.asList("identity-1", "identity-2",
+					"identity-3", "bulk"), order);
+		} finally {
+			scheduler.shutdown(null);
+		}
+	}
+
+	@Test
+	public void performsTaskThatWaitedTooLongFirst() throws Exception {
+		final ReaderScheduler scheduler = new ReaderScheduler("aging", 50);
+		try {
+			final List<String> order = performWhileBusy(scheduler, 100);
+			assertEquals(Arrays.asList("bulk", "identity-1", "identity-2",
+					"identity-3"), order);
+		} finally {
+			scheduler.shutdown(null);
+		}
+	}
+
+	/**
+	 * Submits a bulk task and then three identity tasks while the thread of
+	 * the scheduler is busy, and returns the order they were performed in.
+	 *
+	 * @param scheduler
+	 *            is the scheduler
+	 * @param delay
+	 *            is the time (in milliseconds) between the bulk task and the
+	 *            identity tasks
+	 * @return the names of the tasks in the order they were performed
+	 * @throws Exception
+	 *             when a task failed
+	 */
+	private static List<String> performWhileBusy(
+			final ReaderScheduler scheduler, final long delay) throws Exception {
+		final CountDownLatch busy = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		scheduler.submit(new Callable<Void>() {
+			public Void call() throws Exception {
+				busy.countDown();
+				release.await();
+				return null;
+			}
+		}, TaskPriority.IDENTITY, 0);
+		busy.await(5, TimeUnit.SECONDS);
+
+		final List<String> order = Collections
+				.synchronizedList(new ArrayList<String>());
+		final List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>();
+		results.add(scheduler.submit(record(order, "bulk"),
+				TaskPriority.BULK, 0));
+		Thread.sleep(delay);
+		for (int i = 1; i <= 3; i++) {
+			results.add(scheduler.submit(record(order, "identity-" + i),
+					TaskPriority.IDENTITY, 0));
+		}
+		release.countDown();
+		for (CompletableFuture<String> result : results) {
+			result.get(5, TimeUnit.SECONDS);
+		}
+		return order;
+	}
+
+	/**
+	 * Returns a task that adds the given name to the given list.
+	 *
+	 * @param order
+	 *            is the list of the tasks performed
+	 * @param name
+	 *            is the name of the task
+	 * @return the task
+	 */
+	private static Callable<String> record(final List<String> order,
+			final String name) {
+		return new Callable<String>() {
+			public String call() {
+				order.add(name);
+				return name;
+			}
+		};
+	}
+}
@@ -0,0 +1,176 @@
+package sopra.belgium.eid.metier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.smartcardio.CardException;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the reads of {@link SmartCard} against a reader whose channel refuses
+ * response buffers smaller than 258 bytes, like the PC/SC channel does.
+ */
+public class SmartCardReadTest {
+
+	/** Contains the path of the ID file */
+	private static final byte[] fgID = CardFile.ID.getPath();
+
+	/** Contains the numbers of the readers, each reader gets its own profile */
+	private static final AtomicInteger fgReaders = new AtomicInteger();
+
+	@BeforeClass
+	public static void storeProfilesAside() throws IOException {
+		final File profiles = File.createTempFile("profiles", ".properties");
+		profiles.deleteOnExit();
+		System.setProperty(ReaderProfile.fgFILE_PROPERTY, profiles.getPath());
+	}
+
+	@Test
+	public void readsFileLongerThanABlock() throws Exception {
+		final byte[] file = FakeTerminal.data(600);
+		final FakeTerminal terminal = terminal(file, 256);
+		assertArrayEquals(file, read(terminal, file.length));
+		assertEquals(Arrays.asList(256, 256, 88), terminal.getReadLengths());
+	}
+
+	@Test
+	public void retriesWithLengthGivenBy6Cxx() throws Exception {
+		// A signature of 0x80 bytes read into a buffer of 256 bytes
+		final byte[] file = FakeTerminal.data(0x80);
+		final FakeTerminal terminal = terminal(file, 256);
+		assertArrayEquals(file, read(terminal, 256));
+		assertEquals(Arrays.asList(256, 0x80), terminal.getReadLengths());
+	}
+
+	@Test
+	public void fallsBackToSmallerBlocksOn6700() throws Exception {
+		final byte[] file = FakeTerminal.data(0x300);
+		final FakeTerminal terminal = terminal(file, 0xF8);
+		assertArrayEquals(file, read(terminal, file.length));
+		assertEquals(Arrays.asList(256, 0xF8, 0xF8, 0xF8, 0x18), terminal
+				.getReadLengths());
+	}
+
+	@Test
+	public void fallsBackToShortBlocksWhenReaderFailsExtendedLength()
+			throws Exception {
+		final byte[] file = FakeTerminal.data(600);
+		final FakeTerminal terminal = terminal(file, 0x800);
+		terminal.refuseExtendedLength();
+		assertArrayEquals(file, read(terminal, file.length));
+		assertEquals(Arrays.asList(600, 256, 256, 88), terminal
+				.getReadLengths());
+
+		// The short blocks are stored for the next connection
+		assertArrayEquals(file, read(terminal, file.length));
+		assertEquals(Arrays.asList(600, 256, 256, 88, 256, 256, 88),
+				terminal.getReadLengths());
+	}
+
+	@Test
+	public void readsBlockOfF8IntoExactBuffer() throws Exception {
+		final byte[] file = FakeTerminal.data(0xF8 + 4);
+		final FakeTerminal terminal = terminal(file, 0xF8);
+		assertArrayEquals(file, read(terminal, file.length));
+	}
+
+	@Test
+	public void readsTailShorterThanABlock() throws Exception {
+		final byte[] file = FakeTerminal.data(256 + 100);
+		final FakeTerminal terminal = terminal(file, 256);
+		// Room for the tail and its status word, but not for 258 bytes
+		assertArrayEquals(file, read(terminal, file.length + 2));
+	}
+
+	@Test
+	public void keepsBlockLengthOnTransientError() throws Exception {
+		final byte[] file = FakeTerminal.data(600);
+		final FakeTerminal terminal = terminal(file, 256);
+		terminal.failNextReads(1);
+		assertArrayEquals(file, read(terminal, file.length));
+		// The failed block is asked again with the same length
+		assertEquals(Arrays.asList(256, 256, 88), terminal.getReadLengths());
+	}
+
+	@Test
+	public void keepsBlockLengthWhenCardIsRemoved() throws Exception {
+		final byte[] file = FakeTerminal.data(600);
+		final FakeTerminal terminal = terminal(file, 256);
+		final SmartCard card = new SmartCard(terminal);
+		card.connectCard();
+		terminal.removeCardOnNextRead();
+		try {
+			card.readFile(fgID, ByteBuffer.allocate(file.length));
+			fail("The card has been removed");
+		} catch (CardException e) {
+			// Expected
+		}
+
+		// The same connection reads with full blocks once the card is back
+		terminal.setPresent(true);
+		final ByteBuffer dst = ByteBuffer.allocate(file.length);
+		final int length = card.readFile(fgID, dst);
+		assertArrayEquals(file, Arrays.copyOf(dst.array(), length));
+		assertEquals(Arrays.asList(256, 256, 88), terminal.getReadLengths());
+	}
+
+	@Test
+	public void reportsReadFailureRatherThanUnlockFailure() throws Exception {
+		final byte[] file = FakeTerminal.data(600);
+		final FakeTerminal terminal = terminal(file, 256);
+		final SmartCard card = new SmartCard(terminal);
+		card.connectCard();
+		terminal.removeCardOnNextRead();
+		terminal.failNextUnlock();
+		try {
+			card.readFile(fgID, ByteBuffer.allocate(file.length));
+			fail("The card has been removed");
+		} catch (CardException e) {
+			assertEquals(1, e.getSuppressed().length);
+			assertEquals("Unlock failed", e.getSuppressed()[0].getMessage());
+		}
+	}
+
+	/**
+	 * Returns a reader holding the given ID file, with a name of its own.
+	 *
+	 * @param file
+	 *            is the contents of the ID file
+	 * @param maxBlockLength
+	 *            is the largest length the card accepts in a READ BINARY
+	 * @return the reader
+	 */
+	static FakeTerminal terminal(final byte[] file, final int maxBlockLength) {
+		return new FakeTerminal("Reader " + fgReaders.incrementAndGet(),
+				FakeTerminal.file("DF01-4031", file), maxBlockLength);
+	}
+
+	/**
+	 * Reads the ID file of the given reader into a buffer of the given size.
+	 *
+	 * @param terminal
+	 *            is the reader
+	 * @param bufferSize
+	 *            is the size of the buffer
+	 * @return the bytes read
+	 * @throws Exception
+	 *             when the read failed
+	 */
+	static byte[] read(final FakeTerminal terminal, final int bufferSize)
+			throws Exception {
+		final SmartCard card = new SmartCard(terminal);
+		card.connectCard();
+		final ByteBuffer dst = ByteBuffer.allocate(bufferSize);
+		final int length = card.readFile(fgID, dst);
+		return Arrays.copyOf(dst.array(), length);
+	}
+}
@@ -0,0 +1,207 @@
+package sopra.belgium.eid.metier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import sopra.belgium.eid.EidProperties;
+import sopra.belgium.eid.simulation.SimulatedProvider;
+
+/**
+ * Tests how {@link SnapshotService} shares the reads asked for at the same
+ * time and cancels them, against a simulated reader slow enough for the reads
+ * to overlap.
+ */
+public class SnapshotServiceTest {
+
+	/** Contains the time (in milliseconds) every APDU takes */
+	private static final long fgLATENCY = 10;
+
+	/** Contains the settings of the application */
+	private static EidProperties fgProperties;
+
+	/** Contains the registry the metrics are checked in */
+	private SimpleMeterRegistry registry;
+
+	/** Contains the sessions of the simulated reader */
+	private ReaderPool pool;
+
+	/** Contains the service under test */
+	private SnapshotService service;
+
+	@BeforeClass
+	public static void simulateReader() throws Exception {
+		SmartCardReadTest.storeProfilesAside();
+		fgProperties = new EidProperties();
+		fgProperties.setTerminalType(SimulatedProvider.fgTYPE);
+		// The synthetic card of the simulator is a test card
+		fgProperties.setEnableTestCard(true);
+		fgProperties.getSimulation().setLatency(fgLATENCY);
+		// Every read goes to the card
+		fgProperties.setCacheTtl(Duration.ZERO);
+		fgProperties.apply();
+	}
+
+	@Before
+	public void startService() {
+		registry = new SimpleMeterRegistry();
+		Metrics.addRegistry(registry);
+		pool = new ReaderPool(fgProperties);
+		service = new SnapshotService(pool, new CardPresenceMonitor(),
+				fgProperties);
+	}
+
+	@After
+	public void stopService() {
+		pool.shutdown();
+		Metrics.removeRegistry(registry);
+	}
+
+	@Test
+	public void coalescesIdenticalReads() throws Exception {
+		final CompletableFuture<CardSnapshot> first = service.readAsync(null);
+		final CompletableFuture<CardSnapshot> second = service.readAsync(null);
+		assertSame(first.get(10, TimeUnit.SECONDS), second.get(10,
+				TimeUnit.SECONDS));
+		assertEquals(1, reads("executed"), 0);
+		assertEquals(1, reads("coalesced"), 0);
+	}
+
+	@Test
+	public void coalescesReadsOfAnyReaderAndOfTheReaderChosen()
+			throws Exception {
+		final String readerName = pool.readerNames().get(0);
+		final CompletableFuture<CardSnapshot> any = service.readAsync(null);
+		final CompletableFuture<CardSnapshot> named = service
+				.readAsync(readerName);
+		assertSame(any.get(10, TimeUnit.SECONDS), named.get(10,
+				TimeUnit.SECONDS));
+		assertEquals(1, reads("coalesced"), 0);
+	}
+
+	@Test
+	public void servesPartialReadFromCompleteRead() throws Exception {
+		final CompletableFuture<CardSnapshot> complete = service
+				.readAsync(null);
+		final CompletableFuture<CardSnapshot> identity = service.readAsync(
+				null, ReadPlan.of(EnumSet.of(SnapshotPart.IDENTITY)));
+		assertSame(complete.get(10, TimeUnit.SECONDS), identity.get(10,
+				TimeUnit.SECONDS));
+		assertEquals(1, reads("coalesced"), 0);
+	}
+
+	@Test
+	public void keepsReadingForTheCallersLeft() throws Exception {
+		final CompletableFuture<CardSnapshot> first = service.readAsync(null);
+		final CompletableFuture<CardSnapshot> second = service.readAsync(null);
+		waitForAPDUs();
+		first.cancel(true);
+		assertNotNull(second.get(10, TimeUnit.SECONDS).getIDData());
+		assertEquals(0, cancelled(), 0);
+	}
+
+	@Test
+	public void stopsReadWhenEveryCallerCancelled() throws Exception {
+		final CompletableFuture<CardSnapshot> first = service.readAsync(null);
+		final CompletableFuture<CardSnapshot> second = service.readAsync(null);
+		waitForAPDUs();
+		first.cancel(true);
+		second.cancel(true);
+
+		// The read stops at its next APDU
+		final long deadline = System.currentTimeMillis() + 5000;
+		while ((cancelled() == 0) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(fgLATENCY);
+		}
+		assertEquals(1, cancelled(), 0);
+
+		// The cancelled read isn't shared with the next caller
+		assertNotNull(service.readAsync(null).get(10, TimeUnit.SECONDS)
+				.getIDData());
+		assertEquals(2, reads("executed"), 0);
+	}
+
+	@Test
+	public void stopsReadOnInsertionWhenItsCallerCancelled() throws Exception {
+		final String readerName = pool.readerNames().get(0);
+		service.cardInserted(new ReaderState(readerName, true, true, null,
+				new Date()));
+		final CompletableFuture<CardSnapshot> read = service.readAsync(null);
+		waitForAPDUs();
+		read.cancel(true);
+
+		// The read on insertion stops at its next APDU
+		final long deadline = System.currentTimeMillis() + 5000;
+		while ((cancelled() == 0) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(fgLATENCY);
+		}
+		assertEquals(1, cancelled(), 0);
+	}
+
+	/**
+	 * Waits until the read has sent its first READ BINARY command, so that it
+	 * is running on the worker of the reader. The metrics of the registry of
+	 * the test start at zero even for the meters registered before.
+	 *
+	 * @throws InterruptedException
+	 *             when interrupted while waiting
+	 */
+	private void waitForAPDUs() throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while ((readBinaries() == 0) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(1);
+		}
+		assertTrue(readBinaries() > 0);
+	}
+
+	/**
+	 * Returns the number of READ BINARY commands sent to the card.
+	 *
+	 * @return the number of commands
+	 */
+	private long readBinaries() {
+		long count = 0;
+		for (Timer timer : registry.find(CardMetrics.fgAPDU).tag("ins", "B0")
+				.timers()) {
+			count += timer.count();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of reads asked for with the given outcome.
+	 *
+	 * @param outcome
+	 *            is "executed" or "coalesced"
+	 * @return the number of reads
+	 */
+	private double reads(final String outcome) {
+		return registry.get(CardMetrics.fgREADS).tag("outcome", outcome)
+				.counter().count();
+	}
+
+	/**
+	 * Returns the number of reads stopped on the card.
+	 *
+	 * @return the number of cancelled reads
+	 */
+	private double cancelled() {
+		return registry.find(CardMetrics.fgCANCELLED).counters().isEmpty() ? 0
+				: registry.get(CardMetrics.fgCANCELLED).counter().count();
+	}
+}
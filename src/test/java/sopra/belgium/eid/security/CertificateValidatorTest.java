@@ -0,0 +1,119 @@
+package sopra.belgium.eid.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the validation of certification paths by
+ * {@link CertificateValidator}, with roots whose validity period has ended.
+ */
+public class CertificateValidatorTest {
+
+	/** Contains the registry of trusted roots before the test */
+	private final TrustedRoots defaultRoots = TrustedRoots.getDefault();
+
+	@After
+	public void restoreTrustedRoots() {
+		TrustedRoots.setDefault(defaultRoots);
+	}
+
+	@Test
+	public void acceptsBundledRootsThatHaveExpired() throws Exception {
+		final Certificate root = new RootCertificate(
+				HardCodedRootCertificate.fgEncodedRootCert);
+		assertTrue(root.getX509Certificate().getNotAfter().getTime() < System
+				.currentTimeMillis());
+		assertTrue(CertificateValidator.validatePath(true, root));
+		assertEquals(CertificateStatus.BEID_CERTSTATUS_CERT_VALIDATED_OK, root
+				.getStatus());
+	}
+
+	@Test
+	public void acceptsCertificateIssuedByExpiredRoot() throws Exception {
+		TrustedRoots.setDefault(trusting("expired-root.der"));
+		final Certificate root = new RootCertificate(
+				fixture("expired-root.der"));
+		final RNCertificate rn = new RNCertificate(
+				fixture("expired-root-rn.der"));
+		assertTrue(CertificateValidator.validatePath(true, rn, root));
+		assertEquals(CertificateStatus.BEID_CERTSTATUS_CERT_VALIDATED_OK, rn
+				.getStatus());
+	}
+
+	@Test
+	public void keepsStatusOfTrustedRoots() throws Exception {
+		final TrustedRoots roots = trusting("expired-root.der");
+		TrustedRoots.setDefault(roots);
+		final RNCertificate rn = new RNCertificate(
+				fixture("expired-root-rn.der"));
+		assertTrue(CertificateValidator.validatePath(true, rn, roots
+				.getIssuer(rn)));
+		for (Certificate root : roots.getRoots()) {
+			assertEquals(CertificateStatus.BEID_CERTSTATUS_CERT_NOT_VALIDATED,
+					root.getStatus());
+		}
+	}
+
+	@Test
+	public void rejectsExpiredCertificate() throws Exception {
+		final Certificate root = new RootCertificate(fixture("test-root.der"));
+		final RNCertificate rn = new RNCertificate(fixture("test-rn.der"));
+		assertFalse(CertificateValidator.validatePath(false, rn, root));
+		assertEquals(CertificateStatus.BEID_CERTSTATUS_CERT_HAS_EXPIRED, rn
+				.getStatus());
+	}
+
+	@Test
+	public void rejectsRootThatIsNotTrusted() throws Exception {
+		final Certificate root = new RootCertificate(
+				fixture("expired-root.der"));
+		final RNCertificate rn = new RNCertificate(
+				fixture("expired-root-rn.der"));
+		assertFalse(CertificateValidator.validatePath(true, rn, root));
+		assertEquals(CertificateStatus.BEID_CERTSTATUS_INVALID_ROOT, root
+				.getStatus());
+		assertEquals(
+				CertificateStatus.BEID_CERTSTATUS_UNABLE_TO_GET_ISSUER_CERT,
+				rn.getStatus());
+	}
+
+	/**
+	 * Returns the contents of the given certificate of the test resources.
+	 *
+	 * @param name
+	 *            is the name of the certificate file
+	 * @return the DER encoded certificate
+	 * @throws Exception
+	 *             when the file couldn't be read
+	 */
+	public static byte[] fixture(final String name) throws Exception {
+		return Files.readAllBytes(Paths.get(CertificateValidatorTest.class
+				.getResource("/certificates/" + name).toURI()));
+	}
+
+	/**
+	 * Returns a registry trusting the given root of the test resources
+	 * besides the bundled roots.
+	 *
+	 * @param name
+	 *            is the name of the root certificate file
+	 * @return the trusted roots
+	 * @throws Exception
+	 *             when the root couldn't be loaded
+	 */
+	public static TrustedRoots trusting(final String name) throws Exception {
+		final TrustedRoots roots = new TrustedRoots(new File(
+				CertificateValidatorTest.class.getResource(
+						"/certificates/" + name).toURI()), null);
+		roots.reload();
+		return roots;
+	}
+}
@@ -0,0 +1,125 @@
+package sopra.belgium.eid.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the revocation checks of {@link RevocationCache} under the soft-fail
+ * and the hard-fail policies, with lists that are fresh, stale, forged or
+ * missing.
+ */
+public class RevocationCacheTest {
+
+	/** Contains the cache used before the test */
+	private final RevocationCache defaultCache = RevocationCache.getDefault();
+
+	/** Contains the issuer of the certificates and of the lists */
+	private final Certificate ca = new RootCertificate(fixture("ca.der"));
+
+	/** Contains a certificate that isn't revoked */
+	private final Certificate good = new AuthenticationCertificate(
+			fixture("good.der"));
+
+	/** Contains a certificate on the list of its issuer */
+	private final Certificate revoked = new AuthenticationCertificate(
+			fixture("revoked.der"));
+
+	@After
+	public void restoreCache() {
+		RevocationCache.setDefault(defaultCache);
+	}
+
+	@Test
+	public void acceptsCertificateNotOnTheList() throws Exception {
+		assertNull(cache("fresh.crl", RevocationPolicy.HARD_FAIL).check(good,
+				ca));
+	}
+
+	@Test
+	public void rejectsRevokedCertificateWhateverThePolicy() throws Exception {
+		assertEquals(CertificateStatus.BEID_CERTSTATUS_CERT_REVOKED, cache(
+				"fresh.crl", RevocationPolicy.SOFT_FAIL).check(revoked, ca));
+		assertEquals(CertificateStatus.BEID_CERTSTATUS_CERT_REVOKED, cache(
+				"stale.crl", RevocationPolicy.SOFT_FAIL).check(revoked, ca));
+		assertNull(cache("fresh.crl", RevocationPolicy.OFF).check(revoked, ca));
+	}
+
+	@Test
+	public void softFailAcceptsWithoutUsableList() throws Exception {
+		assertNull(cache(null, RevocationPolicy.SOFT_FAIL).check(good, ca));
+		assertNull(cache("stale.crl", RevocationPolicy.SOFT_FAIL).check(good,
+				ca));
+		assertNull(cache("forged.crl", RevocationPolicy.SOFT_FAIL).check(
+				good, ca));
+	}
+
+	@Test
+	public void hardFailRejectsWithoutUsableList() throws Exception {
+		assertEquals(CertificateStatus.BEID_CERTSTATUS_UNABLE_TO_GET_CRL,
+				cache(null, RevocationPolicy.HARD_FAIL).check(good, ca));
+		assertEquals(CertificateStatus.BEID_CERTSTATUS_CRL_HAS_EXPIRED, cache(
+				"stale.crl", RevocationPolicy.HARD_FAIL).check(good, ca));
+		assertEquals(
+				CertificateStatus.BEID_CERTSTATUS_CRL_SIGNATURE_FAILURE,
+				cache("forged.crl", RevocationPolicy.HARD_FAIL)
+						.check(good, ca));
+	}
+
+	@Test
+	public void failsPathOfRevokedCertificate() throws Exception {
+		RevocationCache.setDefault(cache("fresh.crl",
+				RevocationPolicy.SOFT_FAIL));
+		assertFalse(CertificateValidator.validatePath(false, revoked, ca));
+		assertEquals(CertificateStatus.BEID_CERTSTATUS_CERT_REVOKED, revoked
+				.getStatus());
+	}
+
+	/**
+	 * Returns a cache holding the given list of the test resources, checked
+	 * with the given policy.
+	 *
+	 * @param list
+	 *            is the name of the list file, null for no list
+	 * @param policy
+	 *            is the treatment of the certificates without usable list
+	 * @return the revocation cache
+	 * @throws Exception
+	 *             when the list couldn't be read
+	 */
+	private static RevocationCache cache(final String list,
+			final RevocationPolicy policy) throws Exception {
+		final RevocationConfig config = new RevocationConfig();
+		config.setPolicy(policy);
+		if (list != null) {
+			config.setSource(new File(RevocationCacheTest.class.getResource(
+					"/revocation/" + list).toURI()).getPath());
+		}
+		final RevocationCache cache = new RevocationCache(config);
+		cache.reload();
+		return cache;
+	}
+
+	/**
+	 * Returns the contents of the given certificate of the test resources.
+	 *
+	 * @param name
+	 *            is the name of the certificate file
+	 * @return the DER encoded certificate
+	 */
+	private static byte[] fixture(final String name) {
+		try {
+			return Files.readAllBytes(Paths.get(RevocationCacheTest.class
+					.getResource("/revocation/" + name).toURI()));
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}